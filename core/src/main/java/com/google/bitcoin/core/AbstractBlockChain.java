@@ -90,6 +90,7 @@ public abstract class AbstractBlockChain {
 
     /** Keeps a map of block hashes to StoredBlocks. */
     private final BlockStore blockStore;
+    private final BlockLocator blockLocator;
 
     /**
      * Tracks the top of the best known chain.<p>
@@ -140,6 +141,8 @@ public abstract class AbstractBlockChain {
     private double falsePositiveRate;
     private double falsePositiveTrend;
     private double previousFalsePositiveRate;
+    // Only written with the lock held, but read from any thread.
+    private volatile long falsePositiveBytes;
 
 
     /**
@@ -148,6 +151,7 @@ public abstract class AbstractBlockChain {
     public AbstractBlockChain(NetworkParameters params, List<BlockChainListener> listeners,
                               BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
+        this.blockLocator = new BlockLocator(params, blockStore);
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = params;
@@ -201,6 +205,13 @@ public abstract class AbstractBlockChain {
     public BlockStore getBlockStore() {
         return blockStore;
     }
+
+    /**
+     * Returns the {@link BlockLocator} used to describe this chain to peers in getblocks and getheaders messages.
+     */
+    public BlockLocator getBlockLocator() {
+        return blockLocator;
+    }
     
     /**
      * Adds/updates the given {@link Block} with the block store.
@@ -542,6 +553,10 @@ public abstract class AbstractBlockChain {
         }
 
         trackFalsePositives(falsePositives.size());
+        long bytes = 0;
+        for (Transaction tx : falsePositives)
+            bytes += tx.getMessageSize();
+        falsePositiveBytes += bytes;
     }
 
     private static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
@@ -1341,6 +1356,15 @@ public abstract class AbstractBlockChain {
         return falsePositiveRate;
     }
 
+    /**
+     * Returns the total size of all the false positive transactions received so far, ie transactions sent to us
+     * because they matched the Bloom filter but which turned out to be irrelevant to all listeners. Unlike the false
+     * positive rate, this is not reset by {@link #resetFalsePositiveEstimate()}.
+     */
+    public long getFalsePositiveBytes() {
+        return falsePositiveBytes;
+    }
+
     /*
      * We completed handling of a filtered block. Update false-positive estimate based
      * on the total number of transactions in the original block.
@@ -25,6 +25,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -67,6 +68,7 @@ public class BitcoinSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -99,18 +101,7 @@ public class BitcoinSerializer {
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        writeHeader(name, message, header);
         out.write(header);
         out.write(message);
 
@@ -122,11 +113,47 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getCommand(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Serializes the message together with its header into a {@link FramedMessage}. The result can be sent to many
+     * peers while only being serialized and checksummed once.
+     */
+    public FramedMessage frame(Message message) {
+        String name = getCommand(message);
+        byte[] payload = message.bitcoinSerialize();
+        byte[] bytes = new byte[4 + BitcoinPacketHeader.HEADER_LENGTH + payload.length];
+        writeHeader(name, payload, bytes);
+        System.arraycopy(payload, 0, bytes, 4 + BitcoinPacketHeader.HEADER_LENGTH, payload.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Framed {} message: {}", name, bytesToHexString(bytes));
+        return new FramedMessage(params.getPacketMagic(), message, bytes);
+    }
+
+    private static String getCommand(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
+    }
+
+    // Writes the magic bytes and header for the given payload into the first 24 bytes of the given array.
+    private void writeHeader(String name, byte[] payload, byte[] header) {
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LEN);
+
+        byte[] hash = doubleDigest(payload);
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
     }
 
     /**
@@ -163,15 +190,31 @@ public class BitcoinSerializer {
 
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
-     * {@link BitcoinSerializer#deserializeHeader}.
+     * {@link BitcoinSerializer#deserializeHeader}.<p>
+     *
+     * If the buffer is backed by an array and this serializer parses messages eagerly without retaining their bytes,
+     * the payload is checksummed and parsed where it lies, without being copied out first. The message does not keep
+     * a reference to the buffer afterwards, so the caller is free to reuse it.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        byte[] payloadBytes;
+        int offset;
+        if (in.hasArray() && !parseLazy && !parseRetain) {
+            if (in.remaining() < header.size)
+                throw new BufferUnderflowException();
+            payloadBytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            // Lazily parsed and retaining messages hold on to the array they were made from, so give them their own.
+            payloadBytes = new byte[header.size];
+            offset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        hash = doubleDigest(payloadBytes, offset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -181,38 +224,68 @@ public class BitcoinSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    Utils.bytesToHexString(payloadBytes));
+                    Utils.bytesToHexString(copyPayload(payloadBytes, offset, header.size)));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, payloadBytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    Utils.bytesToHexString(copyPayload(payloadBytes, offset, header.size)) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    private static byte[] copyPayload(byte[] payloadBytes, int offset, int length) {
+        if (offset == 0 && length == payloadBytes.length)
+            return payloadBytes;
+        return Arrays.copyOfRange(payloadBytes, offset, offset + length);
+    }
+
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash,
+                                byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
+        // The big messages are read straight out of payloadBytes at the given offset. The rest are small, and make
+        // assumptions about where their data starts and ends, so they get an exact copy of their payload.
+        Message message;
+        if (command.equals("block")) {
+            message = checkSize(new Block(params, payloadBytes, offset, parseLazy, parseRetain, length), length);
+        } else if (command.equals("merkleblock")) {
+            message = checkSize(new FilteredBlock(params, payloadBytes, offset), length);
+        } else if (command.equals("tx")) {
+            Transaction tx = new Transaction(params, payloadBytes, offset, null, parseLazy, parseRetain, length);
+            if (hash != null)
+                tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
+            message = checkSize(tx, length);
+        } else if (command.equals("headers")) {
+            return checkSize(new HeadersMessage(params, payloadBytes, offset), length);
+        } else {
+            return makeSmallMessage(command, length, copyPayload(payloadBytes, offset, length), checksum);
+        }
+        if (checksum != null)
+            message.setChecksum(checksum);
+        return message;
+    }
+
+    /** Rejects a message that was parsed from beyond the end of its own payload. */
+    private static <T extends Message> T checkSize(T message, int length) throws ProtocolException {
+        if (message.getMessageSize() > length)
+            throw new ProtocolException("Message of type " + message.getClass().getSimpleName() +
+                    " overran its payload of " + length + " bytes");
+        return message;
+    }
+
+    private Message makeSmallMessage(String command, int length, byte[] payloadBytes, byte[] checksum) throws ProtocolException {
         Message message;
         if (command.equals("version")) {
             return new VersionMessage(params, payloadBytes);
         } else if (command.equals("inv")) {
             message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("block")) {
-            message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("merkleblock")) {
-            message = new FilteredBlock(params, payloadBytes);
         } else if (command.equals("getdata")) {
             message = new GetDataMessage(params, payloadBytes, parseLazy, parseRetain, length);
         } else if (command.equals("getblocks")) {
             message = new GetBlocksMessage(params, payloadBytes);
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
-            if (hash != null)
-                tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
-            message = tx;
         } else if (command.equals("addr")) {
             message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
         } else if (command.equals("ping")) {
@@ -221,12 +294,12 @@ public class BitcoinSerializer {
             message = new Pong(params, payloadBytes);
         } else if (command.equals("verack")) {
             return new VersionAck(params, payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(params, payloadBytes);
         } else if (command.equals("alert")) {
             return new AlertMessage(params, payloadBytes);
         } else if (command.equals("filterload")) {
             return new BloomFilter(params, payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
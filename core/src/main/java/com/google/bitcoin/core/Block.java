@@ -144,6 +144,21 @@ public class Block extends Message {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
     }
 
+    /**
+     * Contruct a block object from the Bitcoin wire format, reading it from a slice of a larger array.
+     * @param params NetworkParameters object.
+     * @param payloadBytes Array containing the block, possibly among other data.
+     * @param offset The location of the first byte of the block within the array.
+     * @param parseLazy Whether to perform a full parse immediately or delay until a read is requested.
+     * @param parseRetain Whether to retain the backing byte array for quick reserialization.
+     * @param length The length of the block within the array.
+     * @throws ProtocolException
+     */
+    public Block(NetworkParameters params, byte[] payloadBytes, int offset, boolean parseLazy, boolean parseRetain,
+                 int length) throws ProtocolException {
+        super(params, payloadBytes, offset, parseLazy, parseRetain, length);
+    }
+
 
     /**
      * Construct a block initialized with all the given fields.
@@ -202,7 +217,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor - offset)));
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -214,7 +229,7 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (bytes.length == cursor) {
+        if (cursor == (length == UNKNOWN_LENGTH ? bytes.length : offset + length)) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Builds the block locators sent in getblocks and getheaders messages, which tell the remote peer which blocks we
+ * have so it can find the point where our chain and its chain diverge.</p>
+ *
+ * <p>A locator lists the hashes of the top ten blocks of our chain, then goes back in steps that double each time,
+ * finishing with the genesis block. It therefore has only a few dozen entries however long the chain is, yet still
+ * lets the peer find the fork point precisely for recent forks and roughly for old ones.</p>
+ *
+ * <p>Finding the ancestors of the chain head at those heights would mean walking the whole chain back to the genesis
+ * block, so this class keeps an index of block hashes by height. It holds every block of the main chain near the head
+ * and every {@link #LANDMARK_INTERVAL}th block below that, and the steps of the locator are aligned so that only
+ * those heights are needed. The index is brought up to date each time a locator is built, by walking back from the new
+ * chain head until it reaches a block already in the index. As hashes identify the whole chain below them, finding the
+ * same hash at the same height means everything under it is still correct too. Anything above the point where the
+ * walk met the index again is replaced, so re-organizations are handled without any help from the block chain.</p>
+ *
+ * <p>Instances are thread safe. Use the one returned by {@link AbstractBlockChain#getBlockLocator()}.</p>
+ */
+public class BlockLocator {
+    /** Below the most recent blocks, only blocks at multiples of this height are kept. */
+    public static final int LANDMARK_INTERVAL = 1024;
+    // How many of the most recent blocks are all kept. Once a locator has gone back this far, its steps are at least
+    // LANDMARK_INTERVAL blocks long.
+    private static final int RECENT_BLOCKS = 2 * LANDMARK_INTERVAL + 16;
+    // How many blocks are listed one by one before the steps start to double.
+    private static final int DENSE_ENTRIES = 10;
+    // Limits how far back the first walk of a large block store goes. Older blocks only enter the index as landmarks
+    // when the chain grows past them, until then locators skip from the oldest indexed block to the genesis block.
+    private static final int MAX_WALK = 10 * LANDMARK_INTERVAL;
+
+    private final ReentrantLock lock = Threading.lock("blocklocator");
+    private final NetworkParameters params;
+    private final BlockStore blockStore;
+    // Hashes of main chain blocks by height.
+    @GuardedBy("lock") private final TreeMap<Integer, Sha256Hash> index = new TreeMap<Integer, Sha256Hash>();
+
+    public BlockLocator(NetworkParameters params, BlockStore blockStore) {
+        this.params = params;
+        this.blockStore = blockStore;
+    }
+
+    /**
+     * Returns a block locator for the chain ending with the given block, starting with that block's hash and ending with
+     * the hash of the genesis block.
+     */
+    public List<Sha256Hash> getLocator(StoredBlock chainHead) {
+        lock.lock();
+        try {
+            int headHeight = chainHead.getHeight();
+            update(chainHead);
+            List<Sha256Hash> locator = new ArrayList<Sha256Hash>(64);
+            int height = headHeight;
+            int step = 1;
+            while (height > 0) {
+                Sha256Hash hash = index.get(height);
+                if (hash == null) {
+                    // Not in the block store (eg below the checkpoint an SPV store was created from) or not indexed yet.
+                    // Carry on from the highest block we do know of below this one.
+                    Integer lower = index.lowerKey(height);
+                    if (lower == null)
+                        break;
+                    height = lower;
+                    continue;
+                }
+                locator.add(hash);
+                if (locator.size() >= DENSE_ENTRIES)
+                    step *= 2;
+                // The next height is the multiple of the step below this one, so that the same heights are used for
+                // any chain head. Once below the recent blocks only landmarks are available, so round down to those.
+                int next = (height - 1) / step * step;
+                if (next < headHeight - RECENT_BLOCKS) {
+                    step = Math.max(step, LANDMARK_INTERVAL);
+                    next = (height - 1) / step * step;
+                }
+                height = next;
+            }
+            locator.add(params.getGenesisBlock().getHash());
+            return locator;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes the index describe the chain ending with chainHead.
+    @GuardedBy("lock")
+    private void update(StoredBlock chainHead) {
+        int headHeight = chainHead.getHeight();
+        // Anything above the head belongs to a chain we are no longer on.
+        index.tailMap(headHeight, false).clear();
+        StoredBlock cursor = chainHead;
+        int walked = 0;
+        boolean joined = false;
+        try {
+            while (cursor != null && cursor.getHeight() > 0) {
+                Sha256Hash hash = cursor.getHeader().getHash();
+                Sha256Hash known = index.put(cursor.getHeight(), hash);
+                if (hash.equals(known)) {
+                    joined = true;
+                    break;
+                }
+                if (++walked >= MAX_WALK)
+                    break;
+                cursor = cursor.getPrev(blockStore);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (!joined && cursor != null) {
+            // We couldn't check that the blocks below where we stopped are still on this chain, so forget them.
+            index.headMap(cursor.getHeight()).clear();
+        }
+        // Thin out blocks that are no longer recent to the landmarks.
+        Iterator<Integer> it = index.headMap(headHeight - RECENT_BLOCKS).keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next() % LANDMARK_INTERVAL != 0)
+                it.remove();
+        }
+    }
+}
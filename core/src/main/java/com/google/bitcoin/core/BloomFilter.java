@@ -154,75 +154,138 @@ public class BloomFilter extends Message {
     private static int rotateLeft32(int x, int r) {
         return (x << r) | (x >>> (32 - r));
     }
-    
-    private int hash(int hashNum, byte[] object) {
-        // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
-        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
-        final int c1 = 0xcc9e2d51;
-        final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+    // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
+    // It is split into steps so that inputs which aren't in one array, like outpoints, can be hashed without copying.
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    private static int mixBlock(int h1, int k1) {
+        k1 *= C1;
+        k1 = rotateLeft32(k1, 15);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = rotateLeft32(h1, 13);
+        return h1 * 5 + 0xe6546b64;
+    }
+
+    private static int finish(int h1, int length) {
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    // The seed of each hash function is fixed by the protocol, so that remote peers find the same bits.
+    private int seed(int hashNum) {
+        return (int)(hashNum * 0xFBA4C795L + nTweak);
+    }
+
+    // Maps a hash to a bit of the filter, the same way the reference client does.
+    private int bitIndex(int hash) {
+        return (int)((hash & 0xFFFFFFFFL) % (data.length * 8));
+    }
+
+    private int hash(int hashNum, byte[] object, int offset, int length) {
+        int h1 = seed(hashNum);
+        int numBlocks = (length / 4) * 4;
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
+        for (int i = offset; i < offset + numBlocks; i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
                   ((object[i+3] & 0xFF) << 24);
-            
-            k1 *= c1;
-            k1 = rotateLeft32(k1, 15);
-            k1 *= c2;
-
-            h1 ^= k1;
-            h1 = rotateLeft32(h1, 13);
-            h1 = h1*5+0xe6546b64;
+            h1 = mixBlock(h1, k1);
         }
-        
+
+        int tail = offset + numBlocks;
         int k1 = 0;
-        switch(object.length & 3)
+        switch(length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
-                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
+                k1 ^= (object[tail] & 0xff);
+                k1 *= C1; k1 = rotateLeft32(k1, 15); k1 *= C2; h1 ^= k1;
                 // Fall through.
             default:
                 // Do nothing.
                 break;
         }
+        return bitIndex(finish(h1, length));
+    }
 
-        // finalization
-        h1 ^= object.length;
-        h1 ^= h1 >>> 16;
-        h1 *= 0x85ebca6b;
-        h1 ^= h1 >>> 13;
-        h1 *= 0xc2b2ae35;
-        h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+    // Same as hashing the 36 byte serialization of the outpoint: the hash with its bytes reversed, then the index as
+    // a little endian uint32. The length is a multiple of four so there is no tail.
+    private int hashOutPoint(int hashNum, byte[] txHash, long index) {
+        int h1 = seed(hashNum);
+        for (int i = 31; i > 0; i -= 4) {
+            int k1 = (txHash[i] & 0xFF) |
+                  ((txHash[i-1] & 0xFF) << 8) |
+                  ((txHash[i-2] & 0xFF) << 16) |
+                  ((txHash[i-3] & 0xFF) << 24);
+            h1 = mixBlock(h1, k1);
+        }
+        h1 = mixBlock(h1, (int) index);
+        return bitIndex(finish(h1, 36));
     }
-    
+
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
     public boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    /** Like {@link #contains(byte[])} but checks the given range of the array, without copying it. */
+    public boolean contains(byte[] object, int offset, int length) {
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, hash(i, object)))
+            if (!Utils.checkBitLE(data, hash(i, object, offset, length)))
                 return false;
         }
         return true;
     }
-    
+
+    /**
+     * Returns true if the serialized outpoint pointing to the given output matches the filter. This is the same as
+     * checking the result of {@link TransactionOutPoint#bitcoinSerialize()} without building the outpoint.
+     */
+    public boolean containsOutPoint(Sha256Hash txHash, long index) {
+        byte[] hashBytes = txHash.getBytes();
+        for (int i = 0; i < hashFuncs; i++) {
+            if (!Utils.checkBitLE(data, hashOutPoint(i, hashBytes, index)))
+                return false;
+        }
+        return true;
+    }
+
     /** Insert the given arbitrary data into the filter */
     public void insert(byte[] object) {
+        insert(object, 0, object.length);
+    }
+
+    /** Like {@link #insert(byte[])} but inserts the given range of the array, without copying it. */
+    public void insert(byte[] object, int offset, int length) {
+        for (int i = 0; i < hashFuncs; i++)
+            Utils.setBitLE(data, hash(i, object, offset, length));
+    }
+
+    /**
+     * Inserts the serialized outpoint pointing to the given output, so that transactions spending it match. This is the
+     * same as inserting the result of {@link TransactionOutPoint#bitcoinSerialize()} without building the outpoint.
+     */
+    public void insertOutPoint(Sha256Hash txHash, long index) {
+        byte[] hashBytes = txHash.getBytes();
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, hash(i, object));
+            Utils.setBitLE(data, hashOutPoint(i, hashBytes, index));
     }
 
     /**
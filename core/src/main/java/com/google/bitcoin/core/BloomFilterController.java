@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.ListenerRegistration;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Decides when the Bloom filter a {@link PeerGroup} gives to its peers has degraded enough to be replaced. Remote
+ * peers insert the outpoints of matching transactions into their copy of the filter, so over time it matches more and
+ * more transactions that aren't ours, which costs bandwidth. The block chain estimates the resulting false positive
+ * rate (see {@link AbstractBlockChain#getFalsePositiveRate()}) and counts the bytes of false positive transactions;
+ * this class compares them with their targets after each downloaded block and tells the PeerGroup what to do.</p>
+ *
+ * <p>A fresh filter is sent when the estimated rate exceeds {@link PeerGroup#MAX_FP_RATE_INCREASE} times the target
+ * rate, or when false positives use more bandwidth than {@link #setBandwidthTarget(double)} allows while the rate is
+ * above the target. To avoid flapping, nothing is done for {@link #MIN_BLOCKS_BETWEEN_UPDATES} blocks after a filter
+ * was sent. If the filter goes bad again within {@link #RETWEAK_BLOCKS} blocks, the problem is not the remote updates
+ * but the filter itself matching popular data, so the next one is built with a new random tweak. Changing the tweak
+ * gives away some privacy, as peers can intersect the old and new filters, so it is only done then.</p>
+ *
+ * <p>Decisions are published to listeners and counted; see {@link #getResendCount()} and the other getters.
+ * Instances are thread safe. Use the one returned by {@link PeerGroup#getBloomFilterController()}.</p>
+ */
+public class BloomFilterController {
+    private static final Logger log = LoggerFactory.getLogger(BloomFilterController.class);
+
+    /** After a filter was sent, how many blocks to wait before judging it. */
+    public static final int MIN_BLOCKS_BETWEEN_UPDATES = 10;
+    /** A filter that goes bad within this many blocks of being sent is replaced by one with a new tweak. */
+    public static final int RETWEAK_BLOCKS = 100;
+    // How quickly the bandwidth estimate follows changes, as a fraction of the old estimate kept per second.
+    private static final double BANDWIDTH_DECAY_PER_SEC = 0.99;
+
+    /** What the controller decided to do about the filter. */
+    public enum Action {
+        /** Recalculate the filter and send it to all peers. */
+        RESEND,
+        /** Pick a new tweak, then recalculate the filter and send it to all peers. */
+        RETWEAK
+    }
+
+    /** Why the controller decided to act. */
+    public enum Reason {
+        /** The estimated false positive rate got too far above the target. */
+        FALSE_POSITIVE_RATE,
+        /** False positive transactions used more bandwidth than allowed. */
+        BANDWIDTH
+    }
+
+    /** Receives the decisions of a controller. */
+    public interface Listener {
+        /**
+         * Called after the controller decided to replace the filter, with the estimates that made it do so.
+         *
+         * @param falsePositiveRate        the estimated false positive rate, see {@link AbstractBlockChain#getFalsePositiveRate()}
+         * @param falsePositiveBytesPerSec how many bytes per second of false positive transactions were received recently
+         */
+        void onFilterUpdate(BloomFilterController controller, Action action, Reason reason, double falsePositiveRate,
+                            double falsePositiveBytesPerSec);
+    }
+
+    private final ReentrantLock lock = Threading.lock("bloomcontroller");
+    private final CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners =
+            new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
+
+    @GuardedBy("lock") private double bandwidthTarget = Double.POSITIVE_INFINITY;
+    @GuardedBy("lock") private int blocksSinceUpdate = MIN_BLOCKS_BETWEEN_UPDATES;
+    @GuardedBy("lock") private boolean recentlyUpdated;
+    @GuardedBy("lock") private long lastFalsePositiveBytes = -1;
+    @GuardedBy("lock") private long lastCheckMillis;
+    @GuardedBy("lock") private double falsePositiveBytesPerSec;
+    @GuardedBy("lock") private int resendCount, retweakCount;
+
+    /**
+     * Sets how many bytes per second of false positive transactions are acceptable. When more arrive while the false
+     * positive rate is above its target, the filter is refreshed even if the rate is not high enough to trigger that
+     * by itself. The default is no limit.
+     */
+    public void setBandwidthTarget(double bytesPerSec) {
+        checkArgument(bytesPerSec > 0);
+        lock.lock();
+        try {
+            bandwidthTarget = bytesPerSec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getBandwidthTarget() {
+        lock.lock();
+        try {
+            return bandwidthTarget;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Looks at the estimates after a block was downloaded and returns what should be done about the filter, or null if
+     * nothing. A non-null result is assumed to be carried out: the estimate of the chain is reset and the
+     * controller waits a while before judging the new filter.
+     *
+     * @param chain      the chain the estimates come from
+     * @param targetRate the false positive rate the filter was built for
+     */
+    @Nullable
+    Action onBlock(AbstractBlockChain chain, double targetRate) {
+        final Action action;
+        final Reason reason;
+        final double rate = chain.getFalsePositiveRate();
+        final double bytesPerSec;
+        lock.lock();
+        try {
+            bytesPerSec = updateBandwidth(chain.getFalsePositiveBytes());
+            blocksSinceUpdate++;
+            if (blocksSinceUpdate < MIN_BLOCKS_BETWEEN_UPDATES)
+                return null;
+            if (rate > targetRate * PeerGroup.MAX_FP_RATE_INCREASE)
+                reason = Reason.FALSE_POSITIVE_RATE;
+            else if (rate > targetRate && bytesPerSec > bandwidthTarget)
+                reason = Reason.BANDWIDTH;
+            else
+                return null;
+            if (recentlyUpdated && blocksSinceUpdate <= RETWEAK_BLOCKS) {
+                action = Action.RETWEAK;
+                retweakCount++;
+            } else {
+                action = Action.RESEND;
+                resendCount++;
+            }
+            blocksSinceUpdate = 0;
+            recentlyUpdated = true;
+            // The new filter will start from a clean slate.
+            falsePositiveBytesPerSec = 0;
+        } finally {
+            lock.unlock();
+        }
+        log.info("Replacing Bloom filter ({}) due to {}: rate {} for target {}, {} false positive bytes/sec",
+                action, reason, rate, targetRate, (long) bytesPerSec);
+        for (final ListenerRegistration<Listener> registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onFilterUpdate(BloomFilterController.this, action, reason, rate, bytesPerSec);
+                }
+            });
+        }
+        return action;
+    }
+
+    /** Called when the filter was replaced for some other reason, eg because keys were added. */
+    void onFilterSent() {
+        lock.lock();
+        try {
+            blocksSinceUpdate = 0;
+            recentlyUpdated = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private double updateBandwidth(long totalBytes) {
+        long now = Utils.currentTimeMillis();
+        if (lastFalsePositiveBytes >= 0 && now > lastCheckMillis) {
+            double secs = (now - lastCheckMillis) / 1000.0;
+            double decay = Math.pow(BANDWIDTH_DECAY_PER_SEC, secs);
+            double rate = (totalBytes - lastFalsePositiveBytes) / secs;
+            falsePositiveBytesPerSec = decay * falsePositiveBytesPerSec + (1 - decay) * rate;
+        }
+        if (lastFalsePositiveBytes < 0 || now > lastCheckMillis) {
+            lastFalsePositiveBytes = totalBytes;
+            lastCheckMillis = now;
+        }
+        return falsePositiveBytesPerSec;
+    }
+
+    /** Returns how many bytes per second of false positive transactions were received recently. */
+    public double getFalsePositiveBytesPerSec() {
+        lock.lock();
+        try {
+            return falsePositiveBytesPerSec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times the controller had the filter resent with the same tweak. */
+    public int getResendCount() {
+        lock.lock();
+        try {
+            return resendCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times the controller had the filter rebuilt with a new tweak. */
+    public int getRetweakCount() {
+        lock.lock();
+        try {
+            return retweakCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a listener that is told about decisions on the user thread. */
+    public void addListener(Listener listener) {
+        addListener(listener, Threading.USER_THREAD);
+    }
+
+    /** Adds a listener that is told about decisions using the given executor. */
+    public void addListener(Listener listener, Executor executor) {
+        listeners.add(new ListenerRegistration<Listener>(listener, executor));
+    }
+
+    /** Removes the given listener, returning true if it was registered. */
+    public boolean removeListener(Listener listener) {
+        return ListenerRegistration.removeFromList(listener, listeners);
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain from several peers at once.</p>
+ *
+ * <p>The download driven by {@link Peer#startBlockChainDownload()} asks a single peer for an inventory of blocks with
+ * getblocks, fetches them and repeats, so it can never go faster than that one peer's upload speed and round trip
+ * time allow. This class learns the header chain from one peer with getheaders instead, then fetches the blocks (or
+ * filtered blocks) from every suitable peer it is given, keeping a window of getdata requests in flight at each. Blocks
+ * may arrive out of order, so they are buffered and added to the chain strictly in order. Headers from before the
+ * fast catchup time are added to the chain directly, as with the single peer download.</p>
+ *
+ * <p>Work outstanding at a peer which stops delivering is given to the others, and the block the whole download is
+ * waiting for is requested again from an idle peer if it takes too long to arrive.</p>
+ *
+ * <p>Once the headers run out and every block is in the chain, or if the download can't continue (eg a block fails
+ * to connect), the scheduler detaches from its peers and tells its {@link Listener}. That is expected to hand over to
+ * the single peer download, which picks up anything solved in the meantime.</p>
+ *
+ * <p>This class is used by {@link PeerGroup}, see {@link PeerGroup#setMaxBlockDownloadPeers(int)}.</p>
+ */
+class ChainDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ChainDownloadScheduler.class);
+
+    /** How many blocks may be requested from a single peer at once. */
+    static final int MAX_IN_FLIGHT_PER_PEER = 16;
+    /** A peer which has had requests outstanding this long without delivering anything is considered stalled. */
+    static final long STALL_TIMEOUT_MILLIS = 30 * 1000;
+    /** The block everything else is waiting for is requested from another peer too if it takes longer than this. */
+    static final long SLOW_BLOCK_MILLIS = 5 * 1000;
+    // If nothing at all was added to the chain for this long, give up and let the single peer download take over.
+    private static final long GIVE_UP_MILLIS = 4 * STALL_TIMEOUT_MILLIS;
+    // How far past the next block to connect we request blocks, which bounds how many have to be buffered. Full blocks
+    // can be large so fewer of them are allowed.
+    private static final int MAX_FILTERED_BLOCKS_AHEAD = 1000;
+    private static final int MAX_FULL_BLOCKS_AHEAD = 100;
+
+    interface Listener {
+        /**
+         * Called once when the scheduler stops, without any of its locks held. completed is true if the chain was
+         * downloaded up to the last header the header peer knew of, and false if the download was abandoned.
+         */
+        void onChainDownloadFinished(ChainDownloadScheduler scheduler, boolean completed);
+    }
+
+    // Blocks are added to the chain with connectLock held, so that they go in one at a time and in order, but without
+    // lock, as adding a block runs wallet and peer event listeners. connectLock is always taken before lock.
+    private final ReentrantLock connectLock = Threading.lock("chainDownloadConnect");
+    private final ReentrantLock lock = Threading.lock("chainDownload");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final int maxPeers;
+    private final boolean useFilteredBlocks;
+    private final long fastCatchupTimeSecs;
+    private final int maxBlocksAhead;
+    private final Listener listener;
+
+    // A peer that we fetch blocks from, and the heights of the blocks we are waiting for it to send.
+    private static class Worker {
+        final Peer peer;
+        final TreeSet<Integer> inFlight = new TreeSet<Integer>();
+        // When the peer last delivered a block, or when it was given work while idle.
+        long lastProgressMillis;
+
+        Worker(Peer peer) {
+            this.peer = peer;
+        }
+    }
+
+    @GuardedBy("lock") private final Map<Peer, Worker> workers = new LinkedHashMap<Peer, Worker>();
+    // Every peer we set ourselves on with Peer.setChainDownload, so we can detach from them at the end.
+    @GuardedBy("lock") private final Set<Peer> attached = new HashSet<Peer>();
+    // The peer whose listeners are told about downloaded blocks: the PeerGroup's download peer.
+    @GuardedBy("lock") @Nullable private Peer downloadPeer;
+    // The peer we ask for headers. Normally the download peer, unless that stopped answering.
+    @GuardedBy("lock") @Nullable private Peer headerPeer;
+    @GuardedBy("lock") private boolean headersRequested;
+    @GuardedBy("lock") private long headersRequestedMillis;
+    @GuardedBy("lock") private boolean headersDone;
+    // The last header we know of. Blocks up to here are either in the chain already or in pending.
+    @GuardedBy("lock") private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    // Set once a header was queued for its block to be fetched, after which no more headers are added directly.
+    @GuardedBy("lock") private boolean bodiesStarted;
+    // Blocks we know the headers of but which aren't in the chain yet, by height.
+    @GuardedBy("lock") private final TreeMap<Integer, Sha256Hash> pending = new TreeMap<Integer, Sha256Hash>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Integer> pendingHeights = new HashMap<Sha256Hash, Integer>();
+    // Heights of pending blocks that nobody is being asked for at the moment.
+    @GuardedBy("lock") private final TreeSet<Integer> unrequested = new TreeSet<Integer>();
+    // When each block in flight was last requested.
+    @GuardedBy("lock") private final Map<Integer, Long> requestTimes = new HashMap<Integer, Long>();
+    // Blocks which are ready to be added to the chain: Blocks (possibly just headers) or FilteredBlocks.
+    @GuardedBy("lock") private final TreeMap<Integer, Message> received = new TreeMap<Integer, Message>();
+    @GuardedBy("lock") private int nextToConnect;
+    @GuardedBy("lock") private long lastConnectMillis;
+    @GuardedBy("lock") private boolean finished;
+
+    /**
+     * @param maxPeers How many peers blocks are fetched from at once.
+     * @param useFilteredBlocks Whether to ask for filtered blocks instead of full blocks. Only peers which support
+     *                          Bloom filtering are used in that case.
+     * @param fastCatchupTimeSecs Headers from before this time are added to the chain without fetching their blocks.
+     */
+    ChainDownloadScheduler(NetworkParameters params, AbstractBlockChain chain, int maxPeers,
+                           boolean useFilteredBlocks, long fastCatchupTimeSecs, Listener listener) {
+        checkArgument(maxPeers > 0);
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.maxPeers = maxPeers;
+        this.useFilteredBlocks = useFilteredBlocks;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.maxBlocksAhead = useFilteredBlocks ? MAX_FILTERED_BLOCKS_AHEAD : MAX_FULL_BLOCKS_AHEAD;
+        this.listener = checkNotNull(listener);
+    }
+
+    /**
+     * Starts downloading from the chain head, asking downloadPeer for headers and fetching blocks from it and the given
+     * other peers.
+     */
+    void start(Peer downloadPeer, Collection<Peer> peers) {
+        StoredBlock chainHead = chain.getChainHead();
+        lock.lock();
+        try {
+            lastHeaderHash = chainHead.getHeader().getHash();
+            lastHeaderHeight = chainHead.getHeight();
+            nextToConnect = lastHeaderHeight + 1;
+            lastConnectMillis = Utils.currentTimeMillis();
+            log.info("Starting parallel chain download from height {}", lastHeaderHeight);
+            setDownloadPeerLocked(downloadPeer);
+            for (Peer peer : peers)
+                addPeerLocked(peer);
+            assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the given peer the one asked for headers and whose listeners hear about downloaded blocks, eg because the
+     * previous one disconnected.
+     */
+    void setDownloadPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            setDownloadPeerLocked(peer);
+            assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Offers a newly connected peer to fetch blocks from. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            addPeerLocked(peer);
+            assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops using a peer, eg because it disconnected. Its outstanding requests are given to other peers. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            Worker worker = workers.remove(peer);
+            if (worker != null)
+                returnWorkLocked(worker);
+            if (attached.remove(peer))
+                peer.setChainDownload(null);
+            if (peer == downloadPeer)
+                downloadPeer = null;
+            if (peer == headerPeer) {
+                headerPeer = null;
+                headersRequested = false;
+            }
+            assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the download without telling the listener, eg because the PeerGroup is shutting down. */
+    void stop() {
+        detach();
+    }
+
+    boolean isFinished() {
+        lock.lock();
+        try {
+            return finished;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by a peer when it receives headers. */
+    void headersReceived(Peer peer, HeadersMessage m) {
+        boolean abandon = false;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            if (peer != headerPeer || !headersRequested) {
+                log.info("{}: Ignoring headers we did not ask for", peer);
+                return;
+            }
+            headersRequested = false;
+            List<Block> headers = m.getBlockHeaders();
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(lastHeaderHash)) {
+                    // The peer is on a different fork to the headers we already have. Rather than trying to unwind
+                    // our pending blocks, let the single peer download sort it out.
+                    log.warn("{}: Header {} does not follow on from {}, abandoning parallel download", peer,
+                            header.getHashAsString(), lastHeaderHash);
+                    abandon = true;
+                    break;
+                }
+                int height = lastHeaderHeight + 1;
+                Sha256Hash hash = header.getHash();
+                pending.put(height, hash);
+                pendingHeights.put(hash, height);
+                // Process headers until we pass the fast catchup time, or are about to catch up with the head of the
+                // chain - always fetch the last block in full so the wallets see it.
+                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
+                boolean reachedTop = height >= peer.getBestHeight();
+                if (!bodiesStarted && !passedTime && !reachedTop) {
+                    received.put(height, header);
+                } else {
+                    if (!bodiesStarted)
+                        log.info("Fetching blocks from height {}", height);
+                    bodiesStarted = true;
+                    unrequested.add(height);
+                }
+                lastHeaderHash = hash;
+                lastHeaderHeight = height;
+            }
+            if (!abandon) {
+                lastConnectMillis = Utils.currentTimeMillis();
+                // Ask for more if we got up to the limit, otherwise we've reached the end of the peer's chain.
+                if (headers.size() >= HeadersMessage.MAX_HEADERS) {
+                    requestHeadersLocked();
+                } else {
+                    log.info("Got all headers up to height {}", lastHeaderHeight);
+                    headersDone = true;
+                }
+                assignWorkLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (abandon)
+            finish(false);
+        else
+            connectReadyBlocks();
+    }
+
+    /**
+     * Called by a peer when it receives a block or a complete filtered block. Returns false if the block wasn't one
+     * we were waiting for, in which case the peer should drop it.
+     */
+    boolean blockReceived(Peer peer, Sha256Hash hash, Message block) {
+        checkArgument(block instanceof Block || block instanceof FilteredBlock);
+        lock.lock();
+        try {
+            if (finished)
+                return false;
+            Integer height = pendingHeights.get(hash);
+            if (height == null)
+                return false;
+            Worker worker = workers.get(peer);
+            if (worker != null)
+                worker.lastProgressMillis = Utils.currentTimeMillis();
+            // It may have been requested from more than one peer, in which case the others' copies are now redundant.
+            for (Worker w : workers.values())
+                w.inFlight.remove(height);
+            requestTimes.remove(height);
+            unrequested.remove(height);
+            if (!received.containsKey(height))
+                received.put(height, block);
+            assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        connectReadyBlocks();
+        return true;
+    }
+
+    /** Called by a peer which told us it doesn't have some of the items we asked it for. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            Worker worker = workers.get(peer);
+            if (worker == null)
+                return;
+            boolean missingBlock = false;
+            for (InventoryItem item : items) {
+                Integer height = pendingHeights.get(item.hash);
+                if (height != null && worker.inFlight.contains(height))
+                    missingBlock = true;
+            }
+            if (!missingBlock)
+                return;
+            // A peer that is missing blocks of the chain we're downloading is no use to us.
+            log.info("{}: Does not have blocks we asked for, no longer fetching blocks from it", peer);
+            workers.remove(peer);
+            returnWorkLocked(worker);
+            assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes work away from peers which stopped delivering blocks and asks another peer for headers if the header peer
+     * stopped answering. Should be called every few seconds.
+     */
+    void checkForStalls() {
+        boolean giveUp = false;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            long now = Utils.currentTimeMillis();
+            for (Iterator<Worker> it = workers.values().iterator(); it.hasNext(); ) {
+                Worker worker = it.next();
+                if (!worker.inFlight.isEmpty() && now - worker.lastProgressMillis > STALL_TIMEOUT_MILLIS) {
+                    log.info("{}: Stalled with {} blocks outstanding, giving its work to other peers", worker.peer,
+                            worker.inFlight.size());
+                    it.remove();
+                    returnWorkLocked(worker);
+                }
+            }
+            if (headersRequested && now - headersRequestedMillis > STALL_TIMEOUT_MILLIS) {
+                for (Worker worker : workers.values()) {
+                    if (worker.peer != headerPeer) {
+                        log.info("{}: Did not answer getheaders, asking {} instead", headerPeer, worker.peer);
+                        headerPeer = worker.peer;
+                        requestHeadersLocked();
+                        break;
+                    }
+                }
+            }
+            giveUp = !pending.isEmpty() && now - lastConnectMillis > GIVE_UP_MILLIS;
+            if (giveUp)
+                log.warn("No blocks added to the chain for {} seconds, abandoning parallel download",
+                        GIVE_UP_MILLIS / 1000);
+            else
+                assignWorkLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (giveUp)
+            finish(false);
+    }
+
+    @GuardedBy("lock")
+    private void setDownloadPeerLocked(Peer peer) {
+        addPeerLocked(peer);
+        if (attached.add(peer))
+            peer.setChainDownload(this);
+        downloadPeer = peer;
+        if (headerPeer != peer) {
+            headerPeer = peer;
+            headersRequested = false;
+            requestHeadersLocked();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addPeerLocked(Peer peer) {
+        if (workers.containsKey(peer) || workers.size() >= maxPeers)
+            return;
+        if (useFilteredBlocks && !peer.getPeerVersionMessage().isBloomFilteringSupported())
+            return;
+        workers.put(peer, new Worker(peer));
+        if (attached.add(peer))
+            peer.setChainDownload(this);
+        log.info("{}: Fetching blocks from this peer, {} in total", peer, workers.size());
+    }
+
+    @GuardedBy("lock")
+    private void requestHeadersLocked() {
+        if (headerPeer == null || headersDone || headersRequested)
+            return;
+        // Ask for the headers following our last one. In case the peer doesn't know that header, the locator carries
+        // on with the chain we already have.
+        StoredBlock chainHead = chain.getChainHead();
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>();
+        if (!lastHeaderHash.equals(chainHead.getHeader().getHash()))
+            locator.add(lastHeaderHash);
+        locator.addAll(chain.getBlockLocator().getLocator(chainHead));
+        headersRequested = true;
+        headersRequestedMillis = Utils.currentTimeMillis();
+        headerPeer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    // Makes the blocks a worker was asked for available to other workers again.
+    @GuardedBy("lock")
+    private void returnWorkLocked(Worker worker) {
+        for (int height : worker.inFlight) {
+            boolean elsewhere = false;
+            for (Worker w : workers.values())
+                elsewhere |= w != worker && w.inFlight.contains(height);
+            if (!elsewhere) {
+                requestTimes.remove(height);
+                unrequested.add(height);
+            }
+        }
+        worker.inFlight.clear();
+    }
+
+    // Tops up the window of every worker with the lowest blocks nobody is being asked for.
+    @GuardedBy("lock")
+    private void assignWorkLocked() {
+        long now = Utils.currentTimeMillis();
+        int limit = nextToConnect + maxBlocksAhead;
+        InventoryItem.Type type = useFilteredBlocks ? InventoryItem.Type.FilteredBlock : InventoryItem.Type.Block;
+        for (Worker worker : workers.values()) {
+            if (worker.inFlight.size() >= MAX_IN_FLIGHT_PER_PEER)
+                continue;
+            long bestHeight = worker.peer.getBestHeight();
+            GetDataMessage getdata = new GetDataMessage(params);
+            for (Iterator<Integer> it = unrequested.iterator(); it.hasNext(); ) {
+                int height = it.next();
+                if (height >= limit || height > bestHeight || worker.inFlight.size() >= MAX_IN_FLIGHT_PER_PEER)
+                    break;
+                it.remove();
+                requestLocked(worker, height, now);
+                getdata.addItem(new InventoryItem(type, pending.get(height)));
+            }
+            // With nothing else to do, help out with the block everything else is waiting for if it is late.
+            Long requested = requestTimes.get(nextToConnect);
+            if (getdata.getItems().isEmpty() && requested != null && now - requested > SLOW_BLOCK_MILLIS &&
+                    !worker.inFlight.contains(nextToConnect) && nextToConnect <= bestHeight) {
+                log.info("{}: Block {} is late, asking this peer for it too", worker.peer, nextToConnect);
+                requestLocked(worker, nextToConnect, now);
+                getdata.addItem(new InventoryItem(type, pending.get(nextToConnect)));
+            }
+            if (getdata.getItems().isEmpty())
+                continue;
+            worker.peer.sendMessage(getdata);
+            // The transactions of a filtered block follow it, and the peer only knows the block is over when the next
+            // message arrives, so make sure there is one after the last block.
+            if (useFilteredBlocks)
+                worker.peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    @GuardedBy("lock")
+    private void requestLocked(Worker worker, int height, long now) {
+        if (worker.inFlight.isEmpty())
+            worker.lastProgressMillis = now;
+        worker.inFlight.add(height);
+        requestTimes.put(height, now);
+    }
+
+    // Adds buffered blocks to the chain for as long as the next one is available.
+    private void connectReadyBlocks() {
+        connectLock.lock();
+        try {
+            while (true) {
+                Message next;
+                Peer notify;
+                lock.lock();
+                try {
+                    if (finished)
+                        return;
+                    next = received.remove(nextToConnect);
+                    if (next == null) {
+                        if (!headersDone || !pending.isEmpty())
+                            return;
+                        // Fall through to finish(true) below, outside the lock.
+                    }
+                    notify = downloadPeer;
+                } finally {
+                    lock.unlock();
+                }
+                if (next == null) {
+                    log.info("Parallel chain download complete");
+                    finish(true);
+                    return;
+                }
+                Block header = next instanceof FilteredBlock ? ((FilteredBlock) next).getBlockHeader() : (Block) next;
+                boolean connected;
+                try {
+                    if (next instanceof FilteredBlock)
+                        connected = chain.add((FilteredBlock) next);
+                    else
+                        connected = chain.add((Block) next);
+                    if (!connected)
+                        log.warn("Block {} did not connect to the chain, abandoning parallel download",
+                                header.getHashAsString());
+                } catch (VerificationException e) {
+                    log.warn("Block " + header.getHashAsString() + " failed verification, abandoning parallel download", e);
+                    connected = false;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                }
+                if (!connected) {
+                    finish(false);
+                    return;
+                }
+                lock.lock();
+                try {
+                    pendingHeights.remove(pending.remove(nextToConnect));
+                    nextToConnect++;
+                    lastConnectMillis = Utils.currentTimeMillis();
+                    assignWorkLocked();
+                } finally {
+                    lock.unlock();
+                }
+                if (notify != null)
+                    notify.invokeOnBlocksDownloaded(header);
+            }
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    // Returns true if this call is the one that finished the download.
+    private boolean detach() {
+        List<Peer> peers;
+        lock.lock();
+        try {
+            if (finished)
+                return false;
+            finished = true;
+            peers = new ArrayList<Peer>(attached);
+            attached.clear();
+            workers.clear();
+            pending.clear();
+            pendingHeights.clear();
+            unrequested.clear();
+            requestTimes.clear();
+            received.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Peer peer : peers) {
+            if (peer.getChainDownload() == this)
+                peer.setChainDownload(null);
+        }
+        return true;
+    }
+
+    private void finish(boolean completed) {
+        if (detach())
+            listener.onChainDownloadFinished(this, completed);
+    }
+}
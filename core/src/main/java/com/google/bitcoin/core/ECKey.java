@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.crypto.Secp256k1;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -29,13 +30,8 @@ import org.spongycastle.asn1.*;
 import org.spongycastle.asn1.sec.SECNamedCurves;
 import org.spongycastle.asn1.x9.X9ECParameters;
 import org.spongycastle.asn1.x9.X9IntegerConverter;
-import org.spongycastle.crypto.AsymmetricCipherKeyPair;
-import org.spongycastle.crypto.generators.ECKeyPairGenerator;
 import org.spongycastle.crypto.params.*;
-import org.spongycastle.crypto.signers.ECDSASigner;
-import org.spongycastle.math.ec.ECAlgorithms;
 import org.spongycastle.math.ec.ECCurve;
-import org.spongycastle.math.ec.ECPoint;
 import org.spongycastle.util.encoders.Base64;
 
 import javax.annotation.Nullable;
@@ -118,35 +114,27 @@ public class ECKey implements Serializable {
      * (32 for the co-ordinate and 1 byte to represent the y bit).
      */
     public ECKey() {
-        ECKeyPairGenerator generator = new ECKeyPairGenerator();
-        ECKeyGenerationParameters keygenParams = new ECKeyGenerationParameters(CURVE, secureRandom);
-        generator.init(keygenParams);
-        AsymmetricCipherKeyPair keypair = generator.generateKeyPair();
-        ECPrivateKeyParameters privParams = (ECPrivateKeyParameters) keypair.getPrivate();
-        ECPublicKeyParameters pubParams = (ECPublicKeyParameters) keypair.getPublic();
-        priv = privParams.getD();
-        // Unfortunately Bouncy Castle does not let us explicitly change a point to be compressed, even though it
-        // could easily do so. We must re-build it here so the ECPoints withCompression flag can be set to true.
-        ECPoint uncompressed = pubParams.getQ();
-        ECPoint compressed = compressPoint(uncompressed);
-        pub = compressed.getEncoded();
+        // Pick a private key uniformly in [1, n), the same way Bouncy Castle's ECKeyPairGenerator does.
+        BigInteger n = CURVE.getN();
+        BigInteger d;
+        do {
+            d = new BigInteger(n.bitLength(), secureRandom);
+        } while (d.signum() == 0 || d.compareTo(n) >= 0);
+        priv = d;
+        pub = publicKeyFromPrivate(priv, true);
 
         creationTimeSeconds = Utils.currentTimeMillis() / 1000;
     }
 
-    private static ECPoint compressPoint(ECPoint uncompressed) {
-        return new ECPoint.Fp(CURVE.getCurve(), uncompressed.getX(), uncompressed.getY(), true);
-    }
-
     /**
      * Construct an ECKey from an ASN.1 encoded private key. These are produced by OpenSSL and stored by the Bitcoin
-     * reference implementation in its wallet. Note that this is slow because it requires an EC point multiply.
+     * reference implementation in its wallet. The public key is derived with an EC point multiply.
      */
     public static ECKey fromASN1(byte[] asn1privkey) {
         return new ECKey(extractPrivateKeyFromASN1(asn1privkey));
     }
 
-    /** Creates an ECKey given the private key only.  The public key is calculated from it (this is slow) */
+    /** Creates an ECKey given the private key only.  The public key is calculated from it. */
     public ECKey(BigInteger privKey) {
         this(privKey, (byte[])null);
     }
@@ -181,7 +169,7 @@ public class ECKey implements Serializable {
 
     /**
      * Creates an ECKey given either the private key only, the public key only, or both. If only the private key 
-     * is supplied, the public key will be calculated from it (this is slow). If both are supplied, it's assumed
+     * is supplied, the public key will be calculated from it. If both are supplied, it's assumed
      * the public key already correctly matches the public key. If only the public key is supplied, this ECKey cannot
      * be used for signing.
      * @param compressed If set to true and pubKey is null, the derived public key will be in compressed form.
@@ -204,7 +192,7 @@ public class ECKey implements Serializable {
 
     /**
      * Creates an ECKey given either the private key only, the public key only, or both. If only the private key
-     * is supplied, the public key will be calculated from it (this is slow). If both are supplied, it's assumed
+     * is supplied, the public key will be calculated from it. If both are supplied, it's assumed
      * the public key already correctly matches the public key. If only the public key is supplied, this ECKey cannot
      * be used for signing.
      */
@@ -251,10 +239,7 @@ public class ECKey implements Serializable {
      * new BigInteger(1, bytes);</tt>
      */
     public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
-        ECPoint point = CURVE.getG().multiply(privKey);
-        if (compressed)
-            point = compressPoint(point);
-        return point.getEncoded();
+        return Secp256k1.publicKeyFromPrivate(privKey, compressed);
     }
 
     /** Gets the hash160 form of the public key (as seen in addresses). */
@@ -424,6 +409,20 @@ public class ECKey implements Serializable {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    /**
+     * If this global variable is set to true and native secp256k1 code is in use, every native verification is redone
+     * with the pure Java implementation and an IllegalStateException is thrown if they disagree. This is very slow
+     * and intended for testing new builds of the native library. It can also be switched on with
+     * <tt>-Dbitcoinj.secp256k1.crosscheck=true</tt>.
+     */
+    @VisibleForTesting
+    public static boolean CROSS_CHECK_NATIVE = Boolean.getBoolean("bitcoinj.secp256k1.crosscheck");
+
+    private static void crossCheck(boolean agrees, String operation) {
+        if (!agrees)
+            throw new IllegalStateException("Native secp256k1 and pure Java results differ for " + operation);
+    }
+
     /**
      * Signs the given hash and returns the R and S components as BigIntegers. In the Bitcoin protocol, they are
      * usually encoded using DER format, so you want {@link com.google.bitcoin.core.ECKey.ECDSASignature#encodeToDER()}
@@ -463,10 +462,7 @@ public class ECKey implements Serializable {
             }
         }
 
-        ECDSASigner signer = new ECDSASigner();
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
-        signer.init(true, privKey);
-        BigInteger[] components = signer.generateSignature(input.getBytes());
+        BigInteger[] components = Secp256k1.sign(input.getBytes(), privateKeyForSigning);
         final ECDSASignature signature = new ECDSASignature(components[0], components[1]);
         signature.ensureCanonical();
         return signature;
@@ -486,21 +482,17 @@ public class ECKey implements Serializable {
         if (FAKE_SIGNATURES)
             return true;
 
-        if (NativeSecp256k1.enabled)
-            return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
-
-        ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
-        signer.init(false, params);
-        try {
-            return signer.verifySignature(data, signature.r, signature.s);
-        } catch (NullPointerException e) {
-            // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
-            // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
-            log.error("Caught NPE inside bouncy castle");
-            e.printStackTrace();
-            return false;
+        if (NativeSecp256k1.enabled) {
+            boolean valid = NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
+            if (CROSS_CHECK_NATIVE)
+                crossCheck(valid == verifyJava(data, signature, pub), "verification");
+            return valid;
         }
+        return verifyJava(data, signature, pub);
+    }
+
+    private static boolean verifyJava(byte[] data, ECDSASignature signature, byte[] pub) {
+        return Secp256k1.verify(data, signature.r, signature.s, pub);
     }
 
     /**
@@ -511,11 +503,49 @@ public class ECKey implements Serializable {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
-        if (NativeSecp256k1.enabled)
+        if (NativeSecp256k1.enabled && !CROSS_CHECK_NATIVE)
             return NativeSecp256k1.verify(data, signature, pub);
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
 
+    /**
+     * <p>Verifies many ASN.1 encoded ECDSA signatures at once. The three arrays must be the same length, and entry i
+     * of the returned array is true if signatures[i] is a valid signature of data[i] by pubs[i].</p>
+     *
+     * <p>This is equivalent to calling {@link ECKey#verify(byte[], byte[], byte[])} for each entry, except that a
+     * malformed signature or key only fails its own entry instead of throwing. The native library only offers single
+     * verification, so entries are checked one by one and there is no speed up over calling verify yourself.</p>
+     */
+    public static boolean[] verifyBatch(byte[][] data, byte[][] signatures, byte[][] pubs) {
+        checkArgument(data.length == signatures.length && data.length == pubs.length,
+                "Batch arrays must be of equal length");
+        if (FAKE_SIGNATURES) {
+            boolean[] results = new boolean[data.length];
+            Arrays.fill(results, true);
+            return results;
+        }
+        boolean[] results = new boolean[data.length];
+        for (int i = 0; i < data.length; i++)
+            results[i] = verifyDERQuietly(data[i], signatures[i], pubs[i]);
+        return results;
+    }
+
+    private static boolean verifyDERQuietly(byte[] data, byte[] signature, byte[] pub) {
+        // A malformed signature or key only fails its own entry, not the whole batch. Cross check failures are not
+        // swallowed.
+        ECDSASignature sig;
+        try {
+            sig = ECDSASignature.decodeFromDER(signature);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        try {
+            return verify(data, sig, pub);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
@@ -730,10 +760,11 @@ public class ECKey implements Serializable {
         }
         // Compressed keys require you to know an extra bit of data about the y-coord as there are two possibilities.
         // So it's encoded in the recId.
-        ECPoint R = decompressKey(x, (recId & 1) == 1);
-        //   1.4. If nR != point at infinity, then do another iteration of Step 1 (callers responsibility).
-        if (!R.multiply(n).isInfinity())
+        byte[] R = decompressKey(x, (recId & 1) == 1);
+        if (R == null)
             return null;
+        //   1.4. If nR != point at infinity, then do another iteration of Step 1 (callers responsibility).
+        //        secp256k1 has a cofactor of 1, so every point on the curve has order n and this always holds.
         //   1.5. Compute e from M using Steps 2 and 3 of ECDSA signature verification.
         BigInteger e = message.toBigInteger();
         //   1.6. For k from 1 to 2 do the following.   (loop is outside this function via iterating recId)
@@ -751,20 +782,22 @@ public class ECKey implements Serializable {
         BigInteger rInv = sig.r.modInverse(n);
         BigInteger srInv = rInv.multiply(sig.s).mod(n);
         BigInteger eInvrInv = rInv.multiply(eInv).mod(n);
-        ECPoint.Fp q = (ECPoint.Fp) ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), eInvrInv, R, srInv);
-        if (compressed) {
-            // We have to manually recompress the point as the compressed-ness gets lost when multiply() is used.
-            q = new ECPoint.Fp(curve, q.getX(), q.getY(), true);
-        }
-        return new ECKey((byte[])null, q.getEncoded());
+        byte[] q = Secp256k1.sumOfMultiplies(eInvrInv, srInv, R, compressed);
+        if (q == null)
+            return null;
+        return new ECKey((byte[])null, q);
     }
 
-    /** Decompress a compressed public key (x co-ord and low-bit of y-coord). */
-    private static ECPoint decompressKey(BigInteger xBN, boolean yBit) {
+    /**
+     * Decompress a compressed public key (x co-ord and low-bit of y-coord), returning the uncompressed encoding or
+     * null if x is not on the curve.
+     */
+    @Nullable
+    private static byte[] decompressKey(BigInteger xBN, boolean yBit) {
         X9IntegerConverter x9 = new X9IntegerConverter();
         byte[] compEnc = x9.integerToBytes(xBN, 1 + x9.getByteLength(CURVE.getCurve()));
         compEnc[0] = (byte)(yBit ? 0x03 : 0x02);
-        return CURVE.getCurve().decodePoint(compEnc);
+        return Secp256k1.decompress(compEnc);
     }
 
     /**
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The "filteradd" message inserts one more element into the {@link BloomFilter} a remote peer already has for the
+ * connection, so that a filter which only needs to grow a little doesn't have to be sent again in full.
+ */
+public class FilterAddMessage extends Message {
+    /** Elements larger than this are rejected by remote peers, it's the largest piece of data a script can push. */
+    public static final int MAX_DATA_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public FilterAddMessage(byte[] data) {
+        checkArgument(data.length <= MAX_DATA_SIZE, "Bloom filter element too large: %s bytes", data.length);
+        this.data = data;
+    }
+
+    /** Returns the element to be inserted into the filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_DATA_SIZE)
+            throw new ProtocolException("filteradd element too large: " + data.length);
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+        // Do nothing, lazy parsing isn't useful for such a small message.
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+}
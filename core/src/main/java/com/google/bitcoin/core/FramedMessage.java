@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A message that has already been serialized for the wire, magic bytes, header and checksum included. Instances
+ * are created by {@link BitcoinSerializer#frame(Message)} and are immutable, so the same one can be passed to
+ * {@link PeerSocketHandler#sendMessage(FramedMessage)} for any number of peers on the same network and they will all
+ * share its bytes rather than serializing and checksumming the message again.</p>
+ *
+ * <p>Changes made to the message after it was framed are not reflected in the framed bytes.</p>
+ */
+public final class FramedMessage {
+    private final long packetMagic;
+    private final Message message;
+    private final byte[] bytes;
+
+    FramedMessage(long packetMagic, Message message, byte[] bytes) {
+        this.packetMagic = packetMagic;
+        this.message = checkNotNull(message);
+        this.bytes = checkNotNull(bytes);
+    }
+
+    /** Returns the message that was framed. */
+    public Message getMessage() {
+        return message;
+    }
+
+    /** Returns the packet magic of the network the message was framed for. */
+    public long getPacketMagic() {
+        return packetMagic;
+    }
+
+    /** Returns the number of bytes that will be written to the network, header included. */
+    public int length() {
+        return bytes.length;
+    }
+
+    /** Returns a read only view of the framed bytes. */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    // Not copied: callers in this package promise not to modify it, see MessageWriteTarget#writeBytes.
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Framed " + message.getClass().getSimpleName() + " (" + bytes.length + " bytes)";
+    }
+}
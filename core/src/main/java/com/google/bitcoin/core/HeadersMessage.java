@@ -42,6 +42,10 @@ public class HeadersMessage extends Message {
         super(params, payload, 0);
     }
 
+    public HeadersMessage(NetworkParameters params, byte[] payload, int offset) throws ProtocolException {
+        super(params, payload, offset);
+    }
+
     public HeadersMessage(NetworkParameters params, Block... headers) throws ProtocolException {
         super(params);
         blockHeaders = Arrays.asList(headers);
@@ -24,10 +24,11 @@ import javax.annotation.Nullable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -43,10 +44,13 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every inv and tx message received by every peer goes through the pool, so it is split into independently locked
+ * stripes by transaction hash, and hashes that have dropped out of the table are still remembered for a while by a
+ * fixed size rolling Bloom filter so {@link #maybeWasSeen(Sha256Hash)} doesn't make us download them again.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
-    protected ReentrantLock lock = Threading.lock("mempool");
 
     // For each transaction we may have seen:
     //   - only its hash in an inv packet
@@ -64,25 +68,64 @@ public class MemoryPool {
         }
     }
     private static class Entry {
-        // Invariants: one of the two fields must be null, to indicate which is used.
-        Set<PeerAddress> addresses;
+        // Invariants: one of addresses and tx must be null, to indicate which is used. The addresses of the peers that
+        // announced the transaction are kept in a small array rather than a set, as there are only ever a handful.
+        PeerAddress[] addresses;
+        int numAddresses;
         // We keep a weak reference to the transaction. This means that if no other bit of code finds the transaction
         // worth keeping around it will drop out of memory and we will, at some point, forget about it, which means
         // both addresses and tx.get() will be null. When this happens the WeakTransactionReference appears in the queue
         // allowing us to delete the associated entry (the tx itself has already gone away).
         WeakTransactionReference tx;
+
+        // Returns false if the address was already recorded.
+        boolean addAddress(PeerAddress address) {
+            for (int i = 0; i < numAddresses; i++) {
+                if (addresses[i].equals(address))
+                    return false;
+            }
+            if (numAddresses == addresses.length)
+                addresses = Arrays.copyOf(addresses, numAddresses * 2);
+            addresses[numAddresses++] = address;
+            return true;
+        }
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
 
-    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
-    // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    // One part of the pool. Each transaction hash belongs to exactly one stripe and only that stripe's lock is taken to
+    // look it up, so peers handling different transactions don't wait for each other. Stripe locks are never nested.
+    private static class Stripe {
+        final ReentrantLock lock = Threading.lock("mempool");
+        final LinkedHashMap<Sha256Hash, Entry> memoryPool;
+        // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
+        // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool
+        // entries corresponding to expired transactions. In this way memory usage of the system is in line with however
+        // many transactions you actually care to track the confidence of. We can still end up with lots of hashes being
+        // stored if our peers flood us with invs but the size param caps this.
+        final ReferenceQueue<Transaction> referenceQueue = new ReferenceQueue<Transaction>();
+
+        Stripe(final int size) {
+            memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+                    // of some kind of DoS attack.
+                    return size() > size;
+                }
+            };
+        }
+    }
+    private final Stripe[] stripes;
+    private final SeenFilter seenFilter = new SeenFilter(SEEN_FILTER_ENTRIES);
 
     /** The max size of a memory pool created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
+    // How many stripes a pool large enough to split is split into. Must be a power of two.
+    private static final int NUM_STRIPES = 16;
+    /**
+     * Roughly how many transaction hashes are remembered by {@link #maybeWasSeen(Sha256Hash)} after they drop out of
+     * the table. The filter takes about 4 bytes per entry.
+     */
+    public static final int SEEN_FILTER_ENTRIES = 100000;
 
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
@@ -90,15 +133,10 @@ public class MemoryPool {
      * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<Transaction>();
+        int numStripes = size >= NUM_STRIPES * 8 ? NUM_STRIPES : 1;
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe((size + numStripes - 1) / numStripes);
     }
 
     /**
@@ -109,24 +147,25 @@ public class MemoryPool {
         this(MAX_SIZE);
     }
 
+    private Stripe stripeFor(Sha256Hash hash) {
+        // The maps inside the stripes use the last bytes of the hash, so pick the stripe with a different one.
+        return stripes[hash.getBytes()[0] & (stripes.length - 1)];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
      * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
      * are relevant to any of our wallets.
      */
-    private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
+    private static void cleanPool(Stripe stripe) {
+        checkState(stripe.lock.isHeldByCurrentThread());
+        Reference<? extends Transaction> ref;
+        while ((ref = stripe.referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakTransactionReference txRef = (WeakTransactionReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed.
+            stripe.memoryPool.remove(txRef.hash);
         }
     }
 
@@ -134,24 +173,25 @@ public class MemoryPool {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        Stripe stripe = stripeFor(txHash);
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
+            cleanPool(stripe);
+            Entry entry = stripe.memoryPool.get(txHash);
             if (entry == null) {
                 // No such TX known.
                 return 0;
             } else if (entry.tx == null) {
                 // We've seen at least one peer announce with an inv.
                 checkNotNull(entry.addresses);
-                return entry.addresses.size();
+                return entry.numAddresses;
             } else {
                 final Transaction tx = entry.tx.get();
                 if (tx == null) {
                     // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
                     // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
                     // just delete it from the map.
-                    memoryPool.remove(txHash);
+                    stripe.memoryPool.remove(txHash);
                     return 0;
                 } else {
                     checkState(entry.addresses == null);
@@ -159,7 +199,7 @@ public class MemoryPool {
                 }
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -169,10 +209,11 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
+        Stripe stripe = stripeFor(tx.getHash());
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
+            cleanPool(stripe);
+            Entry entry = stripe.memoryPool.get(tx.getHash());
             if (entry != null) {
                 // This TX or its hash have been previously interned.
                 if (entry.tx != null) {
@@ -189,14 +230,16 @@ public class MemoryPool {
                 } else {
                     // We received a transaction that we have previously seen announced but not downloaded until now.
                     checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
+                    entry.tx = new WeakTransactionReference(tx, stripe.referenceQueue);
+                    PeerAddress[] addrs = entry.addresses;
+                    int numAddrs = entry.numAddresses;
                     entry.addresses = null;
+                    entry.numAddresses = 0;
                     TransactionConfidence confidence = tx.getConfidence();
                     log.debug("Adding tx [{}] {} to the memory pool",
                             confidence.numBroadcastPeers(), tx.getHashAsString());
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
+                    for (int i = 0; i < numAddrs; i++) {
+                        markBroadcast(addrs[i], tx);
                     }
                     return tx;
                 }
@@ -205,12 +248,13 @@ public class MemoryPool {
                 // dependencies of a relevant transaction (see Peer.downloadDependencies).
                 log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
                 entry = new Entry();
-                entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                entry.tx = new WeakTransactionReference(tx, stripe.referenceQueue);
+                stripe.memoryPool.put(tx.getHash(), entry);
+                seenFilter.add(tx.getHash());
                 return tx;
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -221,13 +265,14 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
+        Stripe stripe = stripeFor(tx.getHash());
+        stripe.lock.lock();
         try {
             final Transaction interned = intern(tx);
             markBroadcast(byPeer, interned);
             return interned;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -236,10 +281,11 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
+            cleanPool(stripe);
+            Entry entry = stripe.memoryPool.get(hash);
             if (entry != null) {
                 // This TX or its hash have been previously announced.
                 if (entry.tx != null) {
@@ -255,26 +301,26 @@ public class MemoryPool {
                     }
                 } else {
                     checkNotNull(entry.addresses);
-                    entry.addresses.add(byPeer);
+                    entry.addAddress(byPeer);
                     log.debug("{}: Peer announced transaction we have seen announced before [{}] {}",
-                            byPeer, entry.addresses.size(), hash);
+                            byPeer, entry.numAddresses, hash);
                 }
             } else {
                 // This TX has never been seen before.
                 entry = new Entry();
-                // TODO: Using hashsets here is inefficient compared to just having an array.
-                entry.addresses = new HashSet<PeerAddress>();
-                entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
+                entry.addresses = new PeerAddress[2];
+                entry.addAddress(byPeer);
+                stripe.memoryPool.put(hash, entry);
+                seenFilter.add(hash);
                 log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
     private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
+        checkState(stripeFor(tx.getHash()).lock.isHeldByCurrentThread());
         final TransactionConfidence confidence = tx.getConfidence();
         if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -287,32 +333,117 @@ public class MemoryPool {
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
+            Entry entry = stripe.memoryPool.get(hash);
             if (entry == null) return null;  // Unknown.
             if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
+            return entry.tx.get();  // Null if it was downloaded but garbage collected.
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
     /**
-     * Returns true if the TX identified by hash has been seen before (ie, in an inv). Note that a transaction that
-     * was broadcast, downloaded and nothing kept a reference to it will eventually be cleared out by the garbage
-     * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
+     * Returns true if the TX identified by hash has been seen before (ie, in an inv). Hashes are remembered for a while
+     * after the pool stops tracking the transaction itself, but this does not keep a permanent record of every hash ever
+     * broadcast: once roughly {@link #SEEN_FILTER_ENTRIES} newer hashes have been seen, old ones are forgotten. Being
+     * backed by a Bloom filter, this can also return true for a hash that was never seen, roughly twice in a million
+     * lookups.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
+        if (seenFilter.mightContain(hash))
+            return true;
+        // Hashes always enter the filter when they enter the table, but it can have rolled over since.
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
-            return entry != null;
+            return stripe.memoryPool.containsKey(hash);
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * A Bloom filter of transaction hashes which forgets old entries: it is made of two generations, new hashes are
+     * added to the current one and once that holds its share of entries the older generation is cleared and becomes
+     * the current one. Lookups check both, so a hash is remembered for between one and two generations worth of
+     * newer hashes. Memory use is fixed however many hashes are seen. It needs no locking, at worst a lookup that
+     * races with a rollover misses a hash that was about to be forgotten anyway.
+     */
+    static class SeenFilter {
+        // Bits per entry and hash functions for a false positive rate of about one in a million per generation. A false
+        // positive means a transaction announced to us is never downloaded, so the rate has to be tiny, not just small.
+        private static final int BITS_PER_ENTRY = 29;
+        private static final int NUM_HASH_FUNCS = 20;
+
+        private final AtomicLongArray[] generations;
+        private final int numBits;
+        private final int entriesPerGeneration;
+        private volatile int current;
+        private final AtomicInteger numAdded = new AtomicInteger();
+
+        SeenFilter(int entries) {
+            entriesPerGeneration = Math.max(1, entries / 2);
+            numBits = entriesPerGeneration * BITS_PER_ENTRY;
+            int numWords = (numBits + 63) / 64;
+            generations = new AtomicLongArray[] { new AtomicLongArray(numWords), new AtomicLongArray(numWords) };
+        }
+
+        void add(Sha256Hash hash) {
+            AtomicLongArray bits = generations[current];
+            long h1 = readLong(hash.getBytes(), 16), h2 = readLong(hash.getBytes(), 24) | 1;
+            for (int i = 0; i < NUM_HASH_FUNCS; i++) {
+                int bit = bitIndex(h1, h2, i);
+                int word = bit >>> 6;
+                long mask = 1L << bit;
+                while (true) {
+                    long old = bits.get(word);
+                    if ((old & mask) != 0 || bits.compareAndSet(word, old, old | mask))
+                        break;
+                }
+            }
+            // Exactly one thread sees the count reach the limit, so only one rolls the filter over.
+            if (numAdded.incrementAndGet() == entriesPerGeneration) {
+                int next = 1 - current;
+                AtomicLongArray older = generations[next];
+                for (int i = 0; i < older.length(); i++)
+                    older.set(i, 0);
+                current = next;
+                numAdded.set(0);
+            }
+        }
+
+        boolean mightContain(Sha256Hash hash) {
+            long h1 = readLong(hash.getBytes(), 16), h2 = readLong(hash.getBytes(), 24) | 1;
+            for (AtomicLongArray bits : generations) {
+                if (contains(bits, h1, h2))
+                    return true;
+            }
+            return false;
+        }
+
+        private boolean contains(AtomicLongArray bits, long h1, long h2) {
+            for (int i = 0; i < NUM_HASH_FUNCS; i++) {
+                int bit = bitIndex(h1, h2, i);
+                if ((bits.get(bit >>> 6) & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        // Double hashing: the hash functions are h1 + i * h2. The input is already a cryptographic hash so its bytes
+        // are used directly, taken from the end as block hashes start with zeros.
+        private int bitIndex(long h1, long h2, int i) {
+            return (int) (((h1 + i * h2) & Long.MAX_VALUE) % numBits);
+        }
+
+        private static long readLong(byte[] bytes, int offset) {
+            long result = 0;
+            for (int i = 0; i < 8; i++)
+                result = (result << 8) | (bytes[offset + i] & 0xFF);
+            return result;
         }
     }
 }
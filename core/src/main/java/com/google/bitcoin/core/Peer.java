@@ -16,8 +16,6 @@
 
 package com.google.bitcoin.core;
 
-import com.google.bitcoin.store.BlockStore;
-import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.bitcoin.wallet.WalletTransaction;
@@ -40,6 +38,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -99,8 +98,9 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
-    // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
-    private volatile BloomFilter vBloomFilter;
+    // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us. It is
+    // kept framed so that refreshing the remote copy doesn't serialize it again.
+    private volatile FramedMessage vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -117,6 +117,9 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // Set while this peer takes part in a parallel chain download. Headers and blocks it was asked for are passed to the
+    // scheduler instead of to the chain, and the getblocks driven download below is suspended.
+    @Nullable private volatile ChainDownloadScheduler vChainDownload;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
     // A string to be checked inside the subversion to distinguis true 70001 nodes from 1.4.2 nodes.
@@ -139,6 +142,15 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
 
+    // What this peer sent us for the chain download and how fast, see getDownloadBytesPerSec(). The rates are
+    // exponential moving averages, updated once a second or so.
+    private final ReentrantLock downloadStatsLock = Threading.lock("peer-download-stats");
+    @GuardedBy("downloadStatsLock") private long downloadedBytes, downloadedBlocks;
+    @GuardedBy("downloadStatsLock") private long sampleStartMillis, sampleBytes, sampleBlocks;
+    @GuardedBy("downloadStatsLock") private double downloadBytesPerSec, downloadBlocksPerSec;
+    // How much of the previous rate is kept for every second that passes.
+    private static final double DOWNLOAD_RATE_DECAY = 0.8;
+
     private volatile VersionMessage vPeerVersionMessage;
     private boolean isAcked;
 
@@ -260,15 +272,22 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
-        for (final PeerListenerRegistration registration : eventListeners) {
-            if (registration.callOnDisconnect)
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onPeerDisconnected(Peer.this, 0);
-                    }
-                });
-        }
+        // If messages are processed off the network thread, listeners only hear about the disconnect once every
+        // message received before it has been handled.
+        executeInOrder(new Runnable() {
+            @Override
+            public void run() {
+                for (final PeerListenerRegistration registration : eventListeners) {
+                    if (registration.callOnDisconnect)
+                        registration.executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                registration.listener.onPeerDisconnected(Peer.this, 0);
+                            }
+                        });
+                }
+            }
+        });
     }
 
     @Override
@@ -311,6 +330,11 @@ public class Peer extends PeerSocketHandler {
             currentFilteredBlock = null;
         }
 
+        if (m instanceof Block || m instanceof FilteredBlock || (m instanceof Transaction && currentFilteredBlock != null))
+            recordDownload(m.getMessageSize(), m instanceof Transaction ? 0 : 1);
+        else if (m instanceof HeadersMessage)
+            recordDownload(m.getMessageSize(), ((HeadersMessage) m).getBlockHeaders().size());
+
         if (m instanceof NotFoundMessage) {
             // This is sent to us when we did a getdata on some transactions that aren't in the peers memory pool.
             // Because NotFoundMessage is a subclass of InventoryMessage, the test for it must come before the next.
@@ -430,7 +454,10 @@ public class Peer extends PeerSocketHandler {
         // This is received when we previously did a getdata but the peer couldn't find what we requested in it's
         // memory pool. Typically, because we are downloading dependencies of a relevant transaction and reached
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
-        // in the chain).
+        // in the chain). During a parallel chain download it can also mean the peer doesn't have a block we asked for.
+        ChainDownloadScheduler chainDownload = vChainDownload;
+        if (chainDownload != null)
+            chainDownload.notFound(this, m.getItems());
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
         for (GetDataRequest req : getDataFutures) {
@@ -469,6 +496,13 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        boolean pipelined = false;
+
+        ChainDownloadScheduler chainDownload = vChainDownload;
+        if (chainDownload != null) {
+            chainDownload.headersReceived(this, m);
+            return;
+        }
 
         lock.lock();
         try {
@@ -479,12 +513,18 @@ public class Peer extends PeerSocketHandler {
             }
             fastCatchupTimeSecs = this.fastCatchupTimeSecs;
             downloadBlockBodies = this.downloadBlockBodies;
+            if (downloadBlockBodies) {
+                // We switched to full blocks whilst the answer to a pipelined getheaders was still on its way.
+                log.info("{}: Discarding {} headers received after switching to full blocks", getAddress(),
+                        m.getBlockHeaders().size());
+                return;
+            }
+            pipelined = maybePipelineHeadersRequestLocked(m.getBlockHeaders(), fastCatchupTimeSecs);
         } finally {
             lock.unlock();
         }
 
         try {
-            checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -522,9 +562,9 @@ public class Peer extends PeerSocketHandler {
                     return;
                 }
             }
-            // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
-            // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            // We added all headers in the message to the chain. Request some more if we got up to the limit and didn't
+            // already do so, otherwise we are at the end of the chain.
+            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS && !pipelined) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -540,6 +580,32 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * If the given batch of headers is full and all of it predates the fast catchup time, asks for the next batch
+     * straight away so it is on its way whilst this one is verified and added to the chain. The request continues from
+     * the last header of the batch rather than from the chain head, as that isn't updated yet. Returns true if the
+     * request was sent.
+     */
+    @GuardedBy("lock")
+    private boolean maybePipelineHeadersRequestLocked(List<Block> headers, long fastCatchupTimeSecs) {
+        if (headers.size() < HeadersMessage.MAX_HEADERS || !vDownloadData)
+            return false;
+        Block last = headers.get(headers.size() - 1);
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
+        // The last batch before the fast catchup time or the top of the chain is requested in the usual way once this
+        // one has been processed, as we may have to switch to full blocks at that point.
+        if (last.getTimeSeconds() >= fastCatchupTimeSecs ||
+                chainHead.getHeight() + headers.size() >= vPeerVersionMessage.bestHeight)
+            return false;
+        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(64);
+        blockLocator.add(last.getHash());
+        blockLocator.addAll(blockChain.getBlockLocator().getLocator(chainHead));
+        // Stop the last request made by blockChainDownloadLocked being seen as a duplicate if we have to fall back to it.
+        lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+        sendMessage(new GetHeadersMessage(params, blockLocator, Sha256Hash.ZERO_HASH));
+        return true;
+    }
+
     private void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -811,6 +877,14 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        ChainDownloadScheduler chainDownload = vChainDownload;
+        if (chainDownload != null) {
+            // The scheduler adds blocks to the chain in order. Anything it didn't ask for is dropped, it'll be fetched
+            // again once the parallel download is over if it is still needed.
+            if (!chainDownload.blockReceived(this, m.getHash(), m))
+                log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
+            return;
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -867,6 +941,12 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
+        ChainDownloadScheduler chainDownload = vChainDownload;
+        if (chainDownload != null) {
+            if (!chainDownload.blockReceived(this, m.getHash(), m))
+                log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
+            return;
+        }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -947,7 +1027,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1033,7 +1113,8 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            // A parallel chain download asks for blocks itself, so ignore announcements until it hands back to us.
+            if (blocks.size() > 0 && downloadData && blockChain != null && vChainDownload == null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1214,17 +1295,7 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-        // For now we don't do the exponential thinning as suggested here:
-        //
-        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
-        //
-        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-        // 50 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
@@ -1233,20 +1304,7 @@ public class Peer extends PeerSocketHandler {
         }
         log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                 toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
-            }
-        }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null) {
-            blockLocator.add(params.getGenesisBlock().getHash());
-        }
+        List<Sha256Hash> blockLocator = blockChain.getBlockLocator().getLocator(chainHead);
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
@@ -1273,14 +1331,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1291,6 +1342,29 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
+    /**
+     * Attaches this peer to a parallel chain download, or detaches it if null. Used by {@link ChainDownloadScheduler}.
+     */
+    void setChainDownload(@Nullable ChainDownloadScheduler chainDownload) {
+        vChainDownload = chainDownload;
+    }
+
+    @Nullable
+    ChainDownloadScheduler getChainDownload() {
+        return vChainDownload;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1388,6 +1462,86 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void recordDownload(int bytes, int blocks) {
+        downloadStatsLock.lock();
+        try {
+            updateDownloadRatesLocked();
+            sampleBytes += bytes;
+            sampleBlocks += blocks;
+            downloadedBytes += bytes;
+            downloadedBlocks += blocks;
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    @GuardedBy("downloadStatsLock")
+    private void updateDownloadRatesLocked() {
+        long now = Utils.currentTimeMillis();
+        if (sampleStartMillis == 0) {
+            sampleStartMillis = now;
+            return;
+        }
+        long elapsed = now - sampleStartMillis;
+        if (elapsed < 1000)
+            return;
+        // Weigh the rate over the sample by how long it lasted, so a peer that goes quiet decays towards zero.
+        double keep = Math.pow(DOWNLOAD_RATE_DECAY, elapsed / 1000.0);
+        downloadBytesPerSec = keep * downloadBytesPerSec + (1 - keep) * (sampleBytes * 1000.0 / elapsed);
+        downloadBlocksPerSec = keep * downloadBlocksPerSec + (1 - keep) * (sampleBlocks * 1000.0 / elapsed);
+        sampleStartMillis = now;
+        sampleBytes = 0;
+        sampleBlocks = 0;
+    }
+
+    /**
+     * Returns how many bytes per second this peer has recently been sending us in blocks, filtered blocks (including
+     * their transactions) and headers, averaged over the last several seconds.
+     */
+    public double getDownloadBytesPerSec() {
+        downloadStatsLock.lock();
+        try {
+            updateDownloadRatesLocked();
+            return downloadBytesPerSec;
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many blocks, filtered blocks or headers per second this peer has recently been sending us, averaged
+     * over the last several seconds.
+     */
+    public double getDownloadBlocksPerSec() {
+        downloadStatsLock.lock();
+        try {
+            updateDownloadRatesLocked();
+            return downloadBlocksPerSec;
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /** Returns the total size of the blocks, filtered blocks and headers received from this peer. */
+    public long getDownloadedBytes() {
+        downloadStatsLock.lock();
+        try {
+            return downloadedBytes;
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
+    /** Returns the total number of blocks, filtered blocks and headers received from this peer. */
+    public long getDownloadedBlocks() {
+        downloadStatsLock.lock();
+        try {
+            return downloadedBlocks;
+        } finally {
+            downloadStatsLock.unlock();
+        }
+    }
+
     private void processPong(Pong m) {
         // Iterates over a snapshot of the list, so we can run unlocked here.
         for (PendingPing ping : pendingPings) {
@@ -1486,6 +1640,18 @@ public class Peer extends PeerSocketHandler {
     public void setBloomFilter(BloomFilter filter) {
         checkNotNull(filter, "Clearing filters is not currently supported");
         final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported())
+            return;
+        setBloomFilter(new BitcoinSerializer(params).frame(filter));
+    }
+
+    /**
+     * Like {@link Peer#setBloomFilter(BloomFilter)}, but takes a filter that was already framed with
+     * {@link BitcoinSerializer#frame(Message)}. This lets the same filter be serialized once and given to many peers.
+     */
+    public void setBloomFilter(FramedMessage filter) {
+        checkArgument(filter.getMessage() instanceof BloomFilter, "Not a Bloom filter: %s", filter);
+        final VersionMessage ver = vPeerVersionMessage;
         if (ver == null || !ver.isBloomFilteringSupported())
             return;
         vBloomFilter = filter;
@@ -1495,11 +1661,38 @@ public class Peer extends PeerSocketHandler {
         sendMessage(new MemoryPoolMessage());
     }
 
+    /**
+     * <p>Tells the remote peer to insert the given elements into the Bloom filter it already has, using filteradd
+     * messages, then queries its mempool again. filter is the framed filter with the elements already inserted, as it
+     * would be sent in full, and is remembered as the filter of this peer. If the peer doesn't have a filter yet the
+     * full filter is sent instead.</p>
+     *
+     * <p>Adding elements raises the false positive rate of the filter, so only use this for a few elements at a time
+     * and switch to a freshly sized filter when the rate gets too high.</p>
+     */
+    public void addToBloomFilter(FramedMessage filter, List<byte[]> elements) {
+        checkArgument(filter.getMessage() instanceof BloomFilter, "Not a Bloom filter: %s", filter);
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported())
+            return;
+        if (vBloomFilter == null) {
+            setBloomFilter(filter);
+            return;
+        }
+        vBloomFilter = filter;
+        log.info("{}: Adding {} elements to Bloom filter and querying mempool", this, elements.size());
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(element));
+        sendMessage(new MemoryPoolMessage());
+    }
+
     /**
      * Returns the last {@link BloomFilter} set by {@link Peer#setBloomFilter(BloomFilter)}. Bloom filters tell
      * the remote node what transactions to send us, in a compact manner.
      */
+    @Nullable
     public BloomFilter getBloomFilter() {
-        return vBloomFilter;
+        final FramedMessage filter = vBloomFilter;
+        return filter == null ? null : (BloomFilter) filter.getMessage();
     }
 }
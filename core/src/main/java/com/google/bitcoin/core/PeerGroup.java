@@ -21,12 +21,14 @@ import com.google.bitcoin.net.ClientConnectionManager;
 import com.google.bitcoin.net.NioClientManager;
 import com.google.bitcoin.net.discovery.PeerDiscovery;
 import com.google.bitcoin.net.discovery.PeerDiscoveryException;
+import com.google.bitcoin.net.discovery.PeerDatabase;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.utils.ExponentialBackoff;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.*;
 import net.jcip.annotations.GuardedBy;
@@ -34,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -41,6 +44,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -75,6 +79,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // Addresses to try to connect to, excluding active peers.
     @GuardedBy("lock") private final PriorityQueue<PeerAddress> inactives;
     @GuardedBy("lock") private final Map<PeerAddress, ExponentialBackoff> backoffMap;
+    // Position of addresses in the last answer of the peer database, which returns the best ones first.
+    @GuardedBy("lock") private final Map<PeerAddress, Integer> databaseRanks = new HashMap<PeerAddress, Integer>();
 
     // Currently active peers. This is an ordered list rather than a set to make unit tests predictable.
     private final CopyOnWriteArrayList<Peer> peers;
@@ -90,6 +96,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
     private final CopyOnWriteArraySet<PeerDiscovery> peerDiscoverers;
+    // Remembers peer addresses across restarts. If set, it is polled before the other discovery sources.
+    @Nullable private volatile PeerDatabase vPeerDatabase;
+    private static final long PEER_DATABASE_SAVE_INTERVAL_MSEC = 60 * 1000;
     // The version message to use for new connections.
     @GuardedBy("lock") private VersionMessage versionMessage;
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
@@ -101,6 +110,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     // TODO: We have to stay at this currently, as 70001 adoption will be too low to rely on it.
     private volatile int vMinRequiredProtocolVersion = 70003; //MainNetParams.PROTOCOL_VERSION;
+    // If set, peers process received messages on this executor rather than on the network thread.
+    @Nullable private volatile Executor vMessageExecutor;
+    // How many peers blocks are fetched from at once during chain download. If more than one, a ChainDownloadScheduler
+    // is used, and while it runs chainDownload is set and chainDownloadStallTask periodically checks it for stalls.
+    @GuardedBy("lock") private int maxBlockDownloadPeers = 1;
+    @GuardedBy("lock") @Nullable private ChainDownloadScheduler chainDownload;
+    @GuardedBy("lock") @Nullable private TimerTask chainDownloadStallTask;
+    private static final long CHAIN_DOWNLOAD_STALL_CHECK_MSEC = 5000;
 
     // Runs a background thread that we use for scheduling pings to our peers, so we can measure their performance
     // and network latency. We ping peers every pingIntervalMsec milliseconds.
@@ -109,6 +126,23 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
+    /**
+     * How many seconds the download peer's speed is averaged over before it is judged too slow, by default. Zero, so
+     * slow download peers are only replaced if {@link #setStallThreshold(int, int)} turns that on.
+     */
+    public static final int DEFAULT_STALL_PERIOD_SECONDS = 0;
+    /** How many bytes per second the download peer must send on average to not be replaced, once turned on. */
+    public static final int DEFAULT_STALL_MIN_BYTES_PER_SEC = Block.HEADER_SIZE * 20;
+    @GuardedBy("lock") private int stallPeriodSeconds = DEFAULT_STALL_PERIOD_SECONDS;
+    @GuardedBy("lock") private int stallMinBytesPerSec = DEFAULT_STALL_MIN_BYTES_PER_SEC;
+    // Once a second whilst the chain is downloading, the download peer's byte count is added here, so we can tell how
+    // much it sent over the last stallPeriodSeconds.
+    @GuardedBy("lock") private final LinkedList<Long> downloadSamples = new LinkedList<Long>();
+    @GuardedBy("lock") @Nullable private Peer downloadSamplesPeer;
+    // Peers that were replaced as the download peer for being too slow. They are only chosen again if nothing else
+    // is available.
+    @GuardedBy("lock") private final Set<Peer> stalledPeers = new HashSet<Peer>();
+
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
@@ -123,44 +157,64 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             return handleGetData(m);
         }
 
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerDatabase peerDatabase = vPeerDatabase;
+            if (peerDatabase != null && m instanceof AddressMessage) {
+                for (PeerAddress address : ((AddressMessage) m).getAddresses())
+                    peerDatabase.addAddress(address.toSocketAddress(), address.getTime());
+            }
+            return m;
+        }
+
         @Override
         public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
-            double rate = checkNotNull(chain).getFalsePositiveRate();
-            if (rate > bloomFilterFPRate * MAX_FP_RATE_INCREASE) {
-                log.info("Force update Bloom filter due to high false positive rate");
-                recalculateFastCatchupAndFilter(FilterRecalculateMode.FORCE_SEND);
+            BloomFilterController.Action action = bloomFilterController.onBlock(checkNotNull(chain), bloomFilterFPRate);
+            if (action == null)
+                return;
+            lock.lock();
+            try {
+                if (action == BloomFilterController.Action.RETWEAK)
+                    bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
+                recalculateFastCatchupAndFilter(FilterRecalculateMode.FORCE_SEND, true);
+            } finally {
+                lock.unlock();
             }
         }
     };
 
     private int minBroadcastConnections = 0;
-    private Runnable bloomSendIfChanged = new Runnable() {
-        @Override public void run() {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
-        }
-    };
-    private Runnable bloomDontSend = new Runnable() {
-        @Override public void run() {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.DONT_SEND);
-        }
-    };
     private AbstractWalletEventListener walletEventListener = new AbstractWalletEventListener() {
-        private void queueRecalc(boolean andTransmit) {
-            if (andTransmit) {
-                log.info("Queuing recalc of the Bloom filter due to new keys or scripts becoming available");
-                Uninterruptibles.putUninterruptibly(jobQueue, bloomSendIfChanged);
-            } else {
-                log.info("Queuing recalc of the Bloom filter due to observing a pay to pubkey output on a relevant tx");
-                Uninterruptibles.putUninterruptibly(jobQueue, bloomDontSend);
-            }
+        private void queueAdd(final List<byte[]> elements, final boolean andTransmit) {
+            log.info("Queuing update of the Bloom filter due to new keys or scripts becoming available");
+            Uninterruptibles.putUninterruptibly(jobQueue, new Runnable() {
+                @Override public void run() {
+                    addToBloomFilter(elements, andTransmit);
+                }
+            });
+        }
+
+        private void queueAddOutPoints(final Transaction tx, final int[] indexes, final boolean andTransmit) {
+            log.info("Queuing update of the Bloom filter due to observing a pay to pubkey output on a relevant tx");
+            Uninterruptibles.putUninterruptibly(jobQueue, new Runnable() {
+                @Override public void run() {
+                    addOutPointsToBloomFilter(tx, indexes, andTransmit);
+                }
+            });
         }
 
         @Override public void onScriptsAdded(Wallet wallet, List<Script> scripts) {
-            queueRecalc(true);
+            List<byte[]> elements = Lists.newArrayList();
+            for (Script script : scripts)
+                elements.addAll(Wallet.getBloomFilterElements(script));
+            queueAdd(elements, true);
         }
 
         @Override public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
-            queueRecalc(true);
+            List<byte[]> elements = Lists.newArrayList();
+            for (ECKey key : keys)
+                elements.addAll(Wallet.getBloomFilterElements(key));
+            queueAdd(elements, true);
         }
 
         @Override
@@ -183,16 +237,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             // it and update their filter themselves, but any newly connected nodes will receive the last filter we
             // calculated, which would not include this transaction.
             //
-            // For this reason we check if the transaction contained any relevant pay to pubkeys and force a recalc
-            // and possibly retransmit if so. The recalculation process will end up including the tx hash into the
-            // filter. In case (1), we need to retransmit the filter to the connected peers. In case (2), we don't
-            // and shouldn't, we should just recalculate and cache the new filter for next time.
+            // For this reason we check if the transaction contained any relevant pay to pubkeys and if so add its
+            // outpoints to the filter, and possibly transmit them. In case (1), we need to send them to the connected
+            // peers. In case (2), we don't and shouldn't, we should just update the filter given to new peers.
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.getScriptPubKey().isSentToRawPubKey() && output.isMine(wallet)) {
-                    if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
-                        queueRecalc(true);
-                    else
-                        queueRecalc(false);
+                    boolean building =
+                            tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING;
+                    queueAddOutPoints(tx, wallet.getBloomFilterOutputIndexes(tx), building);
                     return;
                 }
             }
@@ -228,8 +280,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // Visible for testing
     PeerEventListener startupListener = new PeerStartupListener();
 
-    // A bloom filter generated from all connected wallets that is given to new peers
+    // A bloom filter generated from all connected wallets that is given to new peers, and the same filter serialized
+    // once so it doesn't have to be serialized again for every peer.
     private BloomFilter bloomFilter;
+    private FramedMessage framedBloomFilter;
     /**
      * <p>A reasonable default for the bloom filter false positive rate on mainnet. FP rates are values between 0.0 and 1.0
      * where 1.0 is "all transactions" i.e. 100%.</p>
@@ -242,9 +296,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public static final double MAX_FP_RATE_INCREASE = 2.0f;
     // The false positive rate for bloomFilter
     private double bloomFilterFPRate = DEFAULT_BLOOM_FILTER_FP_RATE;
-    // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
-    private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
+    // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys. It is only
+    // changed when bloomFilterController finds that the filter matches too much however often it's resent.
+    private long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
+    private final BloomFilterController bloomFilterController = new BloomFilterController();
     private int lastBloomFilterElementCount;
+    // How many elements bloomFilter holds, counting those inserted since it was calculated, and whether it was
+    // created with BloomUpdate.UPDATE_ALL.
+    private int bloomFilterElementCount;
+    private boolean bloomFilterUpdateAll;
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
@@ -296,6 +356,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             @Override
             public int compare(PeerAddress a, PeerAddress b) {
                 int result = backoffMap.get(a).compareTo(backoffMap.get(b));
+                // Then addresses from the peer database in the order it gave them, ahead of the others.
+                if (result == 0)
+                    result = rankOf(a).compareTo(rankOf(b));
                 // Sort by port if otherwise equals - for testing
                 if (result == 0)
                     result = Integer.valueOf(a.getPort()).compareTo(b.getPort());
@@ -547,6 +610,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         setMaxConnections(newMax);
     }
 
+    private Integer rankOf(PeerAddress address) {
+        Integer rank = databaseRanks.get(address);
+        return rank == null ? Integer.MAX_VALUE : rank;
+    }
+
     private void addInactive(PeerAddress peerAddress) {
         // Deduplicate
         if (backoffMap.containsKey(peerAddress))
@@ -575,20 +643,75 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * <p>Makes the group remember the addresses of peers in the given database, and how well connecting to them went.
+     * The database is asked for addresses before any other discovery source, so that after a restart the group can
+     * connect to peers that worked before without waiting for DNS. Addresses announced by peers are added to it, and
+     * connected peers are asked for addresses. The database is saved every minute and when the group shuts down.</p>
+     *
+     * <p>If max connections has not been configured, or set to zero, then it's set to the default at this point.</p>
+     */
+    public void setPeerDatabase(@Nullable PeerDatabase peerDatabase) {
+        lock.lock();
+        try {
+            if (peerDatabase != null && getMaxConnections() == 0)
+                setMaxConnections(DEFAULT_CONNECTIONS);
+            vPeerDatabase = peerDatabase;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** See {@link PeerGroup#setPeerDatabase(PeerDatabase)}. */
+    @Nullable
+    public PeerDatabase getPeerDatabase() {
+        return vPeerDatabase;
+    }
+
+    private void savePeerDatabase() {
+        PeerDatabase peerDatabase = vPeerDatabase;
+        if (peerDatabase == null)
+            return;
+        for (Peer peer : peers) {
+            long pingTime = peer.getPingTime();
+            if (pingTime != Long.MAX_VALUE)
+                peerDatabase.setLatency(peer.getAddress().toSocketAddress(), pingTime);
+        }
+        try {
+            peerDatabase.save();
+        } catch (IOException e) {
+            log.error("Failed to save peer database", e);
+        }
+    }
+
     protected void discoverPeers() throws PeerDiscoveryException {
-        if (peerDiscoverers.isEmpty())
+        PeerDatabase peerDatabase = vPeerDatabase;
+        if (peerDiscoverers.isEmpty() && peerDatabase == null)
             throw new PeerDiscoveryException("No peer discoverers registered");
         long start = System.currentTimeMillis();
-        Set<PeerAddress> addressSet = Sets.newHashSet();
-        for (PeerDiscovery peerDiscovery : peerDiscoverers) {
+        // Keeps the order the sources give, so that the peer database's best addresses are tried first.
+        Set<PeerAddress> addressSet = Sets.newLinkedHashSet();
+        int fromDatabase = 0;
+        List<PeerDiscovery> discoverers = new ArrayList<PeerDiscovery>();
+        if (peerDatabase != null)
+            discoverers.add(peerDatabase);
+        discoverers.addAll(peerDiscoverers);
+        for (PeerDiscovery peerDiscovery : discoverers) {
             InetSocketAddress[] addresses;
             addresses = peerDiscovery.getPeers(5, TimeUnit.SECONDS);
             for (InetSocketAddress address : addresses) addressSet.add(new PeerAddress(address));
+            if (peerDiscovery == peerDatabase)
+                fromDatabase = addressSet.size();
             if (addressSet.size() > 6) break;
         }
         lock.lock();
         try {
+            int rank = 0;
             for (PeerAddress address : addressSet) {
+                // Ranks can only be given to new addresses, as changing them would upset the order of inactives.
+                if (rank < fromDatabase && !backoffMap.containsKey(address))
+                    databaseRanks.put(address, rank);
+                rank++;
                 addInactive(address);
             }
         } finally {
@@ -681,6 +804,18 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                checkDownloadSpeed();
+            }
+        }, 1000, 1000);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                savePeerDatabase();
+            }
+        }, PEER_DATABASE_SAVE_INTERVAL_MSEC, PEER_DATABASE_SAVE_INTERVAL_MSEC);
         channels.startAndWait();
         triggerConnections();
     }
@@ -689,6 +824,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the Service implementation.
         vPingTimer.cancel();
+        stopChainDownload();
+        savePeerDatabase();
         // Blocking close of all sockets.
         channels.stopAndWait();
         for (PeerDiscovery peerDiscovery : peerDiscoverers) {
@@ -785,17 +922,20 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
      * @param mode In what situations to send the filter to connected peers.
      */
     public void recalculateFastCatchupAndFilter(FilterRecalculateMode mode) {
+        recalculateFastCatchupAndFilter(mode, false);
+    }
+
+    // byController is set when bloomFilterController asked for the filter to be replaced, so it isn't told about it.
+    private void recalculateFastCatchupAndFilter(FilterRecalculateMode mode, boolean byController) {
         lock.lock();
         try {
             // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
             if (chain != null && chain.shouldVerifyTransactions())
                 return;
             log.info("Recalculating filter in mode {}", mode);
-            long earliestKeyTimeSecs = Long.MAX_VALUE;
             int elements = 0;
             boolean requiresUpdateAll = false;
             for (PeerFilterProvider p : peerFilterProviders) {
-                earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
                 elements += p.getBloomFilterElementCount();
                 requiresUpdateAll = requiresUpdateAll || p.isRequiringUpdateAllBloomFilter();
             }
@@ -816,6 +956,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 boolean send = false;
 
                 bloomFilter = filter;
+                bloomFilterElementCount = elements;
+                bloomFilterUpdateAll = requiresUpdateAll;
+                if (changed || framedBloomFilter == null)
+                    framedBloomFilter = new BitcoinSerializer(params).frame(filter);
 
                 switch (mode) {
                     case SEND_IF_CHANGED: send = changed; break;
@@ -825,25 +969,96 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
                 if (send) {
                     for (Peer peer : peers)
-                        peer.setBloomFilter(filter);
+                        peer.setBloomFilter(framedBloomFilter);
                     // Reset the false positive estimate so that we don't send a flood of filter updates
                     // if the estimate temporarily overshoots our threshold.
                     if (chain != null)
                         chain.resetFalsePositiveEstimate();
+                    if (!byController)
+                        bloomFilterController.onFilterSent();
                 }
             }
-            // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
-            // both in block header timestamps and if the users clock was out of sync when the key was first created
-            // (to within a small amount of tolerance).
-            earliestKeyTimeSecs -= 86400 * 7;
-
             // Do this last so that bloomFilter is already set when it gets called.
-            setFastCatchupTimeSecs(earliestKeyTimeSecs);
+            recalculateFastCatchupTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recalculateFastCatchupTime() {
+        checkState(lock.isHeldByCurrentThread());
+        long earliestKeyTimeSecs = Long.MAX_VALUE;
+        for (PeerFilterProvider p : peerFilterProviders)
+            earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
+        // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
+        // both in block header timestamps and if the users clock was out of sync when the key was first created
+        // (to within a small amount of tolerance).
+        earliestKeyTimeSecs -= 86400 * 7;
+        setFastCatchupTimeSecs(earliestKeyTimeSecs);
+    }
+
+    /**
+     * Inserts the given elements into the current Bloom filter and, if andTransmit is set, sends them to the connected
+     * peers in filteradd messages, so that a few new keys don't cost every peer a whole new filter. When there is no
+     * filter yet, the update mode must change or the new elements would push the false positive rate of the filter
+     * above {@link #MAX_FP_RATE_INCREASE} times the target rate, a freshly sized filter is calculated instead.
+     */
+    private void addToBloomFilter(List<byte[]> elements, boolean andTransmit) {
+        lock.lock();
+        try {
+            if (chain != null && chain.shouldVerifyTransactions())
+                return;
+            boolean requiresUpdateAll = false;
+            for (PeerFilterProvider p : peerFilterProviders)
+                requiresUpdateAll = requiresUpdateAll || p.isRequiringUpdateAllBloomFilter();
+            int elementCount = bloomFilterElementCount + elements.size();
+            if (bloomFilter == null || bloomFilter.matchesAll() || requiresUpdateAll != bloomFilterUpdateAll ||
+                    bloomFilter.getFalsePositiveRate(elementCount) > bloomFilterFPRate * MAX_FP_RATE_INCREASE) {
+                recalculateFastCatchupAndFilter(andTransmit ? FilterRecalculateMode.SEND_IF_CHANGED :
+                        FilterRecalculateMode.DONT_SEND);
+                return;
+            }
+            log.info("Adding {} elements to the Bloom filter", elements.size());
+            // Work on a copy, the current filter object is shared with the framed filter already given to peers.
+            BloomFilter filter;
+            try {
+                filter = new BloomFilter(params, bloomFilter.bitcoinSerialize());
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, we just serialized it.
+            }
+            for (byte[] element : elements)
+                filter.insert(element);
+            bloomFilter = filter;
+            bloomFilterElementCount = elementCount;
+            framedBloomFilter = new BitcoinSerializer(params).frame(filter);
+            if (andTransmit) {
+                for (Peer peer : peers)
+                    peer.addToBloomFilter(framedBloomFilter, elements);
+            }
+            // Imported keys can be older than the ones we had.
+            recalculateFastCatchupTime();
         } finally {
             lock.unlock();
         }
     }
     
+    // Adds outpoints pointing to the given outputs of tx to the Bloom filter. Ones the filter already matches are left
+    // out: peers match transactions spending them anyway, so sending them would only use up room in the filter.
+    private void addOutPointsToBloomFilter(Transaction tx, int[] indexes, boolean andTransmit) {
+        lock.lock();
+        try {
+            List<byte[]> elements = Lists.newArrayList();
+            for (int index : indexes) {
+                if (bloomFilter == null || !bloomFilter.containsOutPoint(tx.getHash(), index))
+                    elements.add(new TransactionOutPoint(params, index, tx).bitcoinSerialize());
+            }
+            if (!elements.isEmpty())
+                addToBloomFilter(elements, andTransmit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -863,6 +1078,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * Returns the controller which decides when the Bloom filter has degraded enough to be recalculated and resent,
+     * which can be used to set a bandwidth target, watch its decisions and read its statistics.
+     */
+    public BloomFilterController getBloomFilterController() {
+        return bloomFilterController;
+    }
+
     /**
      * Returns the number of currently connected peers. To be informed when this count changes, register a 
      * {@link PeerEventListener} and use the onPeerConnected/onPeerDisconnected methods.
@@ -897,6 +1120,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         Peer peer = new Peer(params, ver, address, chain, memoryPool);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setMessageExecutor(vMessageExecutor, PeerSocketHandler.DEFAULT_MAX_QUEUED_MESSAGES);
         pendingPeers.add(peer);
 
         try {
@@ -987,14 +1211,16 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
-            if (bloomFilter != null) peer.setBloomFilter(bloomFilter);
+            if (framedBloomFilter != null) peer.setBloomFilter(framedBloomFilter);
             // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            if (chainDownload != null)
+                chainDownload.addPeer(peer);
             // Re-evaluate download peers.
-            Peer newDownloadPeer = selectDownloadPeer(peers);
+            Peer newDownloadPeer = selectDownloadPeer(getDownloadPeerCandidates());
             if (downloadPeer != newDownloadPeer) {
                 setDownloadPeer(newDownloadPeer);
                 boolean shouldDownloadChain = downloadListener != null && chain != null;
@@ -1009,6 +1235,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 peer.addEventListenerWithoutOnDisconnect(registration.listener, registration.executor);
             }
             setupPingingForNewPeer(peer);
+            PeerDatabase peerDatabase = vPeerDatabase;
+            if (peerDatabase != null) {
+                peerDatabase.markSuccess(peer.getAddress().toSocketAddress());
+                peer.sendMessage(new GetAddrMessage(params));
+            }
         } finally {
             lock.unlock();
         }
@@ -1160,16 +1391,26 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         lock.lock();
         try {
             pendingPeers.remove(peer);
-            peers.remove(peer);
+            boolean wasConnected = peers.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            PeerDatabase peerDatabase = vPeerDatabase;
+            if (peerDatabase != null) {
+                if (!wasConnected)
+                    peerDatabase.markFailure(address.toSocketAddress());
+                else if (peer.getPingTime() != Long.MAX_VALUE)
+                    peerDatabase.setLatency(address.toSocketAddress(), peer.getPingTime());
+            }
 
             log.info("{}: Peer died", address);
+            if (chainDownload != null)
+                chainDownload.removePeer(peer);
+            stalledPeers.remove(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
                 // Pick a new one and possibly tell it to download the chain.
-                final Peer newDownloadPeer = selectDownloadPeer(peers);
+                final Peer newDownloadPeer = selectDownloadPeer(getDownloadPeerCandidates());
                 if (newDownloadPeer != null) {
                     setDownloadPeer(newDownloadPeer);
                     if (downloadListener != null) {
@@ -1215,8 +1456,123 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         lock.lock();
         try {
             setDownloadPeer(peer);
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            if (chainDownload != null) {
+                // A parallel download is already running, carry on with the new download peer.
+                chainDownload.setDownloadPeer(peer);
+            } else if (maxBlockDownloadPeers > 1 && chain != null && isRunning()) {
+                startChainDownload(peer);
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The peers the download peer may be chosen from: those which were not replaced for being too slow, unless that
+    // rules out all of them.
+    private List<Peer> getDownloadPeerCandidates() {
+        checkState(lock.isHeldByCurrentThread());
+        List<Peer> candidates = new ArrayList<Peer>(peers);
+        candidates.removeAll(stalledPeers);
+        return candidates.isEmpty() ? peers : candidates;
+    }
+
+    // Runs once a second. Replaces the download peer if it was too slow for the whole stall period. Its speed is also
+    // available to applications from Peer.getDownloadBytesPerSec() and getDownloadBlocksPerSec().
+    private void checkDownloadSpeed() {
+        lock.lock();
+        try {
+            Peer peer = downloadPeer;
+            // Only watch the single peer download whilst there is something left to download.
+            if (stallPeriodSeconds == 0 || peer == null || chain == null || downloadListener == null ||
+                    chainDownload != null || !isRunning() || peer.getBestHeight() <= chain.getBestChainHeight()) {
+                downloadSamples.clear();
+                downloadSamplesPeer = null;
+                return;
+            }
+            if (peer != downloadSamplesPeer) {
+                downloadSamples.clear();
+                downloadSamplesPeer = peer;
+            }
+            downloadSamples.addLast(peer.getDownloadedBytes());
+            if (downloadSamples.size() > stallPeriodSeconds) {
+                long bytes = downloadSamples.getLast() - downloadSamples.removeFirst();
+                long bytesPerSec = bytes / stallPeriodSeconds;
+                if (bytesPerSec < stallMinBytesPerSec) {
+                    stalledPeers.add(peer);
+                    Peer newDownloadPeer = selectDownloadPeer(getDownloadPeerCandidates());
+                    if (newDownloadPeer != null && newDownloadPeer != peer) {
+                        log.warn("{}: Download peer only sent {} bytes/sec over the last {} seconds, switching to {}",
+                                peer, bytesPerSec, stallPeriodSeconds, newDownloadPeer);
+                        startBlockChainDownloadFromPeer(newDownloadPeer);
+                    } else {
+                        log.warn("{}: Download peer only sent {} bytes/sec over the last {} seconds, but there is no " +
+                                "other peer to switch to", peer, bytesPerSec, stallPeriodSeconds);
+                        stalledPeers.remove(peer);
+                    }
+                    downloadSamples.clear();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startChainDownload(Peer peer) {
+        checkState(lock.isHeldByCurrentThread());
+        final ChainDownloadScheduler scheduler = new ChainDownloadScheduler(params, chain, maxBlockDownloadPeers,
+                bloomFilter != null, fastCatchupTimeSecs, new ChainDownloadScheduler.Listener() {
+            @Override
+            public void onChainDownloadFinished(ChainDownloadScheduler scheduler, boolean completed) {
+                chainDownloadFinished(scheduler, completed);
+            }
+        });
+        chainDownload = scheduler;
+        peer.invokeOnChainDownloadStarted((int) Math.max(0, peer.getBestHeight() - chain.getBestChainHeight()));
+        chainDownloadStallTask = new TimerTask() {
+            @Override
+            public void run() {
+                scheduler.checkForStalls();
+            }
+        };
+        try {
+            vPingTimer.schedule(chainDownloadStallTask, CHAIN_DOWNLOAD_STALL_CHECK_MSEC, CHAIN_DOWNLOAD_STALL_CHECK_MSEC);
+        } catch (IllegalStateException ignored) {
+            // Shutdown race, the scheduler will be stopped by shutDown().
+        }
+        scheduler.start(peer, peers);
+    }
+
+    private void chainDownloadFinished(ChainDownloadScheduler scheduler, boolean completed) {
+        lock.lock();
+        try {
+            if (chainDownload != scheduler)
+                return;
+            stopChainDownload();
+            // Hand over to the single peer download. If the parallel download completed, this just picks up anything
+            // solved in the meantime, otherwise it takes over where the parallel download left off.
+            if (!completed)
+                log.info("Parallel chain download abandoned, continuing from a single peer");
+            if (downloadPeer != null && downloadListener != null && isRunning())
+                downloadPeer.startBlockChainDownload();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void stopChainDownload() {
+        lock.lock();
+        try {
+            if (chainDownloadStallTask != null) {
+                chainDownloadStallTask.cancel();
+                chainDownloadStallTask = null;
+            }
+            if (chainDownload != null) {
+                chainDownload.stop();
+                chainDownload = null;
+            }
         } finally {
             lock.unlock();
         }
@@ -1393,6 +1749,69 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         this.vMinRequiredProtocolVersion = minRequiredProtocolVersion;
     }
 
+    /**
+     * <p>Makes peers connected from now on process the messages they receive on the given executor, instead of on the
+     * thread which reads from the network. Each peer still handles its own messages one at a time and in order, but a
+     * block which is slow to verify no longer stops data from being read from all the other peers. If a peer falls
+     * too far behind, reading from its socket is paused until it catches up. See
+     * {@link PeerSocketHandler#setMessageExecutor(java.util.concurrent.Executor, int)}.</p>
+     *
+     * <p>A pool shared by all peers such as {@link Threading#THREAD_POOL} is a reasonable choice. The default, null,
+     * processes messages on the network thread.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.vMessageExecutor = executor;
+    }
+
+    /**
+     * <p>Sets how many peers blocks are fetched from at once when downloading the block chain. The default of one
+     * downloads everything from the download peer. With more, the header chain is fetched from the download peer and
+     * the blocks, or filtered blocks if a Bloom filter is in use, are requested from up to this many peers in
+     * parallel. Requests that a peer is slow to answer are moved to other peers.</p>
+     *
+     * <p>Takes effect the next time a chain download starts.</p>
+     */
+    public void setMaxBlockDownloadPeers(int maxBlockDownloadPeers) {
+        checkArgument(maxBlockDownloadPeers > 0);
+        lock.lock();
+        try {
+            this.maxBlockDownloadPeers = maxBlockDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets when the download peer counts as stalled: if, during chain download, it sends fewer than bytesPerSecond
+     * bytes of blocks and headers per second on average over periodSecs seconds. A stalled download peer is replaced
+     * by another one, and isn't chosen again while other peers are available.</p>
+     *
+     * <p>Stall detection is off by default, as a fixed threshold can make a group on a slow link keep switching
+     * between peers. A period of zero turns it off again. {@link #DEFAULT_STALL_MIN_BYTES_PER_SEC} is a reasonable
+     * threshold on a fast link.</p>
+     */
+    public void setStallThreshold(int periodSecs, int bytesPerSecond) {
+        checkArgument(periodSecs >= 0 && bytesPerSecond >= 0);
+        lock.lock();
+        try {
+            stallPeriodSeconds = periodSecs;
+            stallMinBytesPerSec = bytesPerSecond;
+            downloadSamples.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** See {@link PeerGroup#setMaxBlockDownloadPeers(int)}. */
+    public int getMaxBlockDownloadPeers() {
+        lock.lock();
+        try {
+            return maxBlockDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /** The minimum protocol version required: defaults to the version required for Bloom filtering. */
     public int getMinRequiredProtocolVersion() {
         return vMinRequiredProtocolVersion;
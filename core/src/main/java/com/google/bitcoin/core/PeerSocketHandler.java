@@ -24,13 +24,17 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -43,6 +47,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
     private final BitcoinSerializer serializer;
+    private final long packetMagic;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
@@ -51,20 +56,45 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. The buffer is
+    // only held while a message is being assembled in it (header is non-null), then goes back to a small pool shared
+    // by all connections, so idle peers don't each hold on to up to a block's worth of memory.
+    private static final int MAX_POOLED_READ_BUFFER_SIZE = Block.MAX_BLOCK_SIZE;
+    private static final int MAX_POOLED_READ_BUFFERS = 4;
+    @GuardedBy("largeReadBufferPool")
+    private static final ArrayDeque<byte[]> largeReadBufferPool = new ArrayDeque<byte[]>();
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    /** The default for the number of received messages which may wait to be processed before reading is paused. */
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 32;
+    // If messageExecutor is set, received messages are not processed on the network thread but queued in inboundQueue,
+    // which is drained in order by at most one task at a time on messageExecutor. Once maxQueuedMessages are waiting,
+    // reading from the socket is paused until the queue is half empty again.
+    @Nullable private volatile Executor messageExecutor;
+    private volatile int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    @GuardedBy("lock") private final ArrayDeque<Runnable> inboundQueue = new ArrayDeque<Runnable>();
+    @GuardedBy("lock") private int queuedMessageCount = 0;
+    @GuardedBy("lock") private boolean drainScheduled = false;
+    @GuardedBy("lock") private boolean readPaused = false;
+    // Set once processing a message failed and the connection is being closed, after which queued messages are dropped.
+    private volatile boolean processingFailed = false;
+    // How many queued tasks a drain task runs before giving its thread back to the executor, so that a busy peer can't
+    // starve the others when the executor has fewer threads than there are peers.
+    private static final int MAX_TASKS_PER_DRAIN = 16;
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer(checkNotNull(params));
+        packetMagic = params.getPacketMagic();
         this.peerAddress = new PeerAddress(remoteIp);
     }
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
         serializer = new BitcoinSerializer(checkNotNull(params));
+        packetMagic = params.getPacketMagic();
         this.peerAddress = checkNotNull(peerAddress);
     }
 
@@ -74,6 +104,17 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public void sendMessage(Message message) throws NotYetConnectedException {
+        sendMessage(serializer.frame(message));
+    }
+
+    /**
+     * Sends an already serialized message to the peer. Use {@link BitcoinSerializer#frame(Message)} to serialize a
+     * message once and then send it to several peers. Throws NotYetConnectedException if we are not yet connected to
+     * the remote peer.
+     */
+    public void sendMessage(FramedMessage message) throws NotYetConnectedException {
+        checkArgument(message.getPacketMagic() == packetMagic,
+                "Message was framed for a different network");
         lock.lock();
         try {
             if (writeTarget == null)
@@ -81,11 +122,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            // The framed bytes may be shared with other peers, which is fine as write targets never modify them.
+            writeTarget.writeBytes(message.getBytes());
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -113,11 +152,139 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         close();
     }
 
+    private static byte[] borrowLargeReadBuffer(int size) {
+        synchronized (largeReadBufferPool) {
+            for (Iterator<byte[]> it = largeReadBufferPool.iterator(); it.hasNext(); ) {
+                byte[] buffer = it.next();
+                if (buffer.length >= size) {
+                    it.remove();
+                    return buffer;
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    private static void releaseLargeReadBuffer(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_READ_BUFFER_SIZE)
+            return;
+        synchronized (largeReadBufferPool) {
+            if (largeReadBufferPool.size() < MAX_POOLED_READ_BUFFERS)
+                largeReadBufferPool.add(buffer);
+        }
+    }
+
     /**
      * Called every time a message is received from the network
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * <p>Makes received messages be processed on the given executor instead of the network thread, so that a slow
+     * message (eg a block which has to be verified and passed to wallets) doesn't hold up reading from other
+     * connections. Messages from this peer are still processed one at a time and in the order they arrived, so the
+     * executor may be a pool shared by many peers. If more than maxQueuedMessages are waiting to be processed, reading
+     * from the socket is paused until the backlog has been halved, which makes the remote peer slow down.</p>
+     *
+     * <p>Must be called before the connection is opened. Passing null processes messages on the network thread, which
+     * is the default.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor, int maxQueuedMessages) {
+        checkArgument(maxQueuedMessages > 0);
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.messageExecutor = executor;
+    }
+
+    /**
+     * Runs the given task after every message received so far has been passed to {@link #processMessage(Message)},
+     * on the thread which processes messages. Subclasses use this for events which must be seen in order with the
+     * messages, such as the connection closing.
+     */
+    protected void executeInOrder(Runnable task) {
+        if (messageExecutor == null)
+            task.run();
+        else
+            enqueue(task, false);
+    }
+
+    // Either processes the message right away or queues it for the message executor
+    private void dispatchMessage(final Message message) throws Exception {
+        if (messageExecutor == null) {
+            processMessage(message);
+            return;
+        }
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                if (processingFailed)
+                    return;
+                try {
+                    processMessage(message);
+                } catch (Exception e) {
+                    processingFailed = true;
+                    exceptionCaught(e);
+                }
+            }
+        }, true);
+    }
+
+    private void enqueue(Runnable task, boolean isMessage) {
+        boolean schedule, pause = false;
+        MessageWriteTarget target;
+        lock.lock();
+        try {
+            inboundQueue.add(task);
+            if (isMessage && ++queuedMessageCount >= maxQueuedMessages && !readPaused)
+                pause = readPaused = true;
+            schedule = !drainScheduled;
+            drainScheduled = true;
+            target = writeTarget;
+        } finally {
+            lock.unlock();
+        }
+        if (pause && target != null) {
+            log.debug("{}: Pausing reads, {} messages waiting to be processed", getAddress(), maxQueuedMessages);
+            target.setReadPaused(true);
+        }
+        if (schedule)
+            checkNotNull(messageExecutor).execute(drainInboundQueue);
+    }
+
+    // Runs queued tasks in order. Only one of these is scheduled on the message executor at any time.
+    private final Runnable drainInboundQueue = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_TASKS_PER_DRAIN; i++) {
+                Runnable task;
+                boolean resume = false;
+                MessageWriteTarget target;
+                lock.lock();
+                try {
+                    task = inboundQueue.poll();
+                    if (task == null) {
+                        drainScheduled = false;
+                        return;
+                    }
+                    // Tasks which aren't messages are never counted, so this only undercounts messages momentarily
+                    if (queuedMessageCount > 0)
+                        queuedMessageCount--;
+                    if (readPaused && queuedMessageCount <= maxQueuedMessages / 2) {
+                        readPaused = false;
+                        resume = true;
+                    }
+                    target = writeTarget;
+                } finally {
+                    lock.unlock();
+                }
+                if (resume && target != null)
+                    target.setReadPaused(false);
+                task.run();
+            }
+            // Let other peers have a go before carrying on with our backlog
+            checkNotNull(messageExecutor).execute(this);
+        }
+    };
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
@@ -126,19 +293,24 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
             for (int i = 0; true; i++) {
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
+                if (header != null) {
                     // This can only happen in the first iteration
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                    if (largeReadBufferPos == header.size) {
+                        // ...processing a message if one is available. It is parsed in place and doesn't keep a
+                        // reference to largeReadBuffer, so the buffer can be released before the message is handled.
+                        BitcoinSerializer.BitcoinPacketHeader largeHeader = header;
                         header = null;
+                        Message message = serializer.deserializePayload(largeHeader,
+                                ByteBuffer.wrap(largeReadBuffer, 0, largeHeader.size));
+                        releaseLargeReadBuffer(largeReadBuffer);
+                        largeReadBuffer = null;
+                        dispatchMessage(message);
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
@@ -155,9 +327,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                         try {
                             serializer.seekPastMagicBytes(buff);
                             header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
+                            // Make sure the largeReadBuffer can hold the next message and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            largeReadBuffer = borrowLargeReadBuffer(header.size);
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
@@ -175,7 +347,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                dispatchMessage(message);
             }
         } catch (Exception e) {
             exceptionCaught(e);
@@ -18,11 +18,15 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.IsMultiBitClass;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.crypto.KeyCrypterException;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.script.ScriptOpCodes;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
@@ -33,6 +37,10 @@ import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.google.bitcoin.core.Utils.*;
 import static com.google.common.base.Preconditions.*;
@@ -332,11 +340,7 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
         for (TransactionInput input : inputs) {
             // This input is taking value from a transaction in our wallet. To discover the value,
             // we must find the connected transaction.
-            TransactionOutput connected = input.getConnectedOutput(wallet.unspent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.spent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.pending);
+            TransactionOutput connected = wallet.getSpentOutput(input);
             if (connected == null)
                 continue;
             // The connected output may be the change to the sender of a previous input sent to this wallet. In this
@@ -415,6 +419,8 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
 
     public void setUpdateTime(Date updatedAt) {
         this.updatedAt = updatedAt;
+        if (confidence != null)
+            confidence.updateTimeChanged();
     }
 
     /**
@@ -787,11 +793,34 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
      * signature is over the transaction itself, to prove the redeemer actually created that transaction,
      * so we have to do this step last.</p>
      *
+     * <p>Inputs are signed in parallel on {@link Threading#THREAD_POOL}, see
+     * {@link #signInputs(SigHash, Wallet, KeyParameter, ExecutorService)}.</p>
+     *
      * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
      * @param wallet  A wallet is required to fetch the keys needed for signing.
      * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey) throws ScriptException {
+        signInputs(hashType, wallet, aesKey, Threading.THREAD_POOL);
+    }
+
+    /**
+     * <p>Once a transaction has some inputs and outputs added, the signatures in the inputs can be calculated. The
+     * signature is over the transaction itself, to prove the redeemer actually created that transaction,
+     * so we have to do this step last.</p>
+     *
+     * <p>Each encrypted key is decrypted only once, however many inputs it signs for. The signature hashes and
+     * signatures are then calculated on the given executor, split into one chunk per processor, without modifying
+     * the transaction. The transaction must not be changed by other threads while this method runs.</p>
+     *
+     * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
+     * @param wallet  A wallet is required to fetch the keys needed for signing.
+     * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
+     * @param executor The executor to calculate signatures on, or null to calculate them on the calling thread.
+     */
+    public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey,
+                                        @Nullable ExecutorService executor) throws ScriptException {
+        maybeParse();
         checkState(inputs.size() > 0);
         checkState(outputs.size() > 0);
 
@@ -807,42 +836,63 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
 
         TransactionSignature[] signatures = new TransactionSignature[inputs.size()];
         ECKey[] signingKeys = new ECKey[inputs.size()];
-        for (int i = 0; i < inputs.size(); i++) {
-            TransactionInput input = inputs.get(i);
-            // We don't have the connected output, we assume it was signed already and move on
-            if (input.getOutpoint().getConnectedOutput() == null) {
-                log.warn("Missing connected output, assuming input {} is already signed.", i);
-                continue;
-            }
-            try {
-                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                // we sign missing pieces (to check this would require either assuming any signatures are signing
-                // standard output types or a way to get processed signatures out of script execution)
-                input.getScriptSig().correctlySpends(this, i, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
-                log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
-                continue;
-            } catch (ScriptException e) {
-                // Expected.
+        List<SigningJob> jobs = new ArrayList<SigningJob>(inputs.size());
+        // Encrypted keys are decrypted once each, and the decrypted copies wiped when we're done.
+        Map<ECKey, ECKey> decryptedKeys = new HashMap<ECKey, ECKey>();
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                // We don't have the connected output, we assume it was signed already and move on
+                if (input.getOutpoint().getConnectedOutput() == null) {
+                    log.warn("Missing connected output, assuming input {} is already signed.", i);
+                    continue;
+                }
+                try {
+                    // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                    // we sign missing pieces (to check this would require either assuming any signatures are signing
+                    // standard output types or a way to get processed signatures out of script execution)
+                    input.getScriptSig().correctlySpends(this, i, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
+                    log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
+                    continue;
+                } catch (ScriptException e) {
+                    // Expected.
+                }
+                if (input.getScriptBytes().length != 0)
+                    log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
+                // Find the signing key we'll need to use.
+                ECKey key = input.getOutpoint().getConnectedKey(wallet);
+                // This assert should never fire. If it does, it means the wallet is inconsistent.
+                checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
+                // Keep the key around for the script creation step below.
+                signingKeys[i] = key;
+                if (key.hasPrivKey() || key.isEncrypted()) {
+                    ECKey privateKey = key;
+                    // Without an AES key, signing with the encrypted key below fails in the usual way.
+                    if (key.isEncrypted() && aesKey != null) {
+                        privateKey = decryptedKeys.get(key);
+                        if (privateKey == null) {
+                            try {
+                                privateKey = key.decrypt(key.getKeyCrypter(), aesKey);
+                            } catch (KeyCrypterException e) {
+                                // Fail the same way ECKey.sign() does when given the wrong AES key.
+                                throw new KeyCrypterException("Could not decrypt bytes", e);
+                            }
+                            decryptedKeys.put(key, privateKey);
+                        }
+                    }
+                    jobs.add(new SigningJob(i, privateKey, input.getOutpoint().getConnectedPubKeyScript()));
+                } else {
+                    // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
+                    // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
+                    // be doing something special and that they will replace the dummy signature with a real one later.
+                    signatures[i] = TransactionSignature.dummy();
+                }
             }
-            if (input.getScriptBytes().length != 0)
-                log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
-            // Find the signing key we'll need to use.
-            ECKey key = input.getOutpoint().getConnectedKey(wallet);
-            // This assert should never fire. If it does, it means the wallet is inconsistent.
-            checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
-            // Keep the key around for the script creation step below.
-            signingKeys[i] = key;
             // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
-            byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
-            if (key.hasPrivKey() || key.isEncrypted()) {
-                signatures[i] = calculateSignature(i, key, aesKey, connectedPubKeyScript, hashType, anyoneCanPay);
-            } else {
-                // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
-                // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
-                // be doing something special and that they will replace the dummy signature with a real one later.
-                signatures[i] = TransactionSignature.dummy();
-            }
+            calculateSignatures(jobs, signatures, hashType, false, executor);
+        } finally {
+            for (ECKey decryptedKey : decryptedKeys.values())
+                decryptedKey.clearPrivateKey();
         }
 
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
@@ -871,6 +921,63 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
         // Every input is now complete.
     }
 
+    private static class SigningJob {
+        final int inputIndex;
+        final ECKey key;
+        final byte[] connectedPubKeyScript;
+
+        SigningJob(int inputIndex, ECKey key, byte[] connectedPubKeyScript) {
+            this.inputIndex = inputIndex;
+            this.key = key;
+            this.connectedPubKeyScript = connectedPubKeyScript;
+        }
+    }
+
+    /**
+     * Fills in the signature for each job. The caller must hold the lock on this transaction, which is why the
+     * workers only use {@link #calculateSignatureHash(int, byte[], byte)} and never this objects synchronized methods.
+     */
+    private void calculateSignatures(final List<SigningJob> jobs, final TransactionSignature[] signatures,
+                                     final SigHash hashType, final boolean anyoneCanPay,
+                                     @Nullable ExecutorService executor) {
+        final byte sigHashType = (byte) TransactionSignature.calcSigHashValue(hashType, anyoneCanPay);
+        int chunks = executor == null ? 1 : Math.min(jobs.size(), Runtime.getRuntime().availableProcessors());
+        if (chunks <= 1) {
+            for (SigningJob job : jobs)
+                signatures[job.inputIndex] = calculateSignature(job, sigHashType, hashType, anyoneCanPay);
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int start = (int) ((long) jobs.size() * chunk / chunks);
+            final int end = (int) ((long) jobs.size() * (chunk + 1) / chunks);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // Each job writes a different slot of the array, and Future.get() publishes them to the caller.
+                    for (int i = start; i < end; i++) {
+                        SigningJob job = jobs.get(i);
+                        signatures[job.inputIndex] = calculateSignature(job, sigHashType, hashType, anyoneCanPay);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+    }
+
+    private TransactionSignature calculateSignature(SigningJob job, byte sigHashType, SigHash hashType,
+                                                    boolean anyoneCanPay) {
+        Sha256Hash hash = calculateSignatureHash(job.inputIndex, job.connectedPubKeyScript, sigHashType);
+        return new TransactionSignature(job.key.sign(hash), hashType, anyoneCanPay);
+    }
+
     /**
      * Calculates a signature that is valid for being inserted into the input at the given position. This is simply
      * a wrapper around calling {@link Transaction#hashForSignature(int, byte[], com.google.bitcoin.core.Transaction.SigHash, boolean)}
@@ -951,25 +1058,23 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
      */
     public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        maybeParse();
+        return calculateSignatureHash(inputIndex, connectedScript, sigHashType);
+    }
+
+    /**
+     * Does the work of {@link #hashForSignature(int, byte[], byte)}. The simplified transaction is written straight
+     * out instead of being made by temporarily editing this one, so nothing here modifies the transaction or needs
+     * its lock, and several threads can calculate hashes for different inputs at once. This transaction must
+     * already be parsed.
+     */
+    private Sha256Hash calculateSignatureHash(int inputIndex, byte[] connectedScript, byte sigHashType) {
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
         try {
-            // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            //
-            // Also store the input sequence numbers in case we are clearing them with SigHash.NONE/SINGLE
-            byte[][] inputScripts = new byte[inputs.size()][];
-            long[] inputSequenceNumbers = new long[inputs.size()];
-            for (int i = 0; i < inputs.size(); i++) {
-                inputScripts[i] = inputs.get(i).getScriptBytes();
-                inputSequenceNumbers[i] = inputs.get(i).getSequenceNumber();
-                inputs.get(i).setScriptBytes(TransactionInput.EMPTY_ARRAY);
-            }
-
             // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
             // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
             // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
@@ -979,81 +1084,98 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
             // do it, we could split off the main chain.
             connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
 
-            // Set the input to the script of its output. Satoshi does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
+            boolean signNone = (sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1);
+            boolean signSingle = (sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1);
+            if (signSingle && inputIndex >= outputs.size()) {
+                // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+                // Bitcoin implementation. The reference client also contains a bug in handling this case:
+                // any transaction output that is signed in this case will result in both the signed output
+                // and any future outputs to this public key being steal-able by anyone who has
+                // the resulting signature and the public key (both of which are part of the signed tx input).
+                //
+                // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+                // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+                //
+                // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+                return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+            }
+
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(
+                    (length == UNKNOWN_LENGTH ? 256 : length + 4) + connectedScript.length);
+            uint32ToByteStreamLE(version, bos);
 
-            ArrayList<TransactionOutput> outputs = this.outputs;
-            if ((sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1)) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                this.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1)) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= this.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
-                    for (int i = 0; i < inputs.size(); i++) {
-                        inputs.get(i).setScriptBytes(inputScripts[i]);
-                        inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
+            // All input scripts are blanked except for the input being signed, which gets the script of the output
+            // it connects to. Satoshi does this but the step has no obvious purpose as the signature covers the hash
+            // of the prevout transaction which obviously includes the output script already. Perhaps it felt safer
+            // to him in some way, or is another leftover from how the code was written.
+            if ((sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE) {
+                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+                // of other inputs. For example, this is useful for building assurance contracts.
+                bos.write(new VarInt(1).encode());
+                TransactionInput input = inputs.get(inputIndex);
+                writeInputForSignature(bos, input, connectedScript, input.getSequenceNumber());
+            } else {
+                bos.write(new VarInt(inputs.size()).encode());
+                for (int i = 0; i < inputs.size(); i++) {
+                    TransactionInput input = inputs.get(i);
+                    if (i == inputIndex) {
+                        writeInputForSignature(bos, input, connectedScript, input.getSequenceNumber());
+                    } else {
+                        // With SIGHASH_NONE and SIGHASH_SINGLE the signature isn't broken by new versions of the
+                        // transaction issued by other parties, so their sequence numbers are left out.
+                        long sequence = signNone || signSingle ? 0 : input.getSequenceNumber();
+                        writeInputForSignature(bos, input, TransactionInput.EMPTY_ARRAY, sequence);
                     }
-                    this.outputs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
                 }
+            }
+
+            if (signNone) {
+                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+                bos.write(new VarInt(0).encode());
+            } else if (signSingle) {
                 // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
                 // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                this.outputs = new ArrayList<TransactionOutput>(this.outputs.subList(0, inputIndex + 1));
+                bos.write(new VarInt(inputIndex + 1).encode());
                 for (int i = 0; i < inputIndex; i++)
-                    this.outputs.set(i, new TransactionOutput(params, this, NEGATIVE_ONE, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            }
-
-            ArrayList<TransactionInput> inputs = this.inputs;
-            if ((sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.inputs = new ArrayList<TransactionInput>();
-                this.inputs.add(input);
+                    writeOutputForSignature(bos, NEGATIVE_ONE, TransactionInput.EMPTY_ARRAY);
+                TransactionOutput output = outputs.get(inputIndex);
+                writeOutputForSignature(bos, output.getValue(), output.getScriptBytes());
+            } else {
+                bos.write(new VarInt(outputs.size()).encode());
+                for (TransactionOutput output : outputs)
+                    writeOutputForSignature(bos, output.getValue(), output.getScriptBytes());
             }
+            uint32ToByteStreamLE(lockTime, bos);
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            bitcoinSerialize(bos);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
             uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
             Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
             bos.close();
-
-            // Put the transaction back to how we found it.
-            this.inputs = inputs;
-            for (int i = 0; i < inputs.size(); i++) {
-                inputs.get(i).setScriptBytes(inputScripts[i]);
-                inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-            }
-            this.outputs = outputs;
             return hash;
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
     }
 
+    private static void writeInputForSignature(OutputStream stream, TransactionInput input, byte[] scriptBytes,
+                                               long sequence) throws IOException {
+        TransactionOutPoint outpoint = input.getOutpoint();
+        stream.write(reverseBytes(outpoint.getHash().getBytes()));
+        uint32ToByteStreamLE(outpoint.getIndex(), stream);
+        stream.write(new VarInt(scriptBytes.length).encode());
+        stream.write(scriptBytes);
+        uint32ToByteStreamLE(sequence, stream);
+    }
+
+    private static void writeOutputForSignature(OutputStream stream, BigInteger value, byte[] scriptBytes)
+            throws IOException {
+        int64ToByteStreamLE(value.longValue(), stream);
+        stream.write(new VarInt(scriptBytes.length).encode());
+        stream.write(scriptBytes);
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         uint32ToByteStreamLE(version, stream);
@@ -1335,11 +1457,7 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
             // This input is taking value from an transaction in our wallet. To
             // discover the value,
             // we must find the connected transaction.
-            TransactionOutput connected = input.getConnectedOutput(wallet.unspent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.spent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.pending);
+            TransactionOutput connected = wallet.getSpentOutput(input);
             if (connected == null)
                 continue;
             totalIn = totalIn.add(connected.getValue());
@@ -1371,11 +1489,7 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
             // This input is taking value from an transaction in our wallet. To
             // discover the value,
             // we must find the connected transaction.
-            TransactionOutput connected = input.getConnectedOutput(wallet.unspent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.spent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.pending);
+            TransactionOutput connected = wallet.getSpentOutput(input);
             if (connected == null)
                 continue;
             v = v.add(connected.getValue());
@@ -103,9 +103,11 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+            // Serialize the transaction once and share the bytes between all the peers it goes to.
+            FramedMessage framedTx = new BitcoinSerializer(pinnedTx.getParams()).frame(pinnedTx);
             for (Peer peer : peers) {
                 try {
-                    peer.sendMessage(pinnedTx);
+                    peer.sendMessage(framedTx);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
                     // how many peers announced to us.
                 } catch (Exception e) {
@@ -28,7 +28,11 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -57,7 +61,8 @@ import java.util.concurrent.Executor;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * method to ensure the block depth and work done are up to date. Transactions in a {@link Wallet} instead follow the
+ * blocks the wallet is given, and work out their depth and work done when asked.</p>
  * To make a copy that won't be changed, use {@link com.google.bitcoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable, IsMultiBitClass {
@@ -83,6 +88,13 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // When attached to a chain tip, depth and workDone are only correct as of the tip position below; the blocks added
+    // since then are folded in when they are next read or written. See ChainTip.
+    @Nullable private transient ChainTip chainTip;
+    private transient int tipBlocks;
+    private transient BigInteger tipWork;
+    // The deepest depth a future returned by getDepthFuture is waiting for.
+    private transient int watchedDepth;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -236,6 +248,7 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
     public synchronized void setAppearedAtChainHeight(int appearedAtChainHeight) {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
+        syncWithTip();
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
@@ -256,6 +269,7 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         // Don't inform the event listeners if the confidence didn't really change.
         if (confidenceType == this.confidenceType)
             return;
+        syncWithTip();
         this.confidenceType = confidenceType;
         if (confidenceType == ConfidenceType.PENDING) {
             depth = 0;
@@ -343,6 +357,7 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
 
+        syncWithTip();
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
         return true;
@@ -359,6 +374,7 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        syncWithTip();
         return depth;
     }
 
@@ -366,6 +382,7 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        syncWithTip();
         this.depth = depth;
     }
 
@@ -377,13 +394,58 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
+        syncWithTip();
         return workDone;
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        syncWithTip();
         this.workDone = workDone;
     }
 
+    /**
+     * Makes the depth and work done of this transaction follow the given tip from now on, instead of being updated
+     * block by block with {@link #notifyWorkDone(Block)}. Used by the {@link Wallet} that holds the transaction.
+     */
+    synchronized void attachTo(ChainTip tip) {
+        syncWithTip();
+        chainTip = tip;
+        synchronized (tip) {
+            tipBlocks = tip.blocks;
+            tipWork = tip.work;
+        }
+    }
+
+    /**
+     * Like {@link #attachTo(ChainTip)}, but as if attached back when the tip had seen the given number of blocks and
+     * amount of work, so the blocks added since then count towards depth and work done.
+     */
+    synchronized void attachTo(ChainTip tip, int blocks, BigInteger work) {
+        syncWithTip();
+        chainTip = tip;
+        tipBlocks = blocks;
+        tipWork = work;
+    }
+
+    // Folds the blocks added to the tip since the last call into depth and workDone.
+    private synchronized void syncWithTip() {
+        if (chainTip == null)
+            return;
+        synchronized (chainTip) {
+            if (confidenceType == ConfidenceType.BUILDING) {
+                depth += chainTip.blocks - tipBlocks;
+                workDone = workDone.add(chainTip.work.subtract(tipWork));
+            }
+            tipBlocks = chainTip.blocks;
+            tipWork = chainTip.work;
+        }
+    }
+
+    /** Returns the deepest depth that a future from {@link #getDepthFuture(int)} is waiting for, or zero. */
+    synchronized int getWatchedDepth() {
+        return watchedDepth;
+    }
+
     /**
      * If this transaction has been overridden by a double spend (is dead), this call returns the overriding transaction.
      * Note that this call <b>can return null</b> if you have migrated an old wallet, as pre-Jan 2012 wallets did not
@@ -460,6 +522,12 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         this.source = source;
     }
 
+    // Called when the update time of the transaction was changed, so the wallet can sort it again.
+    synchronized void updateTimeChanged() {
+        if (chainTip != null)
+            chainTip.updateTimeChanged(transaction);
+    }
+
     /**
      * Returns a future that completes when the transaction has been confirmed by "depth" blocks. For instance setting
      * depth to one will wait until it appears in a block on the best chain, and zero will wait until it has been seen
@@ -469,6 +537,11 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         final SettableFuture<Transaction> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
+        } else if (depth > watchedDepth) {
+            // Ask the wallet to keep telling us about new blocks until then.
+            watchedDepth = depth;
+            if (chainTip != null)
+                chainTip.requestWatch(transaction);
         }
         addEventListener(new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
@@ -488,4 +561,61 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
     public synchronized ListenableFuture<Transaction> getDepthFuture(final int depth) {
         return getDepthFuture(depth, Threading.USER_THREAD);
     }
+
+    /**
+     * <p>Counts the blocks and work added to the best chain, as seen by one {@link Wallet}. Confidence objects attached
+     * to it work out their depth and work done from how far the tip moved since they last looked, so a new block costs
+     * the wallet a single update instead of one per building transaction. Only transactions that are shallow enough
+     * to be interesting are told about the block, see {@link Wallet#setDepthNotificationLimit(int)}.</p>
+     *
+     * <p>A re-org is handled by the wallet as before: it subtracts the depth and work of the old blocks from each
+     * transaction, then adds the new blocks to the tip one by one.</p>
+     */
+    static final class ChainTip {
+        // Guarded by this.
+        private int blocks;
+        private BigInteger work = BigInteger.ZERO;
+        private final Set<Transaction> watchRequests = new HashSet<Transaction>();
+        private final Set<Transaction> updateTimeChanges = new HashSet<Transaction>();
+
+        /** Buries every building transaction attached to this tip under one more block. */
+        synchronized void addBlock(BigInteger blockWork) {
+            blocks++;
+            work = work.add(blockWork);
+        }
+
+        synchronized int getBlocks() {
+            return blocks;
+        }
+
+        synchronized BigInteger getWork() {
+            return work;
+        }
+
+        synchronized void requestWatch(Transaction tx) {
+            watchRequests.add(tx);
+        }
+
+        /** Returns and forgets the transactions that want to hear about new blocks again, see getDepthFuture. */
+        synchronized List<Transaction> takeWatchRequests() {
+            if (watchRequests.isEmpty())
+                return new ArrayList<Transaction>(0);
+            List<Transaction> result = new ArrayList<Transaction>(watchRequests);
+            watchRequests.clear();
+            return result;
+        }
+
+        synchronized void updateTimeChanged(Transaction tx) {
+            updateTimeChanges.add(tx);
+        }
+
+        /** Returns and forgets the transactions whose update time was changed since the last call. */
+        synchronized List<Transaction> takeUpdateTimeChanges() {
+            if (updateTimeChanges.isEmpty())
+                return new ArrayList<Transaction>(0);
+            List<Transaction> result = new ArrayList<Transaction>(updateTimeChanges);
+            updateTimeChanges.clear();
+            return result;
+        }
+    }
 }
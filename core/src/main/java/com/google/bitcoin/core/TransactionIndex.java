@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Keeps the transactions of a {@link Wallet} sorted by update time, by the height of the block they appeared in and
+ * by the addresses they pay to or spend from, so that pages of history can be read without sorting the whole wallet.
+ * Transactions are indexed by hash, which lets the wallet index transactions it hasn't decoded yet. Not thread safe,
+ * the wallet only uses it with its lock held.
+ */
+final class TransactionIndex {
+    private static final Comparator<byte[]> BYTES = UnsignedBytes.lexicographicalComparator();
+
+    private static final class Entry {
+        final Sha256Hash hash;
+        final long time;
+        final int height;
+        final boolean dead;
+        final Set<Address> addresses;
+
+        Entry(Sha256Hash hash, long time, int height, boolean dead, Set<Address> addresses) {
+            this.hash = hash;
+            this.time = time;
+            this.height = height;
+            this.dead = dead;
+            this.addresses = addresses;
+        }
+    }
+
+    // Newest first. Hashes break ties, so that a cursor always points to one place.
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.time != b.time)
+                return a.time > b.time ? -1 : 1;
+            return BYTES.compare(a.hash.getBytes(), b.hash.getBytes());
+        }
+    };
+
+    // Highest first.
+    private static final Comparator<Entry> BY_HEIGHT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.height != b.height)
+                return a.height > b.height ? -1 : 1;
+            return BY_TIME.compare(a, b);
+        }
+    };
+
+    private static final Sha256Hash LOWEST_HASH = Sha256Hash.ZERO_HASH;
+
+    private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    private final TreeSet<Entry> byTime = new TreeSet<Entry>(BY_TIME);
+    private final TreeSet<Entry> byHeight = new TreeSet<Entry>(BY_HEIGHT);
+    private final Map<Address, TreeSet<Entry>> byAddress = new HashMap<Address, TreeSet<Entry>>();
+
+    /**
+     * Adds the given transaction, or updates it if it is in the index already.
+     *
+     * @param time      update time in milliseconds
+     * @param height    height of the best chain block the transaction appeared in, or -1 if it isn't in one
+     * @param addresses our addresses the transaction pays to or spends from, if known
+     */
+    void put(Sha256Hash hash, long time, int height, boolean dead, Set<Address> addresses) {
+        Entry old = entries.get(hash);
+        if (old != null) {
+            if (old.time == time && old.height == height && old.dead == dead && old.addresses.equals(addresses))
+                return;
+            remove(hash);
+        }
+        Entry entry = new Entry(hash, time, height, dead, addresses);
+        entries.put(hash, entry);
+        byTime.add(entry);
+        if (height >= 0)
+            byHeight.add(entry);
+        for (Address address : addresses) {
+            TreeSet<Entry> set = byAddress.get(address);
+            if (set == null) {
+                set = new TreeSet<Entry>(BY_TIME);
+                byAddress.put(address, set);
+            }
+            set.add(entry);
+        }
+    }
+
+    void remove(Sha256Hash hash) {
+        Entry entry = entries.remove(hash);
+        if (entry == null)
+            return;
+        byTime.remove(entry);
+        byHeight.remove(entry);
+        for (Address address : entry.addresses) {
+            TreeSet<Entry> set = byAddress.get(address);
+            set.remove(entry);
+            if (set.isEmpty())
+                byAddress.remove(address);
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        byTime.clear();
+        byHeight.clear();
+        byAddress.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns up to limit hashes, newest first, of the transactions updated before the given time, or of all of them if
+     * it is null.
+     */
+    List<Sha256Hash> getBefore(@Nullable Date before, int limit, boolean includeDead) {
+        return pageFrom(byTime, before == null ? null : timeCursor(before), limit, includeDead);
+    }
+
+    /**
+     * Returns up to limit hashes of the transactions that come after the given one in time order, so older or as old
+     * but with a higher hash. The given transaction must be in the index.
+     */
+    List<Sha256Hash> getAfter(Sha256Hash cursor, int limit, boolean includeDead) {
+        Entry entry = entries.get(cursor);
+        if (entry == null)
+            throw new IllegalArgumentException("Transaction " + cursor + " is not in the wallet");
+        return page(byTime, byTime.tailSet(entry, false), limit, includeDead);
+    }
+
+    /**
+     * Returns up to limit hashes, highest block first, of the transactions that appeared in best chain blocks below
+     * the given height.
+     */
+    List<Sha256Hash> getBelowHeight(int height, int limit) {
+        Entry cursor = new Entry(LOWEST_HASH, Long.MAX_VALUE, height - 1, false, Collections.<Address>emptySet());
+        return page(byHeight, byHeight.tailSet(cursor, true), limit, false);
+    }
+
+    /** Like {@link #getBefore(java.util.Date, int, boolean)}, for the transactions involving the given address. */
+    List<Sha256Hash> getBefore(Address address, @Nullable Date before, int limit, boolean includeDead) {
+        TreeSet<Entry> set = byAddress.get(address);
+        if (set == null)
+            return new ArrayList<Sha256Hash>(0);
+        return pageFrom(set, before == null ? null : timeCursor(before), limit, includeDead);
+    }
+
+    // Sorts before every entry updated earlier than the given time and after all others.
+    private static Entry timeCursor(Date before) {
+        return new Entry(LOWEST_HASH, before.getTime() - 1, -1, false, Collections.<Address>emptySet());
+    }
+
+    private static List<Sha256Hash> pageFrom(TreeSet<Entry> set, @Nullable Entry from, int limit, boolean includeDead) {
+        return page(set, from == null ? set : set.tailSet(from, true), limit, includeDead);
+    }
+
+    private static List<Sha256Hash> page(TreeSet<Entry> set, SortedSet<Entry> tail, int limit, boolean includeDead) {
+        List<Sha256Hash> result = new ArrayList<Sha256Hash>(Math.min(limit, set.size()));
+        for (Entry entry : tail) {
+            if (result.size() >= limit)
+                break;
+            if (includeDead || !entry.dead)
+                result.add(entry.hash);
+        }
+        return result;
+    }
+}
@@ -33,7 +33,6 @@ import com.google.bitcoin.wallet.*;
 import com.google.bitcoin.wallet.WalletTransaction.Pool;
 import com.google.common.collect.*;
 import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -52,10 +51,12 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -108,6 +109,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
+    /** The default for {@link #setDepthNotificationLimit(int)}. */
+    public static final int DEFAULT_DEPTH_NOTIFICATION_LIMIT = 100;
+
     protected final ReentrantLock lock = Threading.lock("wallet");
 
     // The various pools below give quick access to wallet-relevant transactions by the state they're in:
@@ -139,9 +143,61 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // An immutable copy of the keychain with its indexes, replaced by indexKeychain() whenever addKeys, removeKey,
+    // encrypt or decrypt changed the keychain. Key lookups read it without taking the lock.
+    private transient volatile KeyIndex vKeyIndex;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
+    // An immutable copy of watchedScripts, replaced when scripts are added, for lookups that don't take the lock.
+    private transient volatile ImmutableSet<Script> vWatchedScripts;
+
+    // Outpoints that go into the Bloom filter, as the indexes of the outputs of each transaction that qualify (see
+    // isTxOutputBloomFilterable), kept up to date as transactions are added so that building a filter doesn't check
+    // every output of every transaction against the keychain. Null when it must be worked out again, because keys or
+    // scripts were added or transactions removed.
+    @GuardedBy("lock") @Nullable private transient LinkedHashMap<Sha256Hash, int[]> bloomOutPoints;
+    @GuardedBy("lock") private transient int bloomOutPointCount;
+
+    // Our outputs in the unspent and pending pools that aren't spent yet, including immature coinbases, and the
+    // balances worked out from them. getBalance is called a lot and these only change when transactions come and go,
+    // so they are kept until spendCandidatesChanged() drops them. Null when they must be worked out again.
+    @GuardedBy("lock") @Nullable private transient ArrayList<TransactionOutput> spendCandidates;
+    @GuardedBy("lock") @Nullable private transient BigInteger availableBalance, estimatedBalance;
+    // Whether spendCandidates held an immature coinbase when last checked, which a new block could make spendable.
+    @GuardedBy("lock") private transient boolean immatureCoinbaseCandidates;
+
+    // What changed since a WalletJournal last wrote to disk: transactions that were added, moved or had their confidence
+    // type changed, and new keys. Anything else can't be journaled and makes the next write a full snapshot. The sets
+    // are null when no journal is attached.
+    @GuardedBy("lock") @Nullable transient LinkedHashSet<Transaction> journalTransactions;
+    @GuardedBy("lock") @Nullable transient ArrayList<ECKey> journalKeys;
+    @GuardedBy("lock") transient boolean journalNeedsSnapshot;
+
+    // Spent and dead transactions of a wallet that was loaded with lazy history, still serialized and keyed by hash.
+    // They are decoded into the pools on first access, see decodeLocked(Sha256Hash) and decodeAllLocked(). Their depths
+    // are as of when they were set, so the chain tip is remembered at that point. Null when there are none.
+    @GuardedBy("lock") @Nullable private transient Map<Sha256Hash, UndecodedTransaction> undecodedTransactions;
+    @GuardedBy("lock") @Nullable private transient TransactionDecoder transactionDecoder;
+    @GuardedBy("lock") private transient int undecodedTipBlocks;
+    @GuardedBy("lock") @Nullable private transient BigInteger undecodedTipWork;
+
+    // All transactions of the wallet, undecoded ones included, sorted for the paged history queries. Entries are
+    // refreshed whenever a transaction is added, moved, or appears in or leaves a block, see indexTransaction. Adding or
+    // removing keys or watched scripts refreshes the entries of the transactions that pay to or spend from their
+    // addresses, see reindexAddressesLocked.
+    @GuardedBy("lock") private transient TransactionIndex index;
+
+    // Incremented whenever the balances or the transactions of the wallet change, see spendCandidatesChanged().
+    private transient volatile long vVersion;
+    // The balances and the transactions as of the end of the last wallet operation, for queries that find the lock
+    // taken by another thread. See publishLocked(). Null until queried, and again once nobody queried them for
+    // SNAPSHOT_IDLE_LIMIT changes, so a wallet nobody queries doesn't copy its transactions on every change.
+    private transient volatile Snapshot vBalances, vTransactions;
+    // Set by every query, see snapshot(boolean), and cleared by the next publishLocked().
+    private transient volatile boolean vBalancesQueried, vTransactionsQueried;
+    @GuardedBy("lock") private transient int balancesIdle, transactionsIdle;
+    private static final int SNAPSHOT_IDLE_LIMIT = 8;
 
     private NetworkParameters params;
 
@@ -159,6 +215,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Counts the blocks given to notifyNewBestBlock. The confidences of our transactions work out their depth and work
+    // done from it, so that a new block doesn't have to update every one of them.
+    private transient TransactionConfidence.ChainTip chainTip;
+    // The building transactions that are told about each new block, see setDepthNotificationLimit.
+    private transient HashSet<Transaction> shallowTransactions;
+    private transient int depthNotificationLimit;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -247,7 +309,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void createTransientState() {
+        indexKeychain();
+        vWatchedScripts = ImmutableSet.copyOf(watchedScripts);
+        index = new TransactionIndex();
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        chainTip = new TransactionConfidence.ChainTip();
+        shallowTransactions = new HashSet<Transaction>();
+        depthNotificationLimit = DEFAULT_DEPTH_NOTIFICATION_LIMIT;
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -260,6 +328,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        // Pending transactions may become spendable once they were seen on the network.
+                        spendCandidatesChanged();
+                        journalTransaction(tx);
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
@@ -287,27 +358,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a snapshot of the keychain. This view is not live.
+     * Returns a snapshot of the keychain. This view is not live. Doesn't wait for the wallet lock.
      */
     public List<ECKey> getKeys() {
-        lock.lock();
-        try {
-            return new ArrayList<ECKey>(keychain);
-        } finally {
-            lock.unlock();
-        }
+        return new ArrayList<ECKey>(vKeyIndex.keys);
     }
 
     /**
-     * Returns a snapshot of the watched scripts. This view is not live.
+     * Returns a snapshot of the watched scripts. This view is not live. Doesn't wait for the wallet lock.
      */
     public List<Script> getWatchedScripts() {
-        lock.lock();
-        try {
-            return new ArrayList<Script>(watchedScripts);
-        } finally {
-            lock.unlock();
-        }
+        return new ArrayList<Script>(vWatchedScripts);
     }
 
     /**
@@ -318,14 +379,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            indexKeychain();
+            bloomOutPoints = null;
+            reindexAddressesLocked(Collections.singleton(key.toAddress(params)));
+            spendCandidatesChanged();
+            journalNeedsSnapshot = true;
+            publishLocked();
+            return true;
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Returns a snapshot of the keychain. This view is live.
+     * Returns a snapshot of the keychain. This view is live. Don't add or remove keys through it, as the wallet wouldn't
+     * find them in its indexes; use {@link #addKeys(java.util.List)} and {@link #removeKey(ECKey)}.
      */
     public List<ECKey> getKeychain() {
         lock.lock();
@@ -340,12 +410,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns the number of keys in the keychain.
      */
     public int getKeychainSize() {
-        lock.lock();
-        try {
-            return keychain.size();
-        } finally {
-            lock.unlock();
-        }
+        return vKeyIndex.keys.size();
     }
 
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
@@ -424,6 +489,53 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Sets how deep a transaction may get before the wallet stops telling its confidence listeners, and
+     * {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)}, about every new block. Beyond
+     * that depth, {@link TransactionConfidence#getDepthInBlocks()} and {@link TransactionConfidence#getWorkDone()} are
+     * still correct whenever they are read, but nobody is notified when they change. This keeps the cost of a new
+     * block proportional to the number of recent transactions rather than to the size of the wallet. Futures from
+     * {@link TransactionConfidence#getDepthFuture(int)} are notified up to the depth they wait for whatever the limit
+     * is. The default is {@link #DEFAULT_DEPTH_NOTIFICATION_LIMIT}.</p>
+     *
+     * <p>Note that this property is not serialized.</p>
+     */
+    public void setDepthNotificationLimit(int blocks) {
+        checkArgument(blocks > 0);
+        lock.lock();
+        try {
+            depthNotificationLimit = blocks;
+            // Transactions that are shallow enough now are picked up again.
+            for (Transaction tx : unspent.values())
+                maybeWatchDepth(tx);
+            for (Transaction tx : spent.values())
+                maybeWatchDepth(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See {@link Wallet#setDepthNotificationLimit(int)} for an explanation of this property.
+     */
+    public int getDepthNotificationLimit() {
+        lock.lock();
+        try {
+            return depthNotificationLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes notifyNewBestBlock tell the given transaction about new blocks if it is building and not too deep.
+    private void maybeWatchDepth(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                confidence.getDepthInBlocks() < Math.max(depthNotificationLimit, confidence.getWatchedDepth()))
+            shallowTransactions.add(tx);
+    }
+
     /**
      * Sets the {@link RiskAnalysis} implementation to use for deciding whether received pending transactions are risky
      * or not. If the analyzer says a transaction is risky, by default it will be dropped. You can customize this
@@ -474,10 +586,26 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
                                       @Nullable WalletFiles.Listener eventListener) {
+        return autosaveToFile(f, delayTime, timeUnit, eventListener, false);
+    }
+
+    /**
+     * <p>Like {@link #autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, com.google.bitcoin.wallet.WalletFiles.Listener)},
+     * but if journaled is true, each save only appends the changes since the previous one to a {@link WalletJournal}
+     * next to the file. The whole wallet is written again on the background thread when the journal gets long or
+     * the wallet changed in a way the journal can't record. This makes saving cheap for wallets with many
+     * transactions. The event listener is then only told about full writes, via
+     * {@link WalletFiles.Listener#onAfterAutoSave(java.io.File)}.</p>
+     *
+     * <p>A journaled wallet file must be read back with {@link #loadFromFile(java.io.File)}, reading just the file
+     * misses the changes in the journal.</p>
+     */
+    public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
+                                      @Nullable WalletFiles.Listener eventListener, boolean journaled) {
         lock.lock();
         try {
             checkState(vFileManager == null, "Already auto saving this wallet.");
-            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit);
+            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit, journaled);
             if (eventListener != null)
                 manager.setListener(eventListener);
             vFileManager = manager;
@@ -542,14 +670,31 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a wallet deserialized from the given file.
+     * Returns a wallet deserialized from the given file, including the changes in its {@link WalletJournal} if it was
+     * saved with one.
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
+        return loadFromFile(f, false);
+    }
+
+    /**
+     * Returns a wallet deserialized from the given file like {@link #loadFromFile(java.io.File)}. If lazyHistory is
+     * true, spent and dead transactions are only decoded when they are first needed, which makes wallets with a long
+     * history much quicker to open. See {@link MultiBitWalletProtobufSerializer#setLazyHistory(boolean)}.
+     */
+    public static Wallet loadFromFile(File f, boolean lazyHistory) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(f).exists() || new File(f.getPath() + ".journal.new").exists())
+            return WalletJournal.load(f, lazyHistory);
         try {
             FileInputStream stream = null;
             try {
                 stream = new FileInputStream(f);
-                return loadFromFileStream(stream);
+                MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+                serializer.setLazyHistory(lazyHistory);
+                Wallet wallet = serializer.readWallet(stream);
+                if (!wallet.isConsistent())
+                    log.error("Loaded an inconsistent wallet");
+                return wallet;
             } finally {
                 if (stream != null) stream.close();
             }
@@ -577,9 +722,29 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return wallet;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            decodeAllLocked();
+            out.defaultWriteObject();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
+        for (Transaction tx : transactions.values()) {
+            tx.getConfidence().attachTo(chainTip);
+            maybeWatchDepth(tx);
+        }
+        lock.lock();
+        try {
+            reindexLocked();
+        } finally {
+            lock.unlock();
+        }
     }
     
     /**
@@ -605,6 +770,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                                            int relativityOffset) throws VerificationException {
         lock.lock();
         try {
+            decodeLocked(txHash);
             Transaction tx = transactions.get(txHash);
             if (tx == null) {
                 log.error("TX {} not found despite being sent to wallet", txHash);
@@ -835,6 +1001,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         checkState(lock.isHeldByCurrentThread());
         BigInteger prevBalance = getBalance();
         Sha256Hash txHash = tx.getHash();
+        // A replay may bring back a transaction from the undecoded history.
+        decodeLocked(txHash);
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
 
@@ -930,6 +1098,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            // The coin selector may now consider it spendable.
+            spendCandidatesChanged();
+            if (transactions.containsKey(txHash))
+                indexTransaction(tx);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -982,6 +1154,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            // Depth is not journaled, the journal works it out from the last seen block height when it's read back.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH) {
+                journalTransaction(tx);
+                if (transactions.containsKey(tx.getHash()))
+                    indexTransaction(tx);
+            }
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -1016,20 +1194,50 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             }
 
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
-                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            // Transactions that appear in this block were already given their depth and work done in receive(). Note
+            // them down so they can be put back after moving the tip, otherwise we'd double count.
+            List<Transaction> appeared = new ArrayList<Transaction>(ignoreNextNewBlock.size());
+            List<BigInteger> appearedWork = new ArrayList<BigInteger>(ignoreNextNewBlock.size());
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                Transaction tx = transactions.get(hash);
+                if (tx != null && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                    appeared.add(tx);
+                    appearedWork.add(tx.getConfidence().getWorkDone());
                 }
             }
+            ignoreNextNewBlock.clear();
+            // All BUILDING transactions are now one block deeper. Their confidences work that out from the tip when
+            // asked, so they don't have to be touched here.
+            chainTip.addBlock(block.getHeader().getWork());
+            // Coinbases may have matured, and a coin selector we don't know may look at depth. Otherwise nothing that
+            // coin selection or the balances look at changes just because the chain got longer.
+            if (coinbaseMayHaveMaturedLocked() || !isDepthIndependent(coinSelector)) {
+                availableBalance = null;
+                vVersion++;
+            }
+            for (int i = 0; i < appeared.size(); i++) {
+                Transaction tx = appeared.get(i);
+                tx.getConfidence().setDepthInBlocks(1);
+                tx.getConfidence().setWorkDone(appearedWork.get(i));
+                maybeWatchDepth(tx);
+            }
+            for (Transaction tx : chainTip.takeWatchRequests()) {
+                if (transactions.containsKey(tx.getHash()))
+                    maybeWatchDepth(tx);
+            }
+            // Only transactions that aren't too deep yet are told about the new block.
+            for (Iterator<Transaction> it = shallowTransactions.iterator(); it.hasNext();) {
+                Transaction tx = it.next();
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() != ConfidenceType.BUILDING || !transactions.containsKey(tx.getHash())) {
+                    it.remove();
+                    continue;
+                }
+                if (!appeared.contains(tx))
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                if (confidence.getDepthInBlocks() >= Math.max(depthNotificationLimit, confidence.getWatchedDepth()))
+                    it.remove();
+            }
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1113,6 +1321,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         if (fromChain)
             checkState(!pending.containsKey(tx.getHash()));
         for (TransactionInput input : tx.getInputs()) {
+            decodeLocked(input.getOutpoint().getHash());
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.NO_SUCH_TX) {
                 // Not found in the unspent map. Try again with the spent map.
@@ -1168,12 +1377,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     if (result == TransactionInput.ConnectionResult.SUCCESS) {
                         log.info("Connected pending tx input {}:{}",
                                 pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
+                        // The pending transaction now spends from one of our addresses.
+                        indexTransaction(pendingTx);
                     }
                 }
                 // If the transactions outputs are now all spent, it will be moved into the spent pool by the
                 // processTxFromBestChain method.
             }
         }
+        spendCandidatesChanged();
     }
 
     private void killCoinbase(Transaction coinbase) {
@@ -1207,6 +1419,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
         log.warn("Now attempting to connect the inputs of the overriding transaction.");
         for (TransactionInput input : overridingTx.getInputs()) {
+            decodeLocked(input.getOutpoint().getHash());
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getOutpoint().fromTx, "kill");
@@ -1218,6 +1431,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
         }
         // TODO: Recursively kill other transactions that were double spent.
+        spendCandidatesChanged();
     }
 
     /**
@@ -1233,6 +1447,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     log.info("  {} {} <-unspent ->spent", tx.getHashAsString(), context);
                 }
                 spent.put(tx.getHash(), tx);
+                journalTransaction(tx);
             }
         } else {
             if (spent.remove(tx.getHash()) != null) {
@@ -1240,8 +1455,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     log.info("  {} {} <-spent ->unspent", tx.getHashAsString(), context);
                 }
                 unspent.put(tx.getHash(), tx);
+                journalTransaction(tx);
             }
         }
+        spendCandidatesChanged();
     }
 
     /**
@@ -1335,28 +1552,56 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. Doesn't wait while another thread changes the wallet, see
+     * {@link #getBalance(com.google.bitcoin.core.Wallet.BalanceType)}.
+     *
+     * <p><b>Decodes the whole history</b> of a wallet loaded with lazy history the first time it is called, see
+     * {@link #setUndecodedTransactions(java.util.Map, com.google.bitcoin.core.Wallet.TransactionDecoder)}. To show the
+     * history page by page use {@link #getTransactions(java.util.Date, int, boolean)}.</p>
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        if (lock.isHeldByCurrentThread())
+            return getTransactionsLocked(includeDead);
+        Snapshot snapshot = snapshot(false);
+        Set<Transaction> all = new HashSet<Transaction>(snapshot.transactions);
+        if (includeDead)
+            all.addAll(snapshot.deadTransactions);
+        return all;
+    }
+
+    private Set<Transaction> getTransactionsLocked(boolean includeDead) {
+        checkState(lock.isHeldByCurrentThread());
+        decodeAllLocked();
+        Set<Transaction> all = new HashSet<Transaction>();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all;
+    }
+
+    /**
+     * Returns a set of all WalletTransactions in the wallet. <b>Decodes the whole history</b> of a wallet loaded with
+     * lazy history, which serialization code can avoid with {@link #getDecodedWalletTransactions()}.
+     */
+    public Iterable<WalletTransaction> getWalletTransactions() {
         lock.lock();
         try {
-            Set<Transaction> all = new HashSet<Transaction>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
+            decodeAllLocked();
+            return getDecodedWalletTransactions();
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Like {@link #getWalletTransactions()}, but leaves out the transactions that weren't decoded yet instead of
+     * decoding them. This is intended for serialization code, which can write those with
+     * {@link #getUndecodedTransactions()} instead.
      */
-    public Iterable<WalletTransaction> getWalletTransactions() {
+    public Iterable<WalletTransaction> getDecodedWalletTransactions() {
         lock.lock();
         try {
             Set<WalletTransaction> all = new HashSet<WalletTransaction>();
@@ -1386,6 +1631,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+            publishLocked();
         } finally {
             lock.unlock();
         }
@@ -1396,7 +1642,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getHash(), tx);
+        if (transactions.put(tx.getHash(), tx) == null && bloomOutPoints != null && pool != Pool.DEAD)
+            addBloomOutPointsLocked(tx);
         switch (pool) {
         case UNSPENT:
             unspent.put(tx.getHash(), tx);
@@ -1416,6 +1663,126 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        tx.getConfidence().attachTo(chainTip);
+        maybeWatchDepth(tx);
+        spendCandidatesChanged();
+        journalTransaction(tx);
+        indexTransaction(tx);
+        // Transactions spending from this one miss the addresses of the outputs they spend if those were only connected
+        // now, as happens while a wallet is loaded or its history decoded.
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy == null || !output.isMineOrWatched(this))
+                continue;
+            Transaction spender = spentBy.getParentTransaction();
+            if (spender != tx && transactions.get(spender.getHash()) == spender)
+                indexTransaction(spender);
+        }
+    }
+
+    // Adds the given wallet transaction to the index, or brings its entry up to date.
+    private void indexTransaction(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        TransactionConfidence confidence = tx.getConfidence();
+        int height = confidence.getConfidenceType() == ConfidenceType.BUILDING ? confidence.getAppearedAtChainHeight() : -1;
+        Set<Address> addresses = new HashSet<Address>();
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isMineOrWatched(this))
+                addAddress(addresses, output);
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null && connected.isMineOrWatched(this))
+                addAddress(addresses, connected);
+        }
+        index.put(tx.getHash(), tx.getUpdateTime().getTime(), height, dead.containsKey(tx.getHash()), addresses);
+    }
+
+    private void addAddress(Set<Address> addresses, TransactionOutput output) {
+        Address address = getAddressOrNull(output);
+        if (address != null)
+            addresses.add(address);
+    }
+
+    @Nullable
+    private Address getAddressOrNull(TransactionOutput output) {
+        try {
+            return getAddressOrNull(output.getScriptPubKey());
+        } catch (ScriptException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private Address getAddressOrNull(Script script) {
+        try {
+            return script.getToAddress(params);
+        } catch (ScriptException e) {
+            // Pay to pubkey outputs have no address, and scripts we watch may not either.
+            return null;
+        }
+    }
+
+    // Refreshes the index entries of the transactions that pay to one of the given addresses, and of the transactions
+    // spending those outputs, after keys or watched scripts for them were added or removed. No other entry can change:
+    // outputs without an address aren't indexed by one, and undecoded transactions get their addresses once decoded.
+    private void reindexAddressesLocked(Set<Address> changed) {
+        checkState(lock.isHeldByCurrentThread());
+        if (changed.isEmpty())
+            return;
+        List<Transaction> touched = new ArrayList<Transaction>();
+        for (Transaction tx : transactions.values()) {
+            boolean paysToChanged = false;
+            for (TransactionOutput output : tx.getOutputs()) {
+                Address address = getAddressOrNull(output);
+                if (address == null || !changed.contains(address))
+                    continue;
+                paysToChanged = true;
+                TransactionInput spentBy = output.getSpentBy();
+                if (spentBy == null)
+                    continue;
+                Transaction spender = spentBy.getParentTransaction();
+                if (transactions.get(spender.getHash()) == spender)
+                    touched.add(spender);
+            }
+            if (paysToChanged)
+                touched.add(tx);
+        }
+        for (Transaction tx : touched)
+            indexTransaction(tx);
+    }
+
+    private void reindexLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        index.clear();
+        for (Transaction tx : transactions.values())
+            indexTransaction(tx);
+        if (undecodedTransactions != null) {
+            for (Map.Entry<Sha256Hash, UndecodedTransaction> entry : undecodedTransactions.entrySet())
+                indexUndecoded(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void indexUndecoded(Sha256Hash hash, UndecodedTransaction undecoded) {
+        // Addresses are only known once the transaction is decoded.
+        index.put(hash, undecoded.updateTime, undecoded.appearedAtHeight, undecoded.dead,
+                Collections.<Address>emptySet());
+    }
+
+    // Remembers that the given transaction must be written to the journal, if there is one.
+    private void journalTransaction(Transaction tx) {
+        if (journalTransactions != null)
+            journalTransactions.add(tx);
+    }
+
+    // Makes the journal, if there is one, write a full snapshot next time, for changes it has no record type for.
+    private void journalSnapshotNeeded() {
+        lock.lock();
+        try {
+            journalNeedsSnapshot = true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -1426,42 +1793,102 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
-     * Dead transactions (overridden by double spends) are optionally included. <p>
-     * <p/>
-     * Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).
+     * Returns an list of N transactions, ordered by increasing age, or all of them if N is zero. Transactions on side
+     * chains are not included. Dead transactions (overridden by double spends) are optionally included. The wallet
+     * keeps its transactions sorted, so this costs O(N log n) rather than a sort of the whole wallet.
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        checkArgument(numTransactions >= 0);
+        return getTransactions(null, numTransactions == 0 ? Integer.MAX_VALUE : numTransactions, includeDead);
+    }
+
+    /**
+     * Returns up to limit transactions that were last updated before the given time, newest first, or the newest ones
+     * if it is null. To read the next page pass the last transaction returned to
+     * {@link #getTransactionsAfter(Transaction, int, boolean)}, which unlike a time doesn't skip or repeat transactions
+     * updated in the same millisecond.
+     */
+    public List<Transaction> getTransactions(@Nullable Date before, int limit, boolean includeDead) {
+        checkArgument(limit >= 0);
         lock.lock();
         try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = getPoolSize(Pool.UNSPENT) +
-                    getPoolSize(Pool.SPENT) +
-                    getPoolSize(Pool.PENDING);
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
-            // Order by date.
-            Collections.sort(all, Collections.reverseOrder(new Comparator<Transaction>() {
-                public int compare(Transaction t1, Transaction t2) {
-                    return t1.getUpdateTime().compareTo(t2.getUpdateTime());
-                }
-            }));
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
+            updateIndexLocked();
+            return lookupLocked(index.getBefore(before, limit, includeDead));
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Returns up to limit transactions that come after the given one in the order of
+     * {@link #getTransactions(java.util.Date, int, boolean)}, so the next page of history.
+     *
+     * @throws IllegalArgumentException if the given transaction is not in the wallet
+     */
+    public List<Transaction> getTransactionsAfter(Transaction cursor, int limit, boolean includeDead) {
+        checkArgument(limit >= 0);
+        lock.lock();
+        try {
+            updateIndexLocked();
+            return lookupLocked(index.getAfter(cursor.getHash(), limit, includeDead));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to limit transactions that appeared in best chain blocks below the given height, highest first and
+     * newest first within a block. Pass {@link Integer#MAX_VALUE} to start at the chain head. Pending and dead
+     * transactions are not included.
+     */
+    public List<Transaction> getTransactionsByHeight(int belowHeight, int limit) {
+        checkArgument(limit >= 0);
+        lock.lock();
+        try {
+            updateIndexLocked();
+            return lookupLocked(index.getBelowHeight(belowHeight, limit));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #getTransactions(java.util.Date, int, boolean)}, but only returns transactions that pay to the given
+     * address or spend from it. The address must be one of our keys or watched. <b>For a wallet loaded with lazy
+     * history the first call decodes the whole history</b>, as the addresses of a transaction aren't known before.
+     */
+    public List<Transaction> getTransactions(Address address, @Nullable Date before, int limit, boolean includeDead) {
+        checkArgument(limit >= 0);
+        lock.lock();
+        try {
+            decodeAllLocked();
+            updateIndexLocked();
+            return lookupLocked(index.getBefore(address, before, limit, includeDead));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sorts the transactions whose update time was set from outside the wallet again, before the index is read.
+    private void updateIndexLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        for (Transaction tx : chainTip.takeUpdateTimeChanges()) {
+            if (transactions.get(tx.getHash()) == tx)
+                indexTransaction(tx);
+        }
+    }
+
+    // Returns the transactions with the given hashes, decoding the ones that weren't yet.
+    private List<Transaction> lookupLocked(List<Sha256Hash> hashes) {
+        checkState(lock.isHeldByCurrentThread());
+        List<Transaction> result = new ArrayList<Transaction>(hashes.size());
+        for (Sha256Hash hash : hashes) {
+            decodeLocked(hash);
+            result.add(checkNotNull(transactions.get(hash)));
+        }
+        return result;
+    }
+
     /**
      * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
      */
@@ -1469,6 +1896,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public Transaction getTransaction(Sha256Hash hash) {
         lock.lock();
         try {
+            decodeLocked(hash);
             return transactions.get(hash);
         } finally {
             lock.unlock();
@@ -1488,6 +1916,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                undecodedTransactions = null;
+                index.clear();
+                shallowTransactions.clear();
+                bloomOutPoints = null;
+                spendCandidatesChanged();
+                journalNeedsSnapshot = true;
+                publishLocked();
 
                 //saveLater();
             } else {
@@ -1514,6 +1949,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         tx.disconnectInputs();
                         i.remove();
                         transactions.remove(tx.getHash());
+                        index.remove(tx.getHash());
+                        bloomOutPoints = null;
+                        spendCandidatesChanged();
+                        journalNeedsSnapshot = true;
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -1525,6 +1964,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
             if (dirty) {
                 checkState(isConsistent());
+                publishLocked();
                 saveLater();
             }
         } finally {
@@ -1537,6 +1977,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         try {
             EnumSet<Pool> result = EnumSet.noneOf(Pool.class);
             Sha256Hash txHash = tx.getHash();
+            decodeLocked(txHash);
             if (unspent.containsKey(txHash)) {
                 result.add(Pool.UNSPENT);
             }
@@ -1562,11 +2003,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 case UNSPENT:
                     return unspent.size();
                 case SPENT:
-                    return spent.size();
+                    return spent.size() + countUndecodedLocked(false);
                 case PENDING:
                     return pending.size();
                 case DEAD:
-                    return dead.size();
+                    return dead.size() + countUndecodedLocked(true);
             }
             throw new RuntimeException("Unreachable");
         } finally {
@@ -1574,6 +2015,209 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Turns the serialized transactions of a wallet loaded with lazy history back into transactions, see
+     * {@link Wallet#setUndecodedTransactions(java.util.Map, com.google.bitcoin.core.Wallet.TransactionDecoder)}.
+     */
+    public interface TransactionDecoder {
+        /**
+         * Decodes the given record. The outputs of the result that are spent by one of the given transactions, which
+         * are those the wallet has decoded so far, should be connected to the spending inputs. Its confidence is read
+         * too, but not the blocks that were seen since the record was written; the wallet adds those.
+         */
+        WalletTransaction decode(byte[] record, Map<Sha256Hash, Transaction> decoded) throws UnreadableWalletException;
+    }
+
+    /**
+     * A serialized transaction handed to {@link Wallet#setUndecodedTransactions(java.util.Map, com.google.bitcoin.core.Wallet.TransactionDecoder)},
+     * with what the wallet needs to sort it into its history without decoding it.
+     */
+    public static class UndecodedTransaction {
+        final byte[] record;
+        final long updateTime;
+        final int appearedAtHeight;
+        final boolean dead;
+
+        /**
+         * @param updateTime       the update time of the transaction in milliseconds, see {@link Transaction#getUpdateTime()}
+         * @param appearedAtHeight height of the best chain block it appeared in, or -1 if it is not building
+         * @param dead             whether it is in the dead pool
+         */
+        public UndecodedTransaction(byte[] record, long updateTime, int appearedAtHeight, boolean dead) {
+            this.record = checkNotNull(record);
+            this.updateTime = updateTime;
+            this.appearedAtHeight = appearedAtHeight;
+            this.dead = dead;
+        }
+    }
+
+    /**
+     * <p>Hands the wallet transactions that are only decoded when first needed, which lets a large wallet be used
+     * without paying for its whole history up front. This is intended for deserialization code, such as
+     * {@link MultiBitWalletProtobufSerializer#setLazyHistory(boolean)}, and should be called after the other
+     * transactions were added and the last seen block was set.</p>
+     *
+     * <p>Only transactions from the spent and dead pools may be left undecoded, and none that an unspent or pending
+     * transaction spends from, as the balance and the spend candidates are worked out from the decoded ones. Looking up a
+     * transaction by hash, or one of its outputs by an input spending it, decodes just that transaction. The balance,
+     * {@link #getRecentTransactions(int, boolean)} and the other paged queries decode only the transactions they
+     * return.</p>
+     *
+     * <p><b>These decode the whole history:</b> {@link #getTransactions(boolean)}, {@link #getWalletTransactions()},
+     * {@link #getTransactions(Address, java.util.Date, int, boolean)}, {@link #toString()} and the other
+     * {@link #toString(boolean, boolean, boolean, AbstractBlockChain)} calls that print transactions,
+     * {@link #clearTransactions(java.util.Date)}, a re-org and Java serialization. Saving with
+     * {@link MultiBitWalletProtobufSerializer} doesn't. A user interface listing the history should page through it
+     * with {@link #getTransactions(java.util.Date, int, boolean)} instead of calling the first two.</p>
+     *
+     * @param records serialized transactions keyed by hash, which the wallet takes ownership of
+     */
+    public void setUndecodedTransactions(Map<Sha256Hash, UndecodedTransaction> records, TransactionDecoder decoder) {
+        lock.lock();
+        try {
+            checkState(undecodedTransactions == null, "Wallet already has undecoded transactions");
+            if (records.isEmpty())
+                return;
+            undecodedTransactions = records;
+            transactionDecoder = checkNotNull(decoder);
+            undecodedTipBlocks = chainTip.getBlocks();
+            undecodedTipWork = chainTip.getWork();
+            for (Map.Entry<Sha256Hash, UndecodedTransaction> entry : records.entrySet())
+                indexUndecoded(entry.getKey(), entry.getValue());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the serialized transactions that weren't decoded yet, as they were passed to
+     * {@link #setUndecodedTransactions(java.util.Map, com.google.bitcoin.core.Wallet.TransactionDecoder)}. Their depth
+     * and work done are missing what {@link #getUndecodedDepthChange()} and {@link #getUndecodedWorkChange()} return.
+     */
+    public List<byte[]> getUndecodedTransactions() {
+        lock.lock();
+        try {
+            if (undecodedTransactions == null)
+                return new ArrayList<byte[]>(0);
+            List<byte[]> records = new ArrayList<byte[]>(undecodedTransactions.size());
+            for (UndecodedTransaction undecoded : undecodedTransactions.values())
+                records.add(undecoded.record);
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks deeper the undecoded building transactions are than their records say. */
+    public int getUndecodedDepthChange() {
+        lock.lock();
+        try {
+            return undecodedTransactions == null ? 0 : chainTip.getBlocks() - undecodedTipBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how much work was added on top of the undecoded building transactions since their records were made. */
+    public BigInteger getUndecodedWorkChange() {
+        lock.lock();
+        try {
+            return undecodedTransactions == null ? BigInteger.ZERO : chainTip.getWork().subtract(undecodedTipWork);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many transactions of the wallet were not decoded yet. */
+    public int getUndecodedTransactionCount() {
+        lock.lock();
+        try {
+            return undecodedTransactions == null ? 0 : undecodedTransactions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Counts the undecoded transactions of the dead pool, or of the spent pool which holds all the others.
+    private int countUndecodedLocked(boolean dead) {
+        checkState(lock.isHeldByCurrentThread());
+        if (undecodedTransactions == null)
+            return 0;
+        int count = 0;
+        for (UndecodedTransaction undecoded : undecodedTransactions.values()) {
+            if (undecoded.dead == dead)
+                count++;
+        }
+        return count;
+    }
+
+    // Decodes the transaction with the given hash if it is still undecoded, and puts it in its pool.
+    private void decodeLocked(Sha256Hash hash) {
+        checkState(lock.isHeldByCurrentThread());
+        if (undecodedTransactions == null)
+            return;
+        UndecodedTransaction undecoded = undecodedTransactions.remove(hash);
+        if (undecoded == null)
+            return;
+        if (undecodedTransactions.isEmpty())
+            undecodedTransactions = null;
+        final WalletTransaction wtx;
+        try {
+            wtx = checkNotNull(transactionDecoder).decode(undecoded.record, Collections.unmodifiableMap(transactions));
+        } catch (UnreadableWalletException e) {
+            // The record was written by us and already read once when the wallet was loaded.
+            throw new RuntimeException(e);
+        }
+        Transaction tx = wtx.getTransaction();
+        // Connect the inputs to the outputs they spend, unless the transaction was double spent which disconnected them.
+        if (wtx.getPool() != Pool.DEAD) {
+            for (TransactionInput input : tx.getInputs()) {
+                Transaction from = transactions.get(input.getOutpoint().getHash());
+                int index = (int) input.getOutpoint().getIndex();
+                if (from != null && index < from.getOutputs().size() && from.getOutput(index).getSpentBy() == null)
+                    input.connect(from.getOutput(index));
+            }
+        }
+        // Building transactions got deeper by the blocks seen since the record was set aside.
+        tx.getConfidence().attachTo(chainTip, undecodedTipBlocks, checkNotNull(undecodedTipWork));
+        addWalletTransaction(wtx.getPool(), tx);
+        // Nothing changed, so there is nothing to journal.
+        if (journalTransactions != null)
+            journalTransactions.remove(tx);
+    }
+
+    // Decodes all transactions that are still undecoded.
+    private void decodeAllLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (undecodedTransactions == null)
+            return;
+        long start = System.currentTimeMillis();
+        int count = undecodedTransactions.size();
+        while (undecodedTransactions != null)
+            decodeLocked(undecodedTransactions.keySet().iterator().next());
+        log.info("Decoded {} transactions of the wallet history in {}msec", count, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the output of one of our transactions that the given input spends, or null if it doesn't spend from
+     * this wallet. Unlike {@link TransactionInput#getConnectedOutput()} this works for inputs that aren't connected.
+     */
+    @Nullable
+    TransactionOutput getSpentOutput(TransactionInput input) {
+        lock.lock();
+        try {
+            decodeLocked(input.getOutpoint().getHash());
+            TransactionOutput connected = input.getConnectedOutput(unspent);
+            if (connected == null)
+                connected = input.getConnectedOutput(spent);
+            if (connected == null)
+                connected = input.getConnectedOutput(pending);
+            return connected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
     //  SEND APIS
@@ -1684,6 +2328,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
          */
         public KeyParameter aesKey = null;
 
+        /**
+         * The executor that inputs are signed on, in parallel. Defaults to {@link Threading#THREAD_POOL}. Set this
+         * to null to sign every input on the thread that completes the request.
+         */
+        @Nullable public ExecutorService signingExecutor = Threading.THREAD_POOL;
+
         /**
          * If not null, the {@link com.google.bitcoin.wallet.CoinSelector} to use instead of the wallets default. Coin selectors are
          * responsible for choosing which transaction outputs (coins) in a wallet to use given the desired send value
@@ -1948,8 +2598,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             //
             // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
             // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -2029,7 +2677,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void sign(SendRequest sendRequest) {
         // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
         try {
-            sendRequest.tx.signInputs(Transaction.SigHash.ALL, this, sendRequest.aesKey);
+            sendRequest.tx.signInputs(Transaction.SigHash.ALL, this, sendRequest.aesKey, sendRequest.signingExecutor);
         } catch (ScriptException e) {
             // If this happens it means an output script in a wallet tx could not be understood. That should never
             // happen, if it does it means the wallet has got into an inconsistent state.
@@ -2060,19 +2708,71 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (TransactionOutput output : getSpendCandidatesLocked()) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
+                if (excludeImmatureCoinbases && !output.getParentTransaction().isMature()) continue;
+                candidates.add(output);
+            }
+            return candidates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the outputs that calculateAllSpendCandidates(false) would, working them out only if something changed.
+    private ArrayList<TransactionOutput> getSpendCandidatesLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (spendCandidates == null) {
+            ArrayList<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+            boolean immatureCoinbases = false;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
                 for (TransactionOutput output : tx.getOutputs()) {
                     if (!output.isAvailableForSpending()) continue;
                     if (!output.isMine(this)) continue;
                     candidates.add(output);
+                    immatureCoinbases = immatureCoinbases || (tx.isCoinBase() && !tx.isMature());
                 }
             }
-            return candidates;
-        } finally {
-            lock.unlock();
+            spendCandidates = candidates;
+            immatureCoinbaseCandidates = immatureCoinbases;
         }
+        return spendCandidates;
+    }
+
+    // Returns true if a spend candidate was an immature coinbase, which the new block may have made spendable. They are
+    // checked again, so that once all have matured new blocks stop invalidating the available balance.
+    private boolean coinbaseMayHaveMaturedLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (spendCandidates == null || !immatureCoinbaseCandidates)
+            return false;
+        boolean immatureCoinbases = false;
+        for (TransactionOutput output : spendCandidates) {
+            Transaction tx = output.getParentTransaction();
+            if (tx.isCoinBase() && !tx.isMature()) {
+                immatureCoinbases = true;
+                break;
+            }
+        }
+        immatureCoinbaseCandidates = immatureCoinbases;
+        return true;
+    }
+
+    // The built in selectors only look at confidence types, not depths, and pick every output they can when working
+    // out a balance, so a new block doesn't change what they select.
+    private static boolean isDepthIndependent(CoinSelector selector) {
+        return selector.getClass() == DefaultCoinSelector.class ||
+                selector.getClass() == AllowUnconfirmedCoinSelector.class;
+    }
+
+    /**
+     * Drops the cached spend candidates and balances. Must be called whenever transactions enter or leave the unspent
+     * and pending pools, their outputs are spent or unspent, or anything else changes that coin selection looks at.
+     */
+    private void spendCandidatesChanged() {
+        spendCandidates = null;
+        availableBalance = null;
+        estimatedBalance = null;
+        vVersion++;
     }
 
     /**
@@ -2145,9 +2845,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
+            Set<ByteBuffer> addedPubKeys = new HashSet<ByteBuffer>();
+            Set<Address> addedAddresses = new HashSet<Address>();
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                ByteBuffer pubKey = ByteBuffer.wrap(key.getPubKey());
+                if (vKeyIndex.byPubKey.containsKey(pubKey) || !addedPubKeys.add(pubKey)) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2157,8 +2859,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     throw new KeyCrypterException("Cannot add key because it's encrypted and this wallet is not.");
                 }
                 keychain.add(key);
+                if (journalKeys != null)
+                    journalKeys.add(key);
+                addedAddresses.add(key.toAddress(params));
                 added++;
             }
+            // Outputs we already have may pay to the new keys.
+            if (added > 0) {
+                indexKeychain();
+                bloomOutPoints = null;
+                reindexAddressesLocked(addedAddresses);
+                spendCandidatesChanged();
+                publishLocked();
+            }
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             //saveNow();
@@ -2222,12 +2935,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
+            Set<Address> addedAddresses = new HashSet<Address>();
             for (final Script script : scripts) {
                 if (watchedScripts.contains(script)) continue;
 
                 watchedScripts.add(script);
+                Address address = getAddressOrNull(script);
+                if (address != null)
+                    addedAddresses.add(address);
                 added++;
             }
+            if (added > 0) {
+                vWatchedScripts = ImmutableSet.copyOf(watchedScripts);
+                bloomOutPoints = null;
+                reindexAddressesLocked(addedAddresses);
+                spendCandidatesChanged();
+                journalNeedsSnapshot = true;
+                publishLocked();
+            }
 
             queueOnScriptsAdded(scripts);
             saveNow();
@@ -2245,25 +2970,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        lock.lock();
-        try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
-        } finally {
-            lock.unlock();
-        }
+        return vKeyIndex.byPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
-        lock.lock();
-        try {
-            return keychain.contains(key);
-        } finally {
-            lock.unlock();
-        }
+        return vKeyIndex.byPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
     }
 
     /**
@@ -2275,12 +2987,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     /** Returns true if this wallet is watching transactions for outputs with the script. */
     public boolean isWatchedScript(Script script) {
-        lock.lock();
-        try {
-            return watchedScripts.contains(script);
-        } finally {
-            lock.unlock();
-        }
+        return vWatchedScripts.contains(script);
     }
 
     /**
@@ -2289,17 +2996,32 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        lock.lock();
-        try {
+        return vKeyIndex.byPubKey.get(ByteBuffer.wrap(pubkey));
+    }
+
+    // The keychain as it was at some point, indexed by the hash160 of the public keys and by the public keys
+    // themselves, so that outputs can be matched without scanning it. Never modified after construction.
+    private static final class KeyIndex {
+        final ImmutableList<ECKey> keys;
+        final Map<ByteBuffer, ECKey> byPubKeyHash, byPubKey;
+
+        KeyIndex(List<ECKey> keychain) {
+            keys = ImmutableList.copyOf(keychain);
+            byPubKeyHash = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+            byPubKey = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
             for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
+                byPubKeyHash.put(ByteBuffer.wrap(key.getPubKeyHash()), key);
+                byPubKey.put(ByteBuffer.wrap(key.getPubKey()), key);
             }
-            return null;
-        } finally {
-            lock.unlock();
         }
     }
 
+    // Publishes a new key index after the keychain was changed. Costs O(keys), which is fine as keys are added rarely
+    // and in batches, and makes lookups, which happen for every output the wallet sees, lock free.
+    private void indexKeychain() {
+        vKeyIndex = new KeyIndex(keychain);
+    }
+
     /**
      * Returns true if this wallet contains a keypair with the given public key.
      */
@@ -2340,26 +3062,131 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * <p>Returns the balance of this wallet as calculated by the provided balanceType.</p>
+     *
+     * <p>This and {@link #getTransactions(boolean)} don't wait while another thread changes the wallet, such as the
+     * block chain delivering a block. They answer from the state the wallet was in when the last complete operation
+     * finished, like receiving a pending transaction or a block, committing a spend or adding keys. That state is
+     * published before any event about the operation is queued, so a listener running on another thread sees at
+     * least the change it is told about. To keep it up to date the wallet works the answer out again after every
+     * change, which for getTransactions means copying all transactions. It stops doing so once a method wasn't called
+     * for a few changes, and the next call then waits for the lock, as does the very first one. Called with the
+     * wallet lock held, eg from an event listener that runs on the same thread, they return the current state.</p>
      */
     public BigInteger getBalance(BalanceType balanceType) {
-        lock.lock();
-        try {
-            if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
-            } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
+        if (lock.isHeldByCurrentThread())
+            return getBalanceLocked(balanceType);
+        Snapshot snapshot = snapshot(true);
+        return balanceType == BalanceType.AVAILABLE ? snapshot.availableBalance : snapshot.estimatedBalance;
+    }
+
+    private BigInteger getBalanceLocked(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE) {
+            if (availableBalance == null)
+                availableBalance = getBalance(coinSelector);
+            return availableBalance;
+        } else if (balanceType == BalanceType.ESTIMATED) {
+            if (estimatedBalance == null) {
                 BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                for (TransactionOutput out : getSpendCandidatesLocked()) value = value.add(out.getValue());
+                estimatedBalance = value;
+            }
+            return estimatedBalance;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    // Balances or transactions kept for queries, see getBalance(BalanceType). The part that wasn't asked for is null.
+    private static final class Snapshot {
+        final long version;
+        @Nullable final BigInteger availableBalance, estimatedBalance;
+        @Nullable final ImmutableSet<Transaction> transactions, deadTransactions;
+
+        Snapshot(long version, @Nullable BigInteger availableBalance, @Nullable BigInteger estimatedBalance,
+                 @Nullable ImmutableSet<Transaction> transactions, @Nullable ImmutableSet<Transaction> deadTransactions) {
+            this.version = version;
+            this.availableBalance = availableBalance;
+            this.estimatedBalance = estimatedBalance;
+            this.transactions = transactions;
+            this.deadTransactions = deadTransactions;
+        }
+    }
+
+    // Returns the balances or the transactions as of the end of the last operation. Only waits for the lock if they
+    // weren't published, because this is the first query in a while.
+    private Snapshot snapshot(boolean balances) {
+        if (balances)
+            vBalancesQueried = true;
+        else
+            vTransactionsQueried = true;
+        Snapshot snapshot = balances ? vBalances : vTransactions;
+        if (snapshot != null && snapshot.version == vVersion)
+            return snapshot;
+        if (snapshot == null) {
+            lock.lock();
+        } else if (!lock.tryLock()) {
+            // Another thread is changing the wallet. What it published when the last operation ended is the answer.
+            return snapshot;
+        }
+        try {
+            Snapshot current;
+            if (balances) {
+                current = makeBalancesLocked();
+                vBalances = current;
             } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+                current = makeTransactionsLocked();
+                vTransactions = current;
             }
+            return current;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Brings the published balances and transactions up to date for queries that find the lock taken. Called where
+     * an operation that changes them is complete, and before queueing any event about the change, so listeners see
+     * at least the change they are told about. A part that was not queried since the last {@link #SNAPSHOT_IDLE_LIMIT}
+     * changes is dropped instead, and the next query for it waits for the lock.
+     */
+    private void publishLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        long version = vVersion;
+        Snapshot balances = vBalances;
+        if (balances != null && balances.version != version) {
+            if (vBalancesQueried) {
+                vBalancesQueried = false;
+                balancesIdle = 0;
+            }
+            vBalances = ++balancesIdle > SNAPSHOT_IDLE_LIMIT ? null : makeBalancesLocked();
+        }
+        Snapshot transactions = vTransactions;
+        if (transactions != null && transactions.version != version) {
+            if (vTransactionsQueried) {
+                vTransactionsQueried = false;
+                transactionsIdle = 0;
+            }
+            vTransactions = ++transactionsIdle > SNAPSHOT_IDLE_LIMIT ? null : makeTransactionsLocked();
+        }
+    }
+
+    private Snapshot makeBalancesLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        return new Snapshot(vVersion, getBalanceLocked(BalanceType.AVAILABLE), getBalanceLocked(BalanceType.ESTIMATED),
+                null, null);
+    }
+
+    private Snapshot makeTransactionsLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        // Same as getTransactionsLocked(), which decodes lazy history too.
+        decodeAllLocked();
+        return new Snapshot(vVersion, null, null,
+                ImmutableSet.copyOf(Iterables.concat(unspent.values(), spent.values(), pending.values())),
+                ImmutableSet.copyOf(dead.values()));
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector. Just asks it to select
      * as many coins as possible and returns the total.
@@ -2402,35 +3229,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return toString(false, true, true, null);
     }
 
-    private static final Comparator<Transaction> SORT_ORDER_BY_UPDATE_TIME = new Comparator<Transaction>() {
-
-        @Override
-        public int compare(final Transaction tx1, final Transaction tx2) {
-
-            final long time1 = tx1.getUpdateTime().getTime();
-            final long time2 = tx2.getUpdateTime().getTime();
-
-            return -(Longs.compare(time1, time2));
-        }
-    };
-
-    private static final Comparator<Transaction> SORT_ORDER_BY_HEIGHT = new Comparator<Transaction>() {
-
-        @Override
-        public int compare(final Transaction tx1, final Transaction tx2) {
-
-            final int height1 = tx1.getConfidence().getAppearedAtChainHeight();
-            final int height2 = tx2.getConfidence().getAppearedAtChainHeight();
-
-            return -(Ints.compare(height1, height2));
-        }
-    };
-
     /**
      * Formats the wallet as a human readable piece of text. Intended for debugging, the format is not meant to be
      * stable or human readable.
      * @param includePrivateKeys Whether raw private key data should be included.
-     * @param includeTransactions Whether to print transaction data.
+     * @param includeTransactions Whether to print transaction data. This decodes the whole history of a wallet loaded
+     *                            with lazy history, the pool sizes alone don't.
      * @param includeExtensions Whether to print extension data.
      * @param chain If set, will be used to estimate lock times for block timelocked transactions.
      */
@@ -2438,6 +3242,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                            @Nullable AbstractBlockChain chain) {
         lock.lock();
         try {
+            if (includeTransactions)
+                decodeAllLocked();
             StringBuilder builder = new StringBuilder();
             BigInteger estimatedBalance = getBalance(BalanceType.ESTIMATED);
             BigInteger availableBalance = getBalance(BalanceType.AVAILABLE);
@@ -2445,8 +3251,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     bitcoinValueToPlainString(estimatedBalance), bitcoinValueToPlainString(availableBalance)));
             builder.append(String.format("  %d pending transactions%n", pending.size()));
             builder.append(String.format("  %d unspent transactions%n", unspent.size()));
-            builder.append(String.format("  %d spent transactions%n", spent.size()));
-            builder.append(String.format("  %d dead transactions%n", dead.size()));
+            builder.append(String.format("  %d spent transactions%n", getPoolSize(Pool.SPENT)));
+            builder.append(String.format("  %d dead transactions%n", getPoolSize(Pool.DEAD)));
             final Date lastBlockSeenTime = getLastBlockSeenTime();
             final String lastBlockSeenTimeStr = lastBlockSeenTime == null ? "time unknown" : lastBlockSeenTime.toString();
             builder.append(String.format("Last seen best block: %d (%s): %s%n",
@@ -2480,19 +3286,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // Print the transactions themselves
                 if (pending.size() > 0) {
                     builder.append("\n>>> PENDING:\n");
-                    toStringHelper(builder, pending, chain, SORT_ORDER_BY_UPDATE_TIME);
+                    toStringHelper(builder, pending, chain, false);
                 }
                 if (unspent.size() > 0) {
                     builder.append("\n>>> UNSPENT:\n");
-                    toStringHelper(builder, unspent, chain, SORT_ORDER_BY_HEIGHT);
+                    toStringHelper(builder, unspent, chain, true);
                 }
                 if (spent.size() > 0) {
                     builder.append("\n>>> SPENT:\n");
-                    toStringHelper(builder, spent, chain, SORT_ORDER_BY_HEIGHT);
+                    toStringHelper(builder, spent, chain, true);
                 }
                 if (dead.size() > 0) {
                     builder.append("\n>>> DEAD:\n");
-                    toStringHelper(builder, dead, chain, SORT_ORDER_BY_HEIGHT);
+                    toStringHelper(builder, dead, chain, true);
                 }
             }
             if (includeExtensions && extensions.size() > 0) {
@@ -2508,18 +3314,20 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void toStringHelper(StringBuilder builder, Map<Sha256Hash, Transaction> transactionMap,
-                                @Nullable AbstractBlockChain chain, @Nullable Comparator<Transaction> sortOrder) {
+                                @Nullable AbstractBlockChain chain, boolean byHeight) {
         checkState(lock.isHeldByCurrentThread());
-
-        final Collection<Transaction> txns;
-        if (sortOrder != null) {
-            txns = new TreeSet<Transaction>(sortOrder);
-            txns.addAll(transactionMap.values());
-        } else {
-            txns = transactionMap.values();
-        }
-
-        for (Transaction tx : txns) {
+        updateIndexLocked();
+
+        // Highest block first if sorting by height, then newest first, in the order the index keeps.
+        Set<Sha256Hash> order = new LinkedHashSet<Sha256Hash>();
+        if (byHeight)
+            order.addAll(index.getBelowHeight(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        order.addAll(index.getBefore(null, Integer.MAX_VALUE, true));
+
+        for (Sha256Hash hash : order) {
+            Transaction tx = transactionMap.get(hash);
+            if (tx == null)
+                continue;
             try {
                 builder.append("Sends ");
                 builder.append(Utils.bitcoinValueToFriendlyString(tx.getValueSentFromMe(this)));
@@ -2561,6 +3369,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            decodeAllLocked();
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -2635,6 +3444,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        spendCandidatesChanged();
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -2692,6 +3502,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 notifyNewBestBlock(block);
             }
             checkState(isConsistent());
+            // Heights moved for every transaction in the replaced blocks, so rather than tracking them rebuild the index.
+            reindexLocked();
             final BigInteger balance = getBalance();
             log.info("post-reorg balance is {}", Utils.bitcoinValueToFriendlyString(balance));
             // Inform event listeners that a re-org took place.
@@ -2717,6 +3529,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                maybeWatchDepth(tx);
             }
         }
     }
@@ -2846,11 +3659,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Deletes transactions which appeared after a certain date
+     * Deletes transactions which appeared after a certain date. Decodes the whole history of a wallet loaded with lazy
+     * history.
      */
     public synchronized void clearTransactions(Date fromDate) {
         lock.lock();
         try {
+            decodeAllLocked();
             if (fromDate == null) {
                 unspent.clear();
                 spent.clear();
@@ -2862,6 +3677,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 removeEntriesAfterDate(pending, fromDate);
                 removeEntriesAfterDate(dead, fromDate);
             }
+            index.clear();
+            for (Transaction tx : Iterables.concat(unspent.values(), spent.values(), pending.values(), dead.values()))
+                indexTransaction(tx);
+            spendCandidatesChanged();
+            journalNeedsSnapshot = true;
+            publishLocked();
         } finally {
             lock.unlock();
         }
@@ -2952,6 +3773,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            indexKeychain();
+            journalNeedsSnapshot = true;
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
@@ -2997,6 +3820,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            indexKeychain();
+            journalNeedsSnapshot = true;
 
             // The wallet is now unencrypted.
             keyCrypter = null;
@@ -3166,6 +3991,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public void setDescription(String description) {
         this.description = description;
+        journalSnapshotNeeded();
     }
 
     /**
@@ -3177,23 +4003,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     @Override
     public int getBloomFilterElementCount() {
-        int size = getKeychainSize() * 2;
-        for (Transaction tx : getTransactions(false)) {
-            for (TransactionOutput out : tx.getOutputs()) {
-                try {
-                    if (isTxOutputBloomFilterable(out))
-                        size++;
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
-                }
-            }
+        lock.lock();
+        try {
+            // Some scripts may have more than one bloom element.  That should normally be okay,
+            // because under-counting just increases false-positive rate.
+            getBloomOutPointsLocked();
+            return getKeychainSize() * 2 + bloomOutPointCount + watchedScripts.size();
+        } finally {
+            lock.unlock();
         }
-
-        // Some scripts may have more than one bloom element.  That should normally be okay,
-        // because under-counting just increases false-positive rate.
-        size += watchedScripts.size();
-
-        return size;
     }
 
     /**
@@ -3229,39 +4047,80 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
-            }
-
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            for (ECKey key : keychain)
+                for (byte[] element : getBloomFilterElements(key))
+                    filter.insert(element);
+            for (Script script : watchedScripts)
+                for (byte[] element : getBloomFilterElements(script))
+                    filter.insert(element);
+            for (Map.Entry<Sha256Hash, int[]> entry : getBloomOutPointsLocked().entrySet())
+                for (int index : entry.getValue())
+                    filter.insertOutPoint(entry.getKey(), index);
         } finally {
             lock.unlock();
         }
-        for (Transaction tx : getTransactions(false)) {
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                TransactionOutput out = tx.getOutputs().get(i);
-                try {
-                    if (isTxOutputBloomFilterable(out)) {
-                        TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                        filter.insert(outPoint.bitcoinSerialize());
-                    }
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
-                }
+        return filter;
+    }
+
+    /** Returns the data that is inserted into Bloom filters so that they match transactions involving the given key. */
+    static List<byte[]> getBloomFilterElements(ECKey key) {
+        return Lists.newArrayList(key.getPubKey(), key.getPubKeyHash());
+    }
+
+    /** Returns the data that is inserted into Bloom filters so that they match the given watched script. */
+    static List<byte[]> getBloomFilterElements(Script script) {
+        List<byte[]> elements = Lists.newArrayList();
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                elements.add(chunk.data);
+        }
+        return elements;
+    }
+
+    /**
+     * Returns the indexes of the outputs of the given transaction whose outpoints must be inserted into Bloom filters,
+     * so that transactions spending them match even though their inputs contain nothing else we could predict.
+     */
+    int[] getBloomFilterOutputIndexes(Transaction tx) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        int[] indexes = new int[outputs.size()];
+        int count = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            try {
+                if (isTxOutputBloomFilterable(outputs.get(i)))
+                    indexes[count++] = i;
+            } catch (ScriptException e) {
+                throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
             }
         }
+        return Arrays.copyOf(indexes, count);
+    }
 
-        return filter;
+    private Map<Sha256Hash, int[]> getBloomOutPointsLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (bloomOutPoints == null) {
+            // Dead transactions are left out, see getTransactions(false). Transactions that become dead later stay in
+            // the map, which only makes the filter match a little more than it has to. Undecoded history is left out
+            // too rather than decoded for this: all its outputs are spent by transactions the wallet already has.
+            bloomOutPoints = new LinkedHashMap<Sha256Hash, int[]>();
+            bloomOutPointCount = 0;
+            for (Transaction tx : transactions.values()) {
+                if (!dead.containsKey(tx.getHash()))
+                    addBloomOutPointsLocked(tx);
+            }
+        }
+        return bloomOutPoints;
+    }
+
+    private void addBloomOutPointsLocked(Transaction tx) {
+        int[] indexes = getBloomFilterOutputIndexes(tx);
+        if (indexes.length > 0) {
+            bloomOutPoints.put(tx.getHash(), indexes);
+            bloomOutPointCount += indexes.length;
+        }
     }
 
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
@@ -3289,6 +4148,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            availableBalance = null;
+            vVersion++;
+            publishLocked();
         } finally {
             lock.unlock();
         }
@@ -3393,6 +4255,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            journalNeedsSnapshot = true;
             //saveNow();
         } finally {
             lock.unlock();
@@ -3410,6 +4273,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            journalNeedsSnapshot = true;
             //saveNow();
             return extension;
         } finally {
@@ -3427,6 +4291,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             extensions.put(id, extension);
+            journalNeedsSnapshot = true;
             //saveNow();
         } finally {
             lock.unlock();
@@ -3470,6 +4335,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        publishLocked();
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3482,6 +4348,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnCoinsReceived(final Transaction tx, final BigInteger balance, final BigInteger newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        publishLocked();
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3494,6 +4361,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnCoinsSent(final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        publishLocked();
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3507,6 +4375,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void queueOnReorganize() {
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
+        publishLocked();
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3839,6 +4708,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public void setKeyRotationTime(long unixTimeSeconds) {
         vKeyRotationTimestamp = unixTimeSeconds;
+        journalSnapshotNeeded();
         if (unixTimeSeconds > 0) {
             log.info("Key rotation time set: {}", unixTimeSeconds);
             maybeRotateKeys();
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.wallet.Protos;
+import org.multibit.store.MultiBitWalletProtobufSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Saves a wallet as a snapshot plus a journal of the changes made since, so that saving after a small change
+ * doesn't mean serializing and writing out the whole wallet again. The snapshot is a normal wallet file, as written by
+ * {@link Wallet#saveToFile(java.io.File)}. The journal lives next to it, in a file with the same name plus
+ * ".journal", and is a sequence of records: the protocol buffer of a transaction that was added, moved to another pool
+ * or changed confidence type, the protocol buffer of a new key, or the last block the wallet has seen. The depth of
+ * transactions is not journaled, it is worked out from the last seen block height when the journal is read back.</p>
+ *
+ * <p>Changes the journal has no record for, like removing keys, encrypting the wallet or adding watched scripts,
+ * need a new snapshot, as does a journal that grew past {@link #setCompactionThreshold(long)}. {@link #append()}
+ * reports when that is the case and {@link #compact()} takes the snapshot. Compaction only holds the wallet lock while
+ * the wallet is converted to a protocol buffer, writing it to disk happens while the wallet carries on and changes
+ * made meanwhile are journaled for both the old and the new snapshot.</p>
+ *
+ * <p>The journal starts with the hash of the snapshot it belongs to, and each record carries a checksum. When reading,
+ * a journal that doesn't belong to the snapshot is ignored and reading stops at the first damaged record, so a crash
+ * at any point loses at most the changes that were being written. Use {@link #load(java.io.File)}, or just
+ * {@link Wallet#loadFromFile(java.io.File)}, to read a wallet back. Usually you don't use this class directly but pass
+ * journaled = true to
+ * {@link Wallet#autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, com.google.bitcoin.wallet.WalletFiles.Listener, boolean)}.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The default for {@link #setCompactionThreshold(long)}. */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+    // Journals start with this, followed by the hash of the snapshot they belong to.
+    private static final int MAGIC = 0x4d4f4e4a;
+    private static final int HEADER_LENGTH = 4 + 32;
+    private static final byte RECORD_TRANSACTION = 1;
+    private static final byte RECORD_KEY = 2;
+    private static final byte RECORD_LAST_BLOCK = 3;
+    // Far more than any transaction or key needs. Anything longer is taken to be a damaged record.
+    private static final int MAX_RECORD_LENGTH = 4 * 1024 * 1024;
+
+    private final Wallet wallet;
+    private final File file, journalFile, newJournalFile;
+    // Always taken after the wallet lock, if both are needed.
+    private final ReentrantLock lock = Threading.lock("walletjournal");
+
+    // The journal of the current snapshot, null until the first snapshot was taken.
+    @VisibleForTesting @GuardedBy("lock") @Nullable FileOutputStream out;
+    // While compacting, the journal of the new snapshot. Changes are written to both until the new snapshot is in place.
+    @GuardedBy("lock") @Nullable private FileOutputStream newOut;
+    // Set when writing to out or newOut failed. The failed write may have left half a record behind, and nothing written
+    // after it could be read back, so a damaged journal is not written to again: out is replaced by the next snapshot,
+    // and a compaction whose new journal is damaged fails instead of putting its snapshot in place.
+    @GuardedBy("lock") private boolean damaged, newJournalDamaged;
+    @GuardedBy("lock") private long journalLength;
+    @GuardedBy("lock") @Nullable private Sha256Hash lastBlockWritten;
+    private volatile long vCompactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * Creates a journal that saves the given wallet to the given file. Nothing is written until {@link #append()} or
+     * {@link #compact()} is called, the first of which takes a snapshot.
+     */
+    public WalletJournal(Wallet wallet, File file) {
+        this.wallet = checkNotNull(wallet);
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+        this.newJournalFile = new File(file.getPath() + ".journal.new");
+        wallet.lock.lock();
+        try {
+            checkArgument(wallet.journalTransactions == null, "Wallet is already journaled");
+            wallet.journalTransactions = new LinkedHashSet<Transaction>();
+            wallet.journalKeys = new ArrayList<ECKey>();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns the file the journal of the given wallet file is kept in. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Sets how long the journal may get, in bytes, before {@link #append()} asks for it to be folded into a new
+     * snapshot. The default is {@link #DEFAULT_COMPACTION_THRESHOLD}.
+     */
+    public void setCompactionThreshold(long bytes) {
+        checkArgument(bytes > 0);
+        vCompactionThreshold = bytes;
+    }
+
+    /** Returns the length of the journal in bytes. */
+    public long getJournalLength() {
+        lock.lock();
+        try {
+            return journalLength;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the changes made to the wallet since the last call to the journal and forces them to disk. If there is no
+     * snapshot yet, or the journal could not be written to, takes one instead. Returns true if the journal should now
+     * be compacted, because it got too long or the wallet changed in a way that can only be saved with a new snapshot.
+     */
+    public boolean append() throws IOException {
+        wallet.lock.lock();
+        lock.lock();
+        try {
+            if (!needsSnapshotLocked()) {
+                try {
+                    appendLocked();
+                    return wallet.journalNeedsSnapshot || journalLength >= vCompactionThreshold;
+                } catch (IOException e) {
+                    if (!needsSnapshotLocked())
+                        throw e;
+                    log.warn("Failed to append to wallet journal, taking a new snapshot instead", e);
+                }
+            }
+        } finally {
+            lock.unlock();
+            wallet.lock.unlock();
+        }
+        compact();
+        lock.lock();
+        try {
+            // Still true if another thread was compacting and that compaction fails.
+            return needsSnapshotLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if there is no journal changes can be written to, so only a new snapshot can save them.
+    @GuardedBy("lock")
+    private boolean needsSnapshotLocked() {
+        return (out == null || damaged) && (newOut == null || newJournalDamaged);
+    }
+
+    @GuardedBy("lock")
+    private void appendLocked() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(bytes);
+        // The last seen block goes first, as transactions are read back with depths relative to it.
+        Sha256Hash lastBlock = wallet.getLastBlockSeenHash();
+        if (lastBlock != null && !lastBlock.equals(lastBlockWritten)) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(32 + 4 + 8);
+            DataOutputStream data = new DataOutputStream(payload);
+            data.write(lastBlock.getBytes());
+            data.writeInt(wallet.getLastBlockSeenHeight());
+            data.writeLong(wallet.getLastBlockSeenTimeSecs());
+            writeRecord(records, RECORD_LAST_BLOCK, payload.toByteArray());
+        }
+        for (Transaction tx : withNeighbours(wallet.journalTransactions)) {
+            EnumSet<WalletTransaction.Pool> pools = wallet.getContainingPools(tx);
+            if (pools.isEmpty())
+                continue;  // Removed since, which needs a snapshot anyway.
+            WalletTransaction wtx = new WalletTransaction(pools.iterator().next(), tx);
+            writeRecord(records, RECORD_TRANSACTION, MultiBitWalletProtobufSerializer.makeTxProto(wtx).toByteArray());
+        }
+        for (ECKey key : wallet.journalKeys)
+            writeRecord(records, RECORD_KEY, MultiBitWalletProtobufSerializer.makeKeyProto(key).toByteArray());
+        if (bytes.size() > 0) {
+            byte[] data = bytes.toByteArray();
+            IOException failure = null;
+            if (out != null && !damaged) {
+                try {
+                    write(out, data);
+                } catch (IOException e) {
+                    damaged = true;
+                    failure = e;
+                }
+            }
+            if (newOut != null && !newJournalDamaged) {
+                try {
+                    write(newOut, data);
+                } catch (IOException e) {
+                    newJournalDamaged = true;
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                wallet.journalNeedsSnapshot = true;
+                // Only a failure if the changes made it into neither journal.
+                if (needsSnapshotLocked())
+                    throw failure;
+                log.warn("Failed to write to wallet journal", failure);
+            }
+            journalLength += data.length;
+            lastBlockWritten = lastBlock;
+        }
+        // Only forgotten once written, so that after a failed write the next snapshot or append still has them.
+        wallet.journalTransactions.clear();
+        wallet.journalKeys.clear();
+    }
+
+    // Transactions record which transaction spends each of their outputs, so when a transaction changes, the ones it
+    // spends from and the ones spending from it may have changed too.
+    private Set<Transaction> withNeighbours(Set<Transaction> changed) {
+        Set<Transaction> result = new LinkedHashSet<Transaction>(changed);
+        for (Transaction tx : changed) {
+            for (TransactionInput input : tx.getInputs()) {
+                Transaction from = input.getOutpoint().fromTx;
+                if (from != null)
+                    result.add(from);
+            }
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spentBy = output.getSpentBy();
+                if (spentBy != null)
+                    result.add(spentBy.getParentTransaction());
+            }
+        }
+        return result;
+    }
+
+    private static void writeRecord(DataOutputStream stream, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        stream.writeByte(type);
+        stream.writeInt(payload.length);
+        stream.write(payload);
+        stream.writeInt((int) crc.getValue());
+    }
+
+    private static void write(FileOutputStream stream, byte[] data) throws IOException {
+        stream.write(data);
+        stream.flush();
+        stream.getFD().sync();
+    }
+
+    /**
+     * Writes a new snapshot of the wallet and starts a new, empty journal for it. The wallet is only locked while it is
+     * converted to a protocol buffer. Does nothing if another thread is already compacting.
+     */
+    public void compact() throws IOException {
+        final byte[] snapshot;
+        wallet.lock.lock();
+        lock.lock();
+        try {
+            if (newOut != null)
+                return;
+            // Anything not yet journaled must reach the old journal too, in case this compaction doesn't complete.
+            if (out != null && !damaged) {
+                try {
+                    appendLocked();
+                } catch (IOException e) {
+                    // The snapshot taken below holds the changes anyway.
+                    log.warn("Failed to append to wallet journal before taking a snapshot", e);
+                }
+            }
+            snapshot = new MultiBitWalletProtobufSerializer().walletToProto(wallet).toByteArray();
+            wallet.journalTransactions.clear();
+            wallet.journalKeys.clear();
+            wallet.journalNeedsSnapshot = false;
+            lastBlockWritten = wallet.getLastBlockSeenHash();
+            FileOutputStream stream = new FileOutputStream(newJournalFile);
+            try {
+                DataOutputStream header = new DataOutputStream(stream);
+                header.writeInt(MAGIC);
+                header.write(Sha256Hash.create(snapshot).getBytes());
+                header.flush();
+            } catch (IOException e) {
+                stream.close();
+                wallet.journalNeedsSnapshot = true;
+                throw e;
+            }
+            newOut = stream;
+        } finally {
+            lock.unlock();
+            wallet.lock.unlock();
+        }
+        long start = System.currentTimeMillis();
+        boolean done = false;
+        File temp = null;
+        try {
+            temp = File.createTempFile("wallet", null, file.getAbsoluteFile().getParentFile());
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                write(stream, snapshot);
+            } finally {
+                stream.close();
+            }
+            lock.lock();
+            try {
+                // Changes made while the snapshot was written are missing from a damaged new journal.
+                if (newJournalDamaged)
+                    throw new IOException("Failed to write to the journal of the new snapshot");
+                // Once the snapshot is renamed the old journal no longer matches it, and the new one is used. If we
+                // crash before the new journal is renamed too, load() finds it under its temporary name.
+                rename(temp, file);
+                checkNotNull(newOut).close();
+                newOut = null;
+                if (out != null)
+                    out.close();
+                out = null;
+                rename(newJournalFile, journalFile);
+                out = new FileOutputStream(journalFile, true);
+                damaged = false;
+                journalLength = journalFile.length() - HEADER_LENGTH;
+                done = true;
+            } finally {
+                lock.unlock();
+            }
+            log.info("Wallet snapshot of {} bytes written in {}msec", snapshot.length, System.currentTimeMillis() - start);
+        } finally {
+            if (!done) {
+                if (temp != null)
+                    temp.delete();
+                wallet.lock.lock();
+                lock.lock();
+                try {
+                    wallet.journalNeedsSnapshot = true;
+                    if (newOut != null) {
+                        newOut.close();
+                        newOut = null;
+                        newJournalDamaged = false;
+                        newJournalFile.delete();
+                    }
+                } finally {
+                    lock.unlock();
+                    wallet.lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = to.getCanonicalFile();
+            canonical.delete();
+            if (from.renameTo(canonical))
+                return;
+            throw new IOException("Failed to rename " + from + " to " + canonical);
+        } else if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
+    }
+
+    /** Stops journaling. Changes that were not appended yet are not written. */
+    public void close() throws IOException {
+        wallet.lock.lock();
+        lock.lock();
+        try {
+            wallet.journalTransactions = null;
+            wallet.journalKeys = null;
+            if (out != null)
+                out.close();
+            out = null;
+        } finally {
+            lock.unlock();
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a wallet from the given snapshot and the journal next to it, if there is one that belongs to the snapshot.
+     * Works for wallet files written without a journal too.
+     *
+     * @throws UnreadableWalletException if the snapshot can't be read, see
+     * {@link MultiBitWalletProtobufSerializer#readWallet(java.io.InputStream)}.
+     */
+    public static Wallet load(File file) throws UnreadableWalletException {
+        return load(file, false);
+    }
+
+    /**
+     * Like {@link #load(java.io.File)}, optionally leaving the spent and dead transactions undecoded until they are
+     * needed, see {@link MultiBitWalletProtobufSerializer#setLazyHistory(boolean)}.
+     */
+    public static Wallet load(File file, boolean lazyHistory) throws UnreadableWalletException {
+        try {
+            byte[] snapshot = Files.toByteArray(file);
+            Protos.Wallet.Builder proto = Protos.Wallet.parseFrom(snapshot).toBuilder();
+            Sha256Hash hash = Sha256Hash.create(snapshot);
+            for (File journal : new File[] { getJournalFile(file), new File(file.getPath() + ".journal.new") }) {
+                if (journal.exists() && replay(journal, hash, proto))
+                    break;
+            }
+            MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+            serializer.setLazyHistory(lazyHistory);
+            return serializer.readWallet(proto.build());
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read wallet", e);
+        }
+    }
+
+    // Applies the records of the journal to the snapshot, if the journal belongs to it.
+    private static boolean replay(File journal, Sha256Hash snapshotHash, Protos.Wallet.Builder wallet) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            byte[] hash = new byte[32];
+            try {
+                if (in.readInt() != MAGIC)
+                    return false;
+                in.readFully(hash);
+            } catch (EOFException e) {
+                return false;
+            }
+            if (!Arrays.equals(hash, snapshotHash.getBytes()))
+                return false;
+            Map<ByteString, Integer> txIndex = new HashMap<ByteString, Integer>();
+            for (int i = 0; i < wallet.getTransactionCount(); i++)
+                txIndex.put(wallet.getTransaction(i).getHash(), i);
+            Set<ByteString> pubKeys = new HashSet<ByteString>();
+            for (Protos.Key key : wallet.getKeyList())
+                pubKeys.add(key.getPublicKey());
+            // The last seen block height at the time each transaction was written, to correct depths at the end.
+            final int snapshotHeight = wallet.hasLastSeenBlockHeight() ? wallet.getLastSeenBlockHeight() : -1;
+            int height = snapshotHeight;
+            Map<ByteString, Integer> writtenAtHeight = new HashMap<ByteString, Integer>();
+            int records = 0;
+            while (true) {
+                byte type;
+                byte[] payload;
+                try {
+                    type = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH)
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(type);
+                    crc.update(payload);
+                    if (in.readInt() != (int) crc.getValue())
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                records++;
+                if (type == RECORD_TRANSACTION) {
+                    Protos.Transaction tx = Protos.Transaction.parseFrom(payload);
+                    Integer index = txIndex.get(tx.getHash());
+                    if (index != null) {
+                        wallet.setTransaction(index, tx);
+                    } else {
+                        txIndex.put(tx.getHash(), wallet.getTransactionCount());
+                        wallet.addTransaction(tx);
+                    }
+                    writtenAtHeight.put(tx.getHash(), height);
+                } else if (type == RECORD_KEY) {
+                    Protos.Key key = Protos.Key.parseFrom(payload);
+                    if (pubKeys.add(key.getPublicKey()))
+                        wallet.addKey(key);
+                } else if (type == RECORD_LAST_BLOCK) {
+                    DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+                    byte[] blockHash = new byte[32];
+                    data.readFully(blockHash);
+                    height = data.readInt();
+                    wallet.setLastSeenBlockHash(ByteString.copyFrom(blockHash));
+                    wallet.setLastSeenBlockHeight(height);
+                    wallet.setLastSeenBlockTimeSecs(data.readLong());
+                } else {
+                    log.warn("Unknown record type {} in wallet journal {}, ignoring the rest", type, journal);
+                    break;
+                }
+            }
+            // Building transactions got deeper by the blocks seen after they were written.
+            for (int i = 0; i < wallet.getTransactionCount(); i++) {
+                Protos.Transaction tx = wallet.getTransaction(i);
+                if (!tx.hasConfidence() || tx.getConfidence().getType() != Protos.TransactionConfidence.Type.BUILDING ||
+                        !tx.getConfidence().hasDepth())
+                    continue;
+                Integer writtenAt = writtenAtHeight.get(tx.getHash());
+                int blocks = height - (writtenAt != null ? writtenAt : snapshotHeight);
+                int depth = tx.getConfidence().getDepth();
+                if (blocks == 0 || depth <= 0 || depth + blocks < 1)
+                    continue;
+                Protos.TransactionConfidence.Builder confidence = wallet.getTransactionBuilder(i).getConfidenceBuilder();
+                confidence.setDepth(depth + blocks);
+                // The work of the new blocks isn't known, assume it's like that of the blocks burying the transaction.
+                if (confidence.hasWorkDone())
+                    confidence.setWorkDone(confidence.getWorkDone() + confidence.getWorkDone() / depth * blocks);
+            }
+            log.info("Read {} records from wallet journal {}", records, journal);
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -16,12 +16,14 @@
 
 package com.google.bitcoin.crypto;
 
+import com.google.bitcoin.utils.Threading;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
 import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -129,6 +131,48 @@ public class DeterministicHierarchy implements Serializable {
         return deriveChild(get(parentPath, relative, createParent), createChildNumber);
     }
 
+    /**
+     * Extends the tree by calculating a run of consecutive children for the given path in one go, for example when
+     * filling up a lookahead window of addresses. Derivation is spread across {@link Threading#THREAD_POOL}, see
+     * {@link #deriveChildren(List, boolean, boolean, boolean, int, int, ExecutorService)}.
+     */
+    public List<DeterministicKey> deriveChildren(List<ChildNumber> parentPath, boolean relative, boolean createParent,
+                                                 boolean privateDerivation, int from, int count) {
+        return deriveChildren(parentPath, relative, createParent, privateDerivation, from, count, Threading.THREAD_POOL);
+    }
+
+    /**
+     * Extends the tree by calculating the children numbered <tt>from</tt> to <tt>from + count - 1</tt> of the given
+     * path, using the given executor to derive them in parallel. The new keys are added to the tree on the calling
+     * thread once they are all done, so the hierarchy itself is never touched concurrently. Child numbers that don't
+     * yield a valid key are skipped as BIP 32 requires, see {@link HDKeyDerivation#deriveChildKeys}. A later
+     * {@link #deriveNextChild(ImmutableList, boolean, boolean, boolean)} on the same parent continues after the last
+     * child number derived here, if that is further than it had got.
+     *
+     * @param parentPath the path to the parent
+     * @param relative whether the path is relative to the root path
+     * @param createParent whether the parent corresponding to path should be created (with any necessary ancestors) if it doesn't exist already
+     * @param privateDerivation whether to use private or public derivation
+     * @return the new keys, ordered by child number.
+     * @throws IllegalArgumentException if the parent doesn't exist and createParent is false.
+     */
+    public List<DeterministicKey> deriveChildren(List<ChildNumber> parentPath, boolean relative, boolean createParent,
+                                                 boolean privateDerivation, int from, int count,
+                                                 ExecutorService executor) {
+        DeterministicKey parent = get(parentPath, relative, createParent);
+        List<DeterministicKey> children = HDKeyDerivation.deriveChildKeys(parent, from, count, privateDerivation, executor);
+        for (DeterministicKey child : children)
+            putKey(child);
+        if (count > 0) {
+            Map<ImmutableList<ChildNumber>, ChildNumber> lastDerivedNumbers = getLastDerivedNumbers(privateDerivation);
+            ChildNumber lastChildNumber = lastDerivedNumbers.get(parent.getChildNumberPath());
+            int last = from + count - 1;
+            if (lastChildNumber == null || lastChildNumber.getChildNumber() < last)
+                lastDerivedNumbers.put(parent.getChildNumberPath(), new ChildNumber(last, privateDerivation));
+        }
+        return children;
+    }
+
     private DeterministicKey deriveChild(DeterministicKey parent, ChildNumber createChildNumber) {
         DeterministicKey childKey = HDKeyDerivation.deriveChildKey(parent, createChildNumber);
         putKey(childKey);
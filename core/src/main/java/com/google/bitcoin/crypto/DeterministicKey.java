@@ -50,6 +50,8 @@ public class DeterministicKey implements Serializable {
     private ECPoint publicAsPoint;
     private final BigInteger privateAsFieldElement;
     private final ImmutableList<ChildNumber> childNumberPath;
+    // Computed on first use, or up front by HDKeyDerivation.deriveChildKeys on a worker thread.
+    private transient byte[] identifier;
 
     /** 32 bytes */
     private final byte[] chainCode;
@@ -103,13 +105,16 @@ public class DeterministicKey implements Serializable {
      * Returns RIPE-MD160(SHA256(pub key bytes)).
      */
     public byte[] getIdentifier() {
-        return Utils.sha256hash160(getPubKeyBytes());
+        if (identifier == null)
+            identifier = Utils.sha256hash160(getPubKeyBytes());
+        return Arrays.copyOf(identifier, identifier.length);
     }
 
     ECPoint getPubPoint() {
         if (publicAsPoint == null) {
             checkNotNull(privateAsFieldElement);
-            publicAsPoint = ECKey.CURVE.getG().multiply(privateAsFieldElement);
+            publicAsPoint = ECKey.CURVE.getCurve().decodePoint(
+                    ECKey.publicKeyFromPrivate(privateAsFieldElement, false));
         }
         return HDUtils.compressedCopy(publicAsPoint);
     }
@@ -17,6 +17,7 @@
 package com.google.bitcoin.crypto;
 
 import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Joiner;
 import org.spongycastle.util.encoders.Hex;
 
@@ -29,6 +30,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A MnemonicCode object may be used to convert between binary seed values and
@@ -106,6 +108,31 @@ public class MnemonicCode {
         return PBKDF2SHA512.derive(pass, salt, rounds, 64);
     }
 
+    /**
+     * Converts many mnemonic word lists to seeds at once, all with the same passphrase, for example when checking a
+     * batch of backups. The work is spread across {@link Threading#THREAD_POOL}. The seeds are returned in the same
+     * order as the word lists.
+     */
+    public static List<byte[]> toSeeds(List<List<String>> mnemonics, String passphrase) {
+        return toSeeds(mnemonics, passphrase, Version.V0_6, Threading.THREAD_POOL);
+    }
+
+    /**
+     * Converts many mnemonic word lists to seeds at once, all with the same passphrase, running the key derivations
+     * in parallel on the given executor. The seeds are returned in the same order as the word lists.
+     */
+    public static List<byte[]> toSeeds(List<List<String>> mnemonics, String passphrase, Version version,
+                                       ExecutorService executor) {
+        List<String> passes = new ArrayList<String>(mnemonics.size());
+        List<String> salts = new ArrayList<String>(mnemonics.size());
+        for (List<String> words : mnemonics) {
+            passes.add(Joiner.on(' ').join(words));
+            salts.add("mnemonic" + passphrase);
+        }
+        int rounds = (version == Version.V0_5) ? PBKDF2_ROUNDS_V0_5 : PBKDF2_ROUNDS_V0_6;
+        return PBKDF2SHA512.deriveAll(passes, salts, rounds, 64, executor);
+    }
+
     /**
      * Convert mnemonic word list to original entropy value.
      */
@@ -23,11 +23,19 @@
 
 package com.google.bitcoin.crypto;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This is a clean-room implementation of PBKDF2 using RFC 2898 as a reference.</p>
@@ -38,75 +46,227 @@ import java.nio.ByteOrder;
  *
  * <p>http://cryptofreek.org/2012/11/29/pbkdf2-pure-java-implementation/<br>
  * Modified to use SHA-512 - Ken Sedgwick ken@bonsai.com</p>
+ *
+ * <p>HMAC-SHA512 is computed directly on the SHA-512 compression function. The inner and outer padded keys are
+ * hashed once per derivation and every iteration then starts from those saved states, so an iteration costs exactly
+ * two compressions. All state is kept in preallocated <tt>long</tt> arrays and nothing is allocated inside the
+ * iteration loop.</p>
  */
 public class PBKDF2SHA512 {
-    public static byte[] derive(String P, String S, int c, int dkLen) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private static final int H_LEN = 64;
+    private static final int BLOCK_LEN = 128;
 
-        try {
-            int hLen = 20;
+    private static final long IPAD = 0x3636363636363636L;
+    private static final long OPAD = 0x5c5c5c5c5c5c5c5cL;
 
-            if (dkLen > ((Math.pow(2, 32)) - 1) * hLen) {
-                throw new IllegalArgumentException("derived key too long");
-            } else {
-                int l = (int) Math.ceil((double) dkLen / (double) hLen);
-                // int r = dkLen - (l-1)*hLen;
+    private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
 
-                for (int i = 1; i <= l; i++) {
-                    byte[] T = F(P, S, c, i);
-                    baos.write(T);
-                }
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    private static final long[] K = {
+            0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+            0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+            0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+            0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+            0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+            0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+            0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+            0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+            0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+            0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+            0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+            0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+            0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+            0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+            0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+            0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+            0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+            0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+            0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+            0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+    };
 
-        byte[] baDerived = new byte[dkLen];
-        System.arraycopy(baos.toByteArray(), 0, baDerived, 0, baDerived.length);
+    public static byte[] derive(String P, String S, int c, int dkLen) {
+        checkArgument(c > 0, "iteration count must be positive");
+        if (dkLen > ((Math.pow(2, 32)) - 1) * H_LEN)
+            throw new IllegalArgumentException("derived key too long");
+        byte[] password = P.getBytes(Charsets.UTF_8);
+        byte[] salt = S.getBytes(Charsets.UTF_8);
+
+        long[] w = new long[80];
+        long[] innerState = new long[8];
+        long[] outerState = new long[8];
+        initPads(password, innerState, outerState, w);
 
+        byte[] baDerived = new byte[dkLen];
+        long[] t = new long[8];
+        long[] u = new long[8];
+        int l = (dkLen + H_LEN - 1) / H_LEN;
+        for (int i = 1; i <= l; i++) {
+            F(innerState, outerState, salt, c, i, t, u, w);
+            int offset = (i - 1) * H_LEN;
+            for (int k = 0; k < H_LEN && offset + k < dkLen; k++)
+                baDerived[offset + k] = (byte) (t[k >>> 3] >>> (56 - 8 * (k & 7)));
+        }
+        Arrays.fill(innerState, 0);
+        Arrays.fill(outerState, 0);
+        Arrays.fill(t, 0);
+        Arrays.fill(u, 0);
+        Arrays.fill(w, 0);
         return baDerived;
     }
 
-    private static byte[] F(String P, String S, int c, int i) throws Exception {
-        byte[] U_LAST = null;
-        byte[] U_XOR = null;
-
-        SecretKeySpec key = new SecretKeySpec(P.getBytes("UTF-8"), "HmacSHA512");
-        Mac mac = Mac.getInstance(key.getAlgorithm());
-        mac.init(key);
+    /**
+     * Runs {@link #derive(String, String, int, int)} for each password and salt pair, for example to turn a large
+     * number of mnemonics into seeds. The pairs are split into one chunk per processor and the chunks are run on the
+     * given executor. The results are in the same order as the inputs.
+     */
+    public static List<byte[]> deriveAll(final List<String> passwords, final List<String> salts, final int c,
+                                         final int dkLen, ExecutorService executor) {
+        checkArgument(passwords.size() == salts.size(), "need exactly one salt per password");
+        final int count = passwords.size();
+        int chunks = Math.min(count, Runtime.getRuntime().availableProcessors());
+        List<Future<List<byte[]>>> futures = new ArrayList<Future<List<byte[]>>>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int start = (int) ((long) count * chunk / chunks);
+            final int end = (int) ((long) count * (chunk + 1) / chunks);
+            futures.add(executor.submit(new Callable<List<byte[]>>() {
+                @Override
+                public List<byte[]> call() throws Exception {
+                    List<byte[]> keys = new ArrayList<byte[]>(end - start);
+                    for (int i = start; i < end; i++)
+                        keys.add(derive(passwords.get(i), salts.get(i), c, dkLen));
+                    return keys;
+                }
+            }));
+        }
+        List<byte[]> result = new ArrayList<byte[]>(count);
+        for (Future<List<byte[]>> future : futures) {
+            try {
+                result.addAll(Uninterruptibles.getUninterruptibly(future));
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        return result;
+    }
 
-        for (int j = 0; j < c; j++) {
-            if (j == 0) {
-                byte[] baS = S.getBytes("UTF-8");
-                byte[] baI = INT(i);
-                byte[] baU = new byte[baS.length + baI.length];
+    /** Leaves the states after compressing the inner and outer padded key blocks of HMAC in the given arrays. */
+    private static void initPads(byte[] password, long[] innerState, long[] outerState, long[] w) {
+        byte[] key = new byte[BLOCK_LEN];
+        if (password.length > BLOCK_LEN) {
+            // Keys longer than a block are hashed first, as RFC 2104 requires.
+            long[] state = Arrays.copyOf(IV, 8);
+            hashFinal(state, password, 0, w);
+            for (int k = 0; k < H_LEN; k++)
+                key[k] = (byte) (state[k >>> 3] >>> (56 - 8 * (k & 7)));
+        } else {
+            System.arraycopy(password, 0, key, 0, password.length);
+        }
+        for (int k = 0; k < 16; k++)
+            w[k] = readLong(key, 8 * k) ^ IPAD;
+        System.arraycopy(IV, 0, innerState, 0, 8);
+        compress(innerState, w);
+        for (int k = 0; k < 16; k++)
+            w[k] = readLong(key, 8 * k) ^ OPAD;
+        System.arraycopy(IV, 0, outerState, 0, 8);
+        compress(outerState, w);
+        Arrays.fill(key, (byte) 0);
+    }
 
-                System.arraycopy(baS, 0, baU, 0, baS.length);
-                System.arraycopy(baI, 0, baU, baS.length, baI.length);
+    /** Leaves T_i in t. */
+    private static void F(long[] innerState, long[] outerState, byte[] salt, int c, int i, long[] t, long[] u,
+                          long[] w) {
+        // U_1 = PRF(P, S || INT(i)) is the only round whose message isn't a single 64 byte hash.
+        byte[] message = Arrays.copyOf(salt, salt.length + 4);
+        message[salt.length] = (byte) (i >>> 24);
+        message[salt.length + 1] = (byte) (i >>> 16);
+        message[salt.length + 2] = (byte) (i >>> 8);
+        message[salt.length + 3] = (byte) i;
+        System.arraycopy(innerState, 0, u, 0, 8);
+        hashFinal(u, message, BLOCK_LEN, w);
+        loadDigest(u, w);
+        System.arraycopy(outerState, 0, u, 0, 8);
+        compress(u, w);
+        System.arraycopy(u, 0, t, 0, 8);
 
-                U_XOR = mac.doFinal(baU);
-                U_LAST = U_XOR;
-                mac.reset();
-            } else {
-                byte[] baU = mac.doFinal(U_LAST);
-                mac.reset();
+        for (int j = 1; j < c; j++) {
+            loadDigest(u, w);
+            System.arraycopy(innerState, 0, u, 0, 8);
+            compress(u, w);
+            loadDigest(u, w);
+            System.arraycopy(outerState, 0, u, 0, 8);
+            compress(u, w);
+            for (int k = 0; k < 8; k++)
+                t[k] ^= u[k];
+        }
+    }
 
-                for (int k = 0; k < U_XOR.length; k++) {
-                    U_XOR[k] = (byte) (U_XOR[k] ^ baU[k]);
-                }
+    /** Sets up w as the final, padded block of a message made of one 128 byte key block and a 64 byte digest. */
+    private static void loadDigest(long[] digest, long[] w) {
+        System.arraycopy(digest, 0, w, 0, 8);
+        w[8] = 0x8000000000000000L;
+        w[9] = w[10] = w[11] = w[12] = w[13] = w[14] = 0;
+        w[15] = (BLOCK_LEN + H_LEN) * 8;
+    }
 
-                U_LAST = baU;
-            }
+    /**
+     * Hashes message into state, which already has prefixLength bytes of input compressed into it, and applies the
+     * final padding.
+     */
+    private static void hashFinal(long[] state, byte[] message, int prefixLength, long[] w) {
+        int paddedLength = (message.length + 17 + BLOCK_LEN - 1) / BLOCK_LEN * BLOCK_LEN;
+        byte[] padded = Arrays.copyOf(message, paddedLength);
+        padded[message.length] = (byte) 0x80;
+        long bits = ((long) prefixLength + message.length) * 8;
+        for (int k = 0; k < 8; k++)
+            padded[paddedLength - 1 - k] = (byte) (bits >>> (8 * k));
+        for (int offset = 0; offset < paddedLength; offset += BLOCK_LEN) {
+            for (int k = 0; k < 16; k++)
+                w[k] = readLong(padded, offset + 8 * k);
+            compress(state, w);
         }
-
-        return U_XOR;
     }
 
-    private static byte[] INT(int i) {
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.putInt(i);
+    private static long readLong(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFFL) << 56) | ((bytes[offset + 1] & 0xFFL) << 48) |
+                ((bytes[offset + 2] & 0xFFL) << 40) | ((bytes[offset + 3] & 0xFFL) << 32) |
+                ((bytes[offset + 4] & 0xFFL) << 24) | ((bytes[offset + 5] & 0xFFL) << 16) |
+                ((bytes[offset + 6] & 0xFFL) << 8) | (bytes[offset + 7] & 0xFFL);
+    }
 
-        return bb.array();
+    /** The SHA-512 compression function. Reads the block from w[0..15] and uses the rest of w as the schedule. */
+    private static void compress(long[] state, long[] w) {
+        for (int j = 16; j < 80; j++) {
+            long s0 = w[j - 15], s1 = w[j - 2];
+            s0 = Long.rotateRight(s0, 1) ^ Long.rotateRight(s0, 8) ^ (s0 >>> 7);
+            s1 = Long.rotateRight(s1, 19) ^ Long.rotateRight(s1, 61) ^ (s1 >>> 6);
+            w[j] = w[j - 16] + s0 + w[j - 7] + s1;
+        }
+        long a = state[0], b = state[1], c = state[2], d = state[3];
+        long e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int j = 0; j < 80; j++) {
+            long t1 = h + (Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41)) +
+                    ((e & f) ^ (~e & g)) + K[j] + w[j];
+            long t2 = (Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39)) +
+                    ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
     }
 }
@@ -0,0 +1,669 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.util.encoders.Hex;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static com.google.bitcoin.crypto.Secp256k1Field.*;
+
+/**
+ * <p>A pure Java implementation of the secp256k1 curve operations that {@link com.google.bitcoin.core.ECKey} and
+ * the HD key derivation code need. It is specialised for this one curve and is several times faster than the generic
+ * Bouncy Castle point maths, which does everything with BigIntegers.</p>
+ *
+ * <ul>
+ *     <li>Field elements are ten 26 bit limbs held in an int array, see {@link Secp256k1Field}.</li>
+ *     <li>Points are kept in Jacobian co-ordinates during a multiplication so no inversions are needed until the
+ *     end.</li>
+ *     <li>Multiplying the generator uses a precomputed comb table of 64 windows of 4 bits. Every window adds exactly
+ *     one table entry and entries are selected by scanning the whole row, so the sequence of operations and memory
+ *     accesses does not depend on the (secret) scalar. This is what signing and public key derivation use.</li>
+ *     <li>Multiplying an arbitrary point, which is only needed for verification and key recovery where all inputs are
+ *     public, splits the scalar in two halves of about 128 bits using the GLV endomorphism
+ *     (x, y) -&gt; (beta * x, y) = lambda * (x, y) and processes both halves together in wNAF form.</li>
+ * </ul>
+ *
+ * <p>Public keys are accepted and produced in the usual encodings: 33 byte compressed, 65 byte uncompressed, and the
+ * hybrid 0x06/0x07 form that OpenSSL also accepts.</p>
+ */
+public final class Secp256k1 {
+    private Secp256k1() { }
+
+    /** The order of the generator point. */
+    static final BigInteger N =
+            new BigInteger("fffffffffffffffffffffffffffffffebaaedce6af48a03bbfd25e8cd0364141", 16);
+    private static final BigInteger HALF_N = N.shiftRight(1);
+
+    private static final int[] GX = fromHex("79be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798");
+    private static final int[] GY = fromHex("483ada7726a3c4655da4fbfc0e1108a8fd17b448a68554199c47d08ffb10d4b8");
+
+    // The endomorphism: lambda * (x, y) = (beta * x, y), with the lattice basis used to split scalars.
+    private static final int[] BETA = fromHex("7ae96a2b657c07106e64479eac3434e99cf0497512f58995c1396c28719501ee");
+    private static final BigInteger A1 = new BigInteger("3086d221a7d46bcde86c90e49284eb15", 16);
+    private static final BigInteger MINUS_B1 = new BigInteger("e4437ed6010e88286f547fa90abfe4c3", 16);
+    private static final BigInteger A2 = new BigInteger("114ca50f7a8e2f3f657c1108d9d44cfd8", 16);
+    private static final BigInteger B2 = A1;
+
+    // Window size for wNAF multiplication of arbitrary points, giving 8 precomputed odd multiples.
+    private static final int WINDOW = 5;
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private static int[] fromHex(String hex) {
+        return fromBytes(Hex.decode(hex), 0);
+    }
+
+    /**
+     * Returns the public key for the given private key, which must be in the range [1, n).
+     */
+    public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
+        if (privKey.signum() <= 0 || privKey.compareTo(N) >= 0)
+            throw new IllegalArgumentException("Private key out of range");
+        JacobianPoint p = multiplyGenerator(privKey);
+        return encode(p, compressed);
+    }
+
+    /**
+     * Signs the 32 byte hash with the given private key and returns the r and s components. The nonce is derived
+     * from the key and the hash as in RFC 6979, so signing the same hash twice gives the same signature and a weak
+     * random number generator can't leak the key. The result is not canonicalised, see
+     * {@link com.google.bitcoin.core.ECKey.ECDSASignature#ensureCanonical()}.
+     */
+    public static BigInteger[] sign(byte[] hash, BigInteger privKey) {
+        if (privKey.signum() <= 0 || privKey.compareTo(N) >= 0)
+            throw new IllegalArgumentException("Private key out of range");
+        BigInteger e = calculateE(hash);
+        DeterministicNonces nonces = new DeterministicNonces(privKey, e.mod(N));
+        int[] x = create(), y = create();
+        while (true) {
+            BigInteger k = nonces.next();
+            multiplyGenerator(k).toAffine(x, y);
+            byte[] xBytes = new byte[32];
+            toBytes(x, xBytes, 0);
+            BigInteger r = new BigInteger(1, xBytes).mod(N);
+            if (r.signum() == 0)
+                continue;
+            // Blind the inversion of k, as BigInteger.modInverse takes time dependent on its input.
+            BigInteger blind = randomScalar();
+            BigInteger kInv = k.multiply(blind).mod(N).modInverse(N).multiply(blind).mod(N);
+            BigInteger s = kInv.multiply(e.add(privKey.multiply(r))).mod(N);
+            if (s.signum() == 0)
+                continue;
+            return new BigInteger[] { r, s };
+        }
+    }
+
+    /**
+     * Returns true if (r, s) is a valid signature of the hash by the given encoded public key. Unparseable or off
+     * curve public keys and out of range signature components give false rather than an exception.
+     */
+    public static boolean verify(byte[] hash, BigInteger r, BigInteger s, byte[] pub) {
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        int[][] q = decode(pub);
+        if (q == null)
+            return false;
+        BigInteger w = s.modInverse(N);
+        BigInteger u1 = calculateE(hash).multiply(w).mod(N);
+        BigInteger u2 = r.multiply(w).mod(N);
+        JacobianPoint p = multiplyGenerator(u1);
+        p.addPoint(multiply(u2, q[0], q[1]));
+        int[] x = create(), y = create();
+        if (!p.toAffine(x, y))
+            return false;
+        byte[] xBytes = new byte[32];
+        toBytes(x, xBytes, 0);
+        return new BigInteger(1, xBytes).mod(N).equals(r);
+    }
+
+    /**
+     * Returns a * G + b * P encoded as a public key, or null if the result is the point at infinity or the encoded
+     * point P is invalid. Neither scalar is treated as secret.
+     */
+    @Nullable
+    public static byte[] sumOfMultiplies(BigInteger a, BigInteger b, byte[] pub, boolean compressed) {
+        int[][] q = decode(pub);
+        if (q == null)
+            return null;
+        JacobianPoint p = multiplyGenerator(a.mod(N));
+        p.addPoint(multiply(b.mod(N), q[0], q[1]));
+        return p.infinity ? null : encode(p, compressed);
+    }
+
+    /**
+     * Returns P + tweak * G encoded as a public key, as needed for public BIP 32 derivation, or null if the result is
+     * the point at infinity or P is invalid.
+     */
+    @Nullable
+    public static byte[] publicKeyTweakAdd(byte[] pub, BigInteger tweak, boolean compressed) {
+        int[][] q = decode(pub);
+        if (q == null)
+            return null;
+        JacobianPoint p = multiplyGenerator(tweak.mod(N));
+        p.addAffine(q[0], q[1]);
+        return p.infinity ? null : encode(p, compressed);
+    }
+
+    /** Returns the 65 byte uncompressed form of the given public key, or null if it is not a valid point. */
+    @Nullable
+    public static byte[] decompress(byte[] pub) {
+        int[][] q = decode(pub);
+        if (q == null)
+            return null;
+        return encode(q[0], q[1], false);
+    }
+
+    private static BigInteger calculateE(byte[] hash) {
+        BigInteger e = new BigInteger(1, hash);
+        // As in ECDSASigner, hashes longer than the order are truncated to its bit length.
+        if (hash.length * 8 > N.bitLength())
+            e = e.shiftRight(hash.length * 8 - N.bitLength());
+        return e;
+    }
+
+    /**
+     * The nonce generator of RFC 6979 section 3.2 with HMAC-SHA256. Each call to {@link #next()} returns the next
+     * candidate in the range [1, n), which only matters if a nonce gives r or s of zero.
+     */
+    static final class DeterministicNonces {
+        private final HMac hmac = new HMac(new SHA256Digest());
+        private byte[] k = new byte[32], v = new byte[32];
+        private boolean started;
+
+        /** @param e the hash as reduced by {@link Secp256k1#calculateE(byte[])}, modulo n. */
+        DeterministicNonces(BigInteger privKey, BigInteger e) {
+            byte[] x = Utils.bigIntegerToBytes(privKey, 32);
+            byte[] h = Utils.bigIntegerToBytes(e, 32);
+            Arrays.fill(v, (byte) 1);
+            k = mac(k, v, new byte[] { 0 }, x, h);
+            v = mac(k, v);
+            k = mac(k, v, new byte[] { 1 }, x, h);
+            v = mac(k, v);
+        }
+
+        BigInteger next() {
+            while (true) {
+                if (started) {
+                    k = mac(k, v, new byte[] { 0 });
+                    v = mac(k, v);
+                }
+                started = true;
+                v = mac(k, v);
+                BigInteger candidate = new BigInteger(1, v);
+                if (candidate.signum() > 0 && candidate.compareTo(N) < 0)
+                    return candidate;
+            }
+        }
+
+        private byte[] mac(byte[] key, byte[]... data) {
+            hmac.init(new KeyParameter(key));
+            for (byte[] d : data)
+                hmac.update(d, 0, d.length);
+            byte[] out = new byte[32];
+            hmac.doFinal(out, 0);
+            return out;
+        }
+    }
+
+    private static BigInteger randomScalar() {
+        BigInteger k;
+        do {
+            k = new BigInteger(N.bitLength(), secureRandom);
+        } while (k.signum() == 0 || k.compareTo(N) >= 0);
+        return k;
+    }
+
+    /** Parses an encoded public key into normalized affine co-ordinates, or returns null if it is invalid. */
+    @Nullable
+    private static int[][] decode(byte[] pub) {
+        if (pub.length == 33 && (pub[0] == 0x02 || pub[0] == 0x03)) {
+            if (!isCanonical(pub, 1))
+                return null;
+            int[] x = fromBytes(pub, 1);
+            int[] y = create();
+            if (!liftX(x, y, pub[0] == 0x03))
+                return null;
+            return new int[][] { x, y };
+        } else if (pub.length == 65 && (pub[0] == 0x04 || pub[0] == 0x06 || pub[0] == 0x07)) {
+            if (!isCanonical(pub, 1) || !isCanonical(pub, 33))
+                return null;
+            int[] x = fromBytes(pub, 1);
+            int[] y = fromBytes(pub, 33);
+            if (pub[0] != 0x04 && isOdd(y) != (pub[0] == 0x07))
+                return null;
+            // Check y^2 = x^3 + 7.
+            int[] lhs = create(), rhs = create();
+            sqr(lhs, y);
+            curveRhs(rhs, x);
+            if (!Secp256k1Field.equals(lhs, rhs))
+                return null;
+            return new int[][] { x, y };
+        }
+        return null;
+    }
+
+    private static void curveRhs(int[] r, int[] x) {
+        sqr(r, x);
+        mul(r, r, x);
+        add(r, r, fromInt(7));
+    }
+
+    /** Finds the y co-ordinate with the given parity for x. Returns false if x is not on the curve. */
+    private static boolean liftX(int[] x, int[] y, boolean odd) {
+        int[] rhs = create();
+        curveRhs(rhs, x);
+        if (!Secp256k1Field.sqrt(y, rhs))
+            return false;
+        normalize(y);
+        if (isOdd(y) != odd) {
+            negate(y, y);
+            normalize(y);
+        }
+        return true;
+    }
+
+    private static byte[] encode(JacobianPoint p, boolean compressed) {
+        int[] x = create(), y = create();
+        if (!p.toAffine(x, y))
+            throw new IllegalStateException("Cannot encode the point at infinity");
+        return encode(x, y, compressed);
+    }
+
+    private static byte[] encode(int[] x, int[] y, boolean compressed) {
+        byte[] out;
+        if (compressed) {
+            out = new byte[33];
+            out[0] = (byte) (isOdd(y) ? 0x03 : 0x02);
+        } else {
+            out = new byte[65];
+            out[0] = 0x04;
+            toBytes(y, out, 33);
+        }
+        toBytes(x, out, 1);
+        return out;
+    }
+
+    /**
+     * Computes k * G for 0 <= k < n using the comb table. The sequence of field operations is the same for every k
+     * apart from the negligible chance of hitting a doubling or infinity case in the additions.
+     */
+    private static JacobianPoint multiplyGenerator(BigInteger k) {
+        GeneratorTable table = GeneratorTable.INSTANCE;
+        byte[] kBytes = Utils.bigIntegerToBytes(k, 32);
+        int[] x = create(), y = create();
+        JacobianPoint r = new JacobianPoint();
+        for (int i = 0; i < GeneratorTable.WINDOWS; i++) {
+            int nibble = (kBytes[31 - (i >> 1)] >> ((i & 1) << 2)) & 0xF;
+            table.lookup(i, nibble, x, y);
+            if (i == 0)
+                r.setAffine(x, y);
+            else
+                r.addAffine(x, y);
+        }
+        r.addAffine(table.correctionX, table.correctionY);
+        return r;
+    }
+
+    /** Computes k * Q for a public scalar k and the affine point Q using the GLV split and interleaved wNAF. */
+    private static JacobianPoint multiply(BigInteger k, int[] qx, int[] qy) {
+        BigInteger[] split = splitScalar(k);
+        boolean negate1 = split[0].signum() < 0, negate2 = split[1].signum() < 0;
+        int[] wnaf1 = wnaf(split[0].abs()), wnaf2 = wnaf(split[1].abs());
+
+        // Odd multiples Q, 3Q, 5Q ... converted to affine together with a single inversion.
+        int tableSize = 1 << (WINDOW - 2);
+        JacobianPoint[] multiples = new JacobianPoint[tableSize];
+        JacobianPoint twiceQ = new JacobianPoint();
+        twiceQ.setAffine(qx, qy);
+        twiceQ.twice();
+        multiples[0] = new JacobianPoint();
+        multiples[0].setAffine(qx, qy);
+        for (int i = 1; i < tableSize; i++) {
+            multiples[i] = new JacobianPoint();
+            multiples[i].set(multiples[i - 1]);
+            multiples[i].addPoint(twiceQ);
+        }
+        int[][] xs = new int[tableSize][], ys = new int[tableSize][], negYs = new int[tableSize][],
+                lambdaXs = new int[tableSize][];
+        toAffineBatch(multiples, xs, ys);
+        for (int i = 0; i < tableSize; i++) {
+            negYs[i] = create();
+            negate(negYs[i], ys[i]);
+            lambdaXs[i] = create();
+            mul(lambdaXs[i], xs[i], BETA);
+        }
+
+        JacobianPoint r = new JacobianPoint();
+        for (int i = Math.max(wnaf1.length, wnaf2.length) - 1; i >= 0; i--) {
+            r.twice();
+            int d1 = i < wnaf1.length ? wnaf1[i] : 0;
+            if (d1 != 0) {
+                int index = Math.abs(d1) >> 1;
+                r.addAffine(xs[index], (d1 < 0) != negate1 ? negYs[index] : ys[index]);
+            }
+            int d2 = i < wnaf2.length ? wnaf2[i] : 0;
+            if (d2 != 0) {
+                int index = Math.abs(d2) >> 1;
+                r.addAffine(lambdaXs[index], (d2 < 0) != negate2 ? negYs[index] : ys[index]);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Splits k into k1 and k2 of about 128 bits each (either may be negative) such that k = k1 + k2 * lambda (mod n).
+     */
+    static BigInteger[] splitScalar(BigInteger k) {
+        BigInteger c1 = B2.multiply(k).add(HALF_N).divide(N);
+        BigInteger c2 = MINUS_B1.multiply(k).add(HALF_N).divide(N);
+        BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+        BigInteger k2 = c1.multiply(MINUS_B1).subtract(c2.multiply(B2));
+        return new BigInteger[] { k1, k2 };
+    }
+
+    /** Returns the width-w non-adjacent form of the non-negative k, least significant digit first. */
+    static int[] wnaf(BigInteger k) {
+        int len = k.bitLength() + 1;
+        int[] wnaf = new int[len];
+        int carry = 0;
+        int bit = 0;
+        while (bit < len) {
+            if ((k.testBit(bit) ? 1 : 0) == carry) {
+                bit++;
+                continue;
+            }
+            int now = Math.min(WINDOW, len - bit);
+            int word = carry;
+            for (int j = 0; j < now; j++)
+                if (k.testBit(bit + j))
+                    word += 1 << j;
+            carry = (word >> (WINDOW - 1)) & 1;
+            word -= carry << WINDOW;
+            wnaf[bit] = word;
+            bit += now;
+        }
+        return wnaf;
+    }
+
+    /** Converts non-infinite points to normalized affine co-ordinates using one shared inversion. */
+    private static void toAffineBatch(JacobianPoint[] points, int[][] xs, int[][] ys) {
+        int n = points.length;
+        // prefix[i] = z0 * z1 * ... * zi
+        int[][] prefix = new int[n][];
+        prefix[0] = create();
+        copy(prefix[0], points[0].z);
+        for (int i = 1; i < n; i++) {
+            prefix[i] = create();
+            mul(prefix[i], prefix[i - 1], points[i].z);
+        }
+        int[] acc = create();
+        inv(acc, prefix[n - 1]);
+        int[] zInv = create(), zInv2 = create();
+        for (int i = n - 1; i >= 0; i--) {
+            if (i > 0) {
+                mul(zInv, acc, prefix[i - 1]);
+                mul(acc, acc, points[i].z);
+            } else {
+                copy(zInv, acc);
+            }
+            xs[i] = create();
+            ys[i] = create();
+            sqr(zInv2, zInv);
+            mul(xs[i], points[i].x, zInv2);
+            mul(zInv2, zInv2, zInv);
+            mul(ys[i], points[i].y, zInv2);
+            normalize(xs[i]);
+            normalize(ys[i]);
+        }
+    }
+
+    /**
+     * The comb table for the generator. Entry [i][j] is j * 16^i * G + 2^i * H, where H is a point with no known
+     * relation to G. Adding H means no entry is the point at infinity, so every window does a real addition, and the
+     * sum of all the 2^i * H terms is cancelled by adding the correction point at the end.
+     */
+    private static final class GeneratorTable {
+        static final int WINDOWS = 64;
+        static final GeneratorTable INSTANCE = new GeneratorTable();
+
+        final int[][][] xs = new int[WINDOWS][][], ys = new int[WINDOWS][][];
+        final int[] correctionX, correctionY;
+
+        private GeneratorTable() {
+            int[] hx = create(), hy = create();
+            findNothingUpMySleevePoint(hx, hy);
+            JacobianPoint g = new JacobianPoint();
+            g.setAffine(GX, GY);
+            JacobianPoint h = new JacobianPoint();
+            h.setAffine(hx, hy);
+            JacobianPoint sumH = new JacobianPoint();
+            JacobianPoint[] all = new JacobianPoint[WINDOWS * 16];
+            for (int i = 0; i < WINDOWS; i++) {
+                sumH.addPoint(h);
+                for (int j = 0; j < 16; j++) {
+                    JacobianPoint entry = new JacobianPoint();
+                    if (j == 0)
+                        entry.set(h);
+                    else {
+                        entry.set(all[i * 16 + j - 1]);
+                        entry.addPoint(g);
+                    }
+                    all[i * 16 + j] = entry;
+                }
+                for (int d = 0; d < 4; d++)
+                    g.twice();
+                h.twice();
+            }
+            int[][] allX = new int[all.length][], allY = new int[all.length][];
+            toAffineBatch(all, allX, allY);
+            for (int i = 0; i < WINDOWS; i++) {
+                xs[i] = new int[16][];
+                ys[i] = new int[16][];
+                System.arraycopy(allX, i * 16, xs[i], 0, 16);
+                System.arraycopy(allY, i * 16, ys[i], 0, 16);
+            }
+            correctionX = create();
+            correctionY = create();
+            sumH.toAffine(correctionX, correctionY);
+            negate(correctionY, correctionY);
+            normalize(correctionY);
+        }
+
+        private static void findNothingUpMySleevePoint(int[] x, int[] y) {
+            byte[] seed = "bitcoinj secp256k1 comb".getBytes();
+            byte[] candidate = Sha256Hash.create(seed).getBytes();
+            while (!isCanonical(candidate, 0) || !liftX(fromBytes(candidate, 0), y, false))
+                candidate = Sha256Hash.create(candidate).getBytes();
+            copy(x, fromBytes(candidate, 0));
+        }
+
+        /** Copies entry [window][index] into x and y, reading every entry of the row so the access is uniform. */
+        void lookup(int window, int index, int[] x, int[] y) {
+            int[][] rowX = xs[window], rowY = ys[window];
+            for (int k = 0; k < 10; k++) {
+                x[k] = 0;
+                y[k] = 0;
+            }
+            for (int j = 0; j < 16; j++) {
+                int mask = ((j ^ index) - 1) >> 31;
+                int[] ex = rowX[j], ey = rowY[j];
+                for (int k = 0; k < 10; k++) {
+                    x[k] |= ex[k] & mask;
+                    y[k] |= ey[k] & mask;
+                }
+            }
+        }
+    }
+
+    /**
+     * A mutable point in Jacobian co-ordinates, representing the affine point (x / z^2, y / z^3). Each instance carries
+     * its own scratch space so the multiplication loops do not allocate.
+     */
+    private static final class JacobianPoint {
+        final int[] x = create(), y = create(), z = create();
+        boolean infinity = true;
+        private final int[] t1 = create(), t2 = create(), t3 = create(), t4 = create(), t5 = create(),
+                t6 = create(), t7 = create(), t8 = create();
+
+        void set(JacobianPoint p) {
+            copy(x, p.x);
+            copy(y, p.y);
+            copy(z, p.z);
+            infinity = p.infinity;
+        }
+
+        void setAffine(int[] ax, int[] ay) {
+            copy(x, ax);
+            copy(y, ay);
+            copy(z, fromInt(1));
+            infinity = false;
+        }
+
+        /** Doubling for a = 0 curves ("dbl-2009-l"). */
+        void twice() {
+            if (infinity)
+                return;
+            sqr(t1, x);            // A = X^2
+            sqr(t2, y);            // B = Y^2
+            sqr(t3, t2);           // C = B^2
+            add(t4, x, t2);
+            sqr(t4, t4);
+            sub(t4, t4, t1);
+            sub(t4, t4, t3);
+            mulInt(t4, t4, 2);     // D = 2 * ((X + B)^2 - A - C)
+            mulInt(t5, t1, 3);     // E = 3 * A
+            sqr(t6, t5);           // F = E^2
+            mul(z, y, z);
+            mulInt(z, z, 2);       // Z3 = 2 * Y * Z
+            mulInt(t7, t4, 2);
+            sub(x, t6, t7);        // X3 = F - 2 * D
+            sub(t4, t4, x);
+            mul(t4, t5, t4);
+            mulInt(t3, t3, 8);
+            sub(y, t4, t3);        // Y3 = E * (D - X3) - 8 * C
+        }
+
+        /** Adds the affine point (ax, ay) ("madd-2007-bl"). */
+        void addAffine(int[] ax, int[] ay) {
+            if (infinity) {
+                setAffine(ax, ay);
+                return;
+            }
+            sqr(t1, z);            // Z1Z1 = Z^2
+            mul(t2, ax, t1);       // U2 = x2 * Z1Z1
+            mul(t3, ay, z);
+            mul(t3, t3, t1);       // S2 = y2 * Z * Z1Z1
+            sub(t2, t2, x);        // H = U2 - X
+            sub(t3, t3, y);
+            mulInt(t3, t3, 2);     // r = 2 * (S2 - Y)
+            if (isZero(t2)) {
+                if (isZero(t3))
+                    twice();
+                else
+                    infinity = true;
+                return;
+            }
+            sqr(t4, t2);           // HH = H^2
+            mulInt(t5, t4, 4);     // I = 4 * HH
+            mul(t6, t2, t5);       // J = H * I
+            mul(t7, x, t5);        // V = X * I
+            sqr(x, t3);
+            sub(x, x, t6);
+            mulInt(t5, t7, 2);
+            sub(x, x, t5);         // X3 = r^2 - J - 2 * V
+            sub(t7, t7, x);
+            mul(t7, t3, t7);
+            mul(t6, y, t6);
+            mulInt(t6, t6, 2);
+            sub(y, t7, t6);        // Y3 = r * (V - X3) - 2 * Y * J
+            add(z, z, t2);
+            sqr(z, z);
+            sub(z, z, t1);
+            sub(z, z, t4);         // Z3 = (Z + H)^2 - Z1Z1 - HH
+        }
+
+        /** Adds another Jacobian point ("add-2007-bl"). */
+        void addPoint(JacobianPoint q) {
+            if (q.infinity)
+                return;
+            if (infinity) {
+                set(q);
+                return;
+            }
+            sqr(t1, z);            // Z1Z1
+            sqr(t2, q.z);          // Z2Z2
+            mul(t3, x, t2);        // U1 = X1 * Z2Z2
+            mul(t4, q.x, t1);      // U2 = X2 * Z1Z1
+            mul(t5, y, q.z);
+            mul(t5, t5, t2);       // S1 = Y1 * Z2 * Z2Z2
+            mul(t6, q.y, z);
+            mul(t6, t6, t1);       // S2 = Y2 * Z1 * Z1Z1
+            sub(t4, t4, t3);       // H = U2 - U1
+            sub(t6, t6, t5);
+            mulInt(t6, t6, 2);     // r = 2 * (S2 - S1)
+            if (isZero(t4)) {
+                if (isZero(t6))
+                    twice();
+                else
+                    infinity = true;
+                return;
+            }
+            mulInt(t7, t4, 2);
+            sqr(t7, t7);           // I = (2 * H)^2
+            mul(t8, t4, t7);       // J = H * I
+            mul(t3, t3, t7);       // V = U1 * I
+            sqr(x, t6);
+            sub(x, x, t8);
+            mulInt(t7, t3, 2);
+            sub(x, x, t7);         // X3 = r^2 - J - 2 * V
+            sub(t3, t3, x);
+            mul(t3, t6, t3);
+            mul(t5, t5, t8);
+            mulInt(t5, t5, 2);
+            sub(y, t3, t5);        // Y3 = r * (V - X3) - 2 * S1 * J
+            add(z, z, q.z);
+            sqr(z, z);
+            sub(z, z, t1);
+            sub(z, z, t2);
+            mul(z, z, t4);         // Z3 = ((Z1 + Z2)^2 - Z1Z1 - Z2Z2) * H
+        }
+
+        /** Writes normalized affine co-ordinates, or returns false for the point at infinity. */
+        boolean toAffine(int[] ax, int[] ay) {
+            if (infinity)
+                return false;
+            inv(t1, z);
+            sqr(t2, t1);
+            mul(ax, x, t2);
+            mul(t2, t2, t1);
+            mul(ay, y, t2);
+            normalize(ax);
+            normalize(ay);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+/**
+ * <p>Arithmetic modulo the secp256k1 field prime p = 2^256 - 2^32 - 977, used by {@link Secp256k1}.</p>
+ *
+ * <p>An element is an int[10] holding ten 26 bit limbs, least significant first, so the value is
+ * sum(n[i] * 2^(26 * i)). Products of two limbs fit comfortably in a long, which lets a full multiplication run without
+ * any allocation or BigInteger maths. All operations leave their result <i>weakly normalized</i>: limbs 0-8 are below
+ * 2^26, limb 9 is below 2^23 and the value may exceed p by a small amount. {@link #normalize(int[])} reduces fully and
+ * must be used before comparing, testing parity or serializing. Outputs may alias inputs.</p>
+ */
+final class Secp256k1Field {
+    private Secp256k1Field() { }
+
+    private static final int M = 0x3FFFFFF;
+    private static final int M22 = 0x3FFFFF;
+    // 2^260 mod p, without the 2^36 part that is folded in as a shift.
+    private static final long R0 = 0x3D10L;
+
+    private static final int[] P = {
+            0x3FFFC2F, 0x3FFFFBF, 0x3FFFFFF, 0x3FFFFFF, 0x3FFFFFF,
+            0x3FFFFFF, 0x3FFFFFF, 0x3FFFFFF, 0x3FFFFFF, 0x3FFFFF
+    };
+
+    static int[] create() {
+        return new int[10];
+    }
+
+    static int[] fromInt(int v) {
+        int[] r = new int[10];
+        r[0] = v;
+        return r;
+    }
+
+    static void copy(int[] r, int[] a) {
+        System.arraycopy(a, 0, r, 0, 10);
+    }
+
+    /** Reads 32 big endian bytes. The value is not reduced, use {@link #isCanonical(byte[], int)} to check it. */
+    static int[] fromBytes(byte[] bytes, int offset) {
+        int[] r = new int[10];
+        for (int i = 0; i < 32; i++) {
+            int b = bytes[offset + 31 - i] & 0xFF;
+            int bit = i * 8;
+            int limb = bit / 26, shift = bit % 26;
+            r[limb] |= (b << shift) & M;
+            if (shift > 18)
+                r[limb + 1] |= b >>> (26 - shift);
+        }
+        return r;
+    }
+
+    /** Returns true if the 32 big endian bytes at offset encode a value below p. */
+    static boolean isCanonical(byte[] bytes, int offset) {
+        int[] a = fromBytes(bytes, offset);
+        int[] b = create();
+        copy(b, a);
+        normalize(b);
+        for (int i = 0; i < 10; i++)
+            if (a[i] != b[i])
+                return false;
+        return true;
+    }
+
+    /** Writes the normalized element a as 32 big endian bytes. */
+    static void toBytes(int[] a, byte[] out, int offset) {
+        for (int i = 0; i < 32; i++) {
+            int bit = i * 8;
+            int limb = bit / 26, shift = bit % 26;
+            int b = a[limb] >>> shift;
+            if (shift > 18)
+                b |= a[limb + 1] << (26 - shift);
+            out[offset + 31 - i] = (byte) b;
+        }
+    }
+
+    static void add(int[] r, int[] a, int[] b) {
+        for (int i = 0; i < 10; i++)
+            r[i] = a[i] + b[i];
+        normalizeWeak(r);
+    }
+
+    /** r = a - b. Adding 4p first keeps every limb positive for any weakly normalized b. */
+    static void sub(int[] r, int[] a, int[] b) {
+        for (int i = 0; i < 10; i++)
+            r[i] = a[i] + (P[i] << 2) - b[i];
+        normalizeWeak(r);
+    }
+
+    static void negate(int[] r, int[] a) {
+        for (int i = 0; i < 10; i++)
+            r[i] = (P[i] << 2) - a[i];
+        normalizeWeak(r);
+    }
+
+    /** r = a * k for small non-negative k (at most 8, so limbs stay below 2^31). */
+    static void mulInt(int[] r, int[] a, int k) {
+        for (int i = 0; i < 10; i++)
+            r[i] = a[i] * k;
+        normalizeWeak(r);
+    }
+
+    static void mul(int[] r, int[] a, int[] b) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4], a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long b0 = b[0], b1 = b[1], b2 = b[2], b3 = b[3], b4 = b[4], b5 = b[5], b6 = b[6], b7 = b[7], b8 = b[8], b9 = b[9];
+        long c0 = a0 * b0;
+        long c1 = a0 * b1 + a1 * b0;
+        long c2 = a0 * b2 + a1 * b1 + a2 * b0;
+        long c3 = a0 * b3 + a1 * b2 + a2 * b1 + a3 * b0;
+        long c4 = a0 * b4 + a1 * b3 + a2 * b2 + a3 * b1 + a4 * b0;
+        long c5 = a0 * b5 + a1 * b4 + a2 * b3 + a3 * b2 + a4 * b1 + a5 * b0;
+        long c6 = a0 * b6 + a1 * b5 + a2 * b4 + a3 * b3 + a4 * b2 + a5 * b1 + a6 * b0;
+        long c7 = a0 * b7 + a1 * b6 + a2 * b5 + a3 * b4 + a4 * b3 + a5 * b2 + a6 * b1 + a7 * b0;
+        long c8 = a0 * b8 + a1 * b7 + a2 * b6 + a3 * b5 + a4 * b4 + a5 * b3 + a6 * b2 + a7 * b1 + a8 * b0;
+        long c9 = a0 * b9 + a1 * b8 + a2 * b7 + a3 * b6 + a4 * b5 + a5 * b4 + a6 * b3 + a7 * b2 + a8 * b1 + a9 * b0;
+        long c10 = a1 * b9 + a2 * b8 + a3 * b7 + a4 * b6 + a5 * b5 + a6 * b4 + a7 * b3 + a8 * b2 + a9 * b1;
+        long c11 = a2 * b9 + a3 * b8 + a4 * b7 + a5 * b6 + a6 * b5 + a7 * b4 + a8 * b3 + a9 * b2;
+        long c12 = a3 * b9 + a4 * b8 + a5 * b7 + a6 * b6 + a7 * b5 + a8 * b4 + a9 * b3;
+        long c13 = a4 * b9 + a5 * b8 + a6 * b7 + a7 * b6 + a8 * b5 + a9 * b4;
+        long c14 = a5 * b9 + a6 * b8 + a7 * b7 + a8 * b6 + a9 * b5;
+        long c15 = a6 * b9 + a7 * b8 + a8 * b7 + a9 * b6;
+        long c16 = a7 * b9 + a8 * b8 + a9 * b7;
+        long c17 = a8 * b9 + a9 * b8;
+        long c18 = a9 * b9;
+        reduce(r, c0, c1, c2, c3, c4, c5, c6, c7, c8, c9, c10, c11, c12, c13, c14, c15, c16, c17, c18);
+    }
+
+    static void sqr(int[] r, int[] a) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4], a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long c0 = a0 * a0;
+        long c1 = (a0 * a1 << 1);
+        long c2 = (a0 * a2 << 1) + a1 * a1;
+        long c3 = (a0 * a3 << 1) + (a1 * a2 << 1);
+        long c4 = (a0 * a4 << 1) + (a1 * a3 << 1) + a2 * a2;
+        long c5 = (a0 * a5 << 1) + (a1 * a4 << 1) + (a2 * a3 << 1);
+        long c6 = (a0 * a6 << 1) + (a1 * a5 << 1) + (a2 * a4 << 1) + a3 * a3;
+        long c7 = (a0 * a7 << 1) + (a1 * a6 << 1) + (a2 * a5 << 1) + (a3 * a4 << 1);
+        long c8 = (a0 * a8 << 1) + (a1 * a7 << 1) + (a2 * a6 << 1) + (a3 * a5 << 1) + a4 * a4;
+        long c9 = (a0 * a9 << 1) + (a1 * a8 << 1) + (a2 * a7 << 1) + (a3 * a6 << 1) + (a4 * a5 << 1);
+        long c10 = (a1 * a9 << 1) + (a2 * a8 << 1) + (a3 * a7 << 1) + (a4 * a6 << 1) + a5 * a5;
+        long c11 = (a2 * a9 << 1) + (a3 * a8 << 1) + (a4 * a7 << 1) + (a5 * a6 << 1);
+        long c12 = (a3 * a9 << 1) + (a4 * a8 << 1) + (a5 * a7 << 1) + a6 * a6;
+        long c13 = (a4 * a9 << 1) + (a5 * a8 << 1) + (a6 * a7 << 1);
+        long c14 = (a5 * a9 << 1) + (a6 * a8 << 1) + a7 * a7;
+        long c15 = (a6 * a9 << 1) + (a7 * a8 << 1);
+        long c16 = (a7 * a9 << 1) + a8 * a8;
+        long c17 = (a8 * a9 << 1);
+        long c18 = a9 * a9;
+        reduce(r, c0, c1, c2, c3, c4, c5, c6, c7, c8, c9, c10, c11, c12, c13, c14, c15, c16, c17, c18);
+    }
+
+
+    private static void reduce(int[] r, long c0, long c1, long c2, long c3, long c4, long c5, long c6, long c7, long c8,
+                               long c9, long c10, long c11, long c12, long c13, long c14, long c15, long c16, long c17,
+                               long c18) {
+        // Propagate carries so every column fits in 26 bits, with c19 taking the overflow.
+        c1 += c0 >>> 26; c0 &= M;
+        c2 += c1 >>> 26; c1 &= M;
+        c3 += c2 >>> 26; c2 &= M;
+        c4 += c3 >>> 26; c3 &= M;
+        c5 += c4 >>> 26; c4 &= M;
+        c6 += c5 >>> 26; c5 &= M;
+        c7 += c6 >>> 26; c6 &= M;
+        c8 += c7 >>> 26; c7 &= M;
+        c9 += c8 >>> 26; c8 &= M;
+        c10 += c9 >>> 26; c9 &= M;
+        c11 += c10 >>> 26; c10 &= M;
+        c12 += c11 >>> 26; c11 &= M;
+        c13 += c12 >>> 26; c12 &= M;
+        c14 += c13 >>> 26; c13 &= M;
+        c15 += c14 >>> 26; c14 &= M;
+        c16 += c15 >>> 26; c15 &= M;
+        c17 += c16 >>> 26; c16 &= M;
+        c18 += c17 >>> 26; c17 &= M;
+        long c19 = c18 >>> 26; c18 &= M;
+        // 2^260 = 2^10 * 2^26 + 0x3D10 (mod p), so column i >= 10 folds into columns i - 10 and i - 9. Only c19 lands
+        // in column 10 again, and it is small enough to be folded a second time.
+        long d0 = c0 + c10 * R0;
+        long d1 = c1 + c11 * R0 + (c10 << 10);
+        long d2 = c2 + c12 * R0 + (c11 << 10);
+        long d3 = c3 + c13 * R0 + (c12 << 10);
+        long d4 = c4 + c14 * R0 + (c13 << 10);
+        long d5 = c5 + c15 * R0 + (c14 << 10);
+        long d6 = c6 + c16 * R0 + (c15 << 10);
+        long d7 = c7 + c17 * R0 + (c16 << 10);
+        long d8 = c8 + c18 * R0 + (c17 << 10);
+        long d9 = c9 + c19 * R0 + (c18 << 10);
+        long d10 = c19 << 10;
+        d0 += d10 * R0;
+        d1 += d10 << 10;
+        d1 += d0 >>> 26; d0 &= M;
+        d2 += d1 >>> 26; d1 &= M;
+        d3 += d2 >>> 26; d2 &= M;
+        d4 += d3 >>> 26; d3 &= M;
+        d5 += d4 >>> 26; d4 &= M;
+        d6 += d5 >>> 26; d5 &= M;
+        d7 += d6 >>> 26; d6 &= M;
+        d8 += d7 >>> 26; d7 &= M;
+        d9 += d8 >>> 26; d8 &= M;
+        // 2^256 = 2^6 * 2^26 + 0x3D1 (mod p) folds the bits above limb 9.
+        long t = d9 >>> 22; d9 &= M22;
+        d0 += t * 0x3D1L;
+        d1 += t << 6;
+        d1 += d0 >>> 26; d0 &= M;
+        d2 += d1 >>> 26; d1 &= M;
+        d3 += d2 >>> 26; d2 &= M;
+        d4 += d3 >>> 26; d3 &= M;
+        d5 += d4 >>> 26; d4 &= M;
+        d6 += d5 >>> 26; d5 &= M;
+        d7 += d6 >>> 26; d6 &= M;
+        d8 += d7 >>> 26; d7 &= M;
+        d9 += d8 >>> 26; d8 &= M;
+        r[0] = (int) d0;
+        r[1] = (int) d1;
+        r[2] = (int) d2;
+        r[3] = (int) d3;
+        r[4] = (int) d4;
+        r[5] = (int) d5;
+        r[6] = (int) d6;
+        r[7] = (int) d7;
+        r[8] = (int) d8;
+        r[9] = (int) d9;
+    }
+
+    static void normalizeWeak(int[] r) {
+        for (int i = 0; i < 9; i++) {
+            r[i + 1] += r[i] >>> 26;
+            r[i] &= M;
+        }
+        int t = r[9] >>> 22;
+        r[9] &= M22;
+        r[0] += t * 0x3D1;
+        r[1] += t << 6;
+        for (int i = 0; i < 9; i++) {
+            r[i + 1] += r[i] >>> 26;
+            r[i] &= M;
+        }
+    }
+
+    /** Fully reduces r into the range [0, p). */
+    static void normalize(int[] r) {
+        normalizeWeak(r);
+        // A carry can only reach bit 256 again if the value was within 2^33 of 2^256, in which case folding once more
+        // leaves it tiny.
+        if (r[9] >>> 22 != 0)
+            normalizeWeak(r);
+        // Now r < 2^256 < 2p. Subtract p if r + (2^256 - p) overflows 2^256, without branching on the value.
+        int[] s = new int[10];
+        s[0] = r[0] + 0x3D1;
+        s[1] = r[1] + (1 << 6);
+        for (int i = 2; i < 10; i++)
+            s[i] = r[i];
+        for (int i = 0; i < 9; i++) {
+            s[i + 1] += s[i] >>> 26;
+            s[i] &= M;
+        }
+        int mask = -(s[9] >>> 22);
+        s[9] &= M22;
+        for (int i = 0; i < 10; i++)
+            r[i] = (s[i] & mask) | (r[i] & ~mask);
+    }
+
+    /** Returns true if a is zero modulo p. a is left unchanged. */
+    static boolean isZero(int[] a) {
+        int[] t = create();
+        copy(t, a);
+        normalize(t);
+        int z = 0;
+        for (int i = 0; i < 10; i++)
+            z |= t[i];
+        return z == 0;
+    }
+
+    /** Returns true if a and b are equal modulo p. */
+    static boolean equals(int[] a, int[] b) {
+        int[] t = create();
+        sub(t, a, b);
+        return isZero(t);
+    }
+
+    /** Returns true if the normalized element a is odd. */
+    static boolean isOdd(int[] a) {
+        return (a[0] & 1) != 0;
+    }
+
+    private static void sqrTimes(int[] r, int[] a, int n) {
+        sqr(r, a);
+        for (int i = 1; i < n; i++)
+            sqr(r, r);
+    }
+
+    /**
+     * Computes a^(2^223 - 1) into x223 and the intermediate powers x2 = a^3, x3, x22 that the inversion and square root
+     * chains reuse. The chain follows the one used by libsecp256k1, which exploits the long runs of one bits in p.
+     */
+    private static void commonChain(int[] a, int[] x2, int[] x3, int[] x22, int[] x223) {
+        int[] x6 = create(), x9 = create(), x11 = create(), x44 = create(), x88 = create(), x176 = create(),
+                x220 = create();
+        sqr(x2, a);
+        mul(x2, x2, a);
+        sqr(x3, x2);
+        mul(x3, x3, a);
+        sqrTimes(x6, x3, 3);
+        mul(x6, x6, x3);
+        sqrTimes(x9, x6, 3);
+        mul(x9, x9, x3);
+        sqrTimes(x11, x9, 2);
+        mul(x11, x11, x2);
+        sqrTimes(x22, x11, 11);
+        mul(x22, x22, x11);
+        sqrTimes(x44, x22, 22);
+        mul(x44, x44, x22);
+        sqrTimes(x88, x44, 44);
+        mul(x88, x88, x44);
+        sqrTimes(x176, x88, 88);
+        mul(x176, x176, x88);
+        sqrTimes(x220, x176, 44);
+        mul(x220, x220, x44);
+        sqrTimes(x223, x220, 3);
+        mul(x223, x223, x3);
+    }
+
+    /** r = a^-1 (mod p) by Fermat's little theorem, a^(p - 2). The inverse of zero is zero. */
+    static void inv(int[] r, int[] a) {
+        int[] x2 = create(), x3 = create(), x22 = create(), t = create();
+        commonChain(a, x2, x3, x22, t);
+        sqrTimes(t, t, 23);
+        mul(t, t, x22);
+        sqrTimes(t, t, 5);
+        mul(t, t, a);
+        sqrTimes(t, t, 3);
+        mul(t, t, x2);
+        sqrTimes(t, t, 2);
+        mul(r, t, a);
+    }
+
+    /**
+     * Sets r to a square root of a, a^((p + 1) / 4), and returns true if one exists. When a is not a square r holds
+     * garbage and false is returned.
+     */
+    static boolean sqrt(int[] r, int[] a) {
+        int[] x2 = create(), x3 = create(), x22 = create(), t = create();
+        commonChain(a, x2, x3, x22, t);
+        sqrTimes(t, t, 23);
+        mul(t, t, x22);
+        sqrTimes(t, t, 6);
+        mul(t, t, x2);
+        sqrTimes(t, t, 2);
+        int[] check = create();
+        sqr(check, t);
+        copy(r, t);
+        return equals(check, a);
+    }
+}
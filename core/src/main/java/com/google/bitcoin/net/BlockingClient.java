@@ -46,6 +46,9 @@ public class BlockingClient implements MessageWriteTarget {
     private final ByteBuffer dbuf;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // The network thread waits on this while reading is paused
+    private final Object readPauseLock = new Object();
+    private boolean readPaused = false; // Guarded by readPauseLock
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -63,7 +66,9 @@ public class BlockingClient implements MessageWriteTarget {
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        // A heap buffer lets us read from the stream straight into its backing array, and lets the parser read
+        // messages from that array in place.
+        dbuf = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this);
         socket = socketFactory.createSocket();
         Thread t = new Thread() {
@@ -75,15 +80,18 @@ public class BlockingClient implements MessageWriteTarget {
                     socket.connect(serverAddress, connectTimeoutMillis);
                     parser.connectionOpened();
                     InputStream stream = socket.getInputStream();
-                    byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
-                        // TODO Kill the message duplication here
-                        checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+                        synchronized (readPauseLock) {
+                            while (readPaused && !vCloseRequested)
+                                readPauseLock.wait();
+                        }
+                        checkState(dbuf.remaining() > 0);
+                        int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(),
+                                Math.max(1, Math.min(dbuf.remaining(), stream.available())));
                         if (read == -1)
                             return;
-                        dbuf.put(readBuff, 0, read);
+                        dbuf.position(dbuf.position() + read);
                         // "flip" the buffer - setting the limit to the current position and setting position to 0
                         dbuf.flip();
                         // Use parser.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -126,6 +134,18 @@ public class BlockingClient implements MessageWriteTarget {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        // Make sure the network thread doesn't stay parked if reading was paused
+        synchronized (readPauseLock) {
+            readPauseLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setReadPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readPaused = paused;
+            readPauseLock.notifyAll();
+        }
     }
 
     @Override
@@ -28,9 +28,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -48,6 +47,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // The most queued buffers handed to the OS in a single gathering write.
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -59,7 +60,8 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<ByteBuffer>();
+    @GuardedBy("lock") private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -78,7 +80,9 @@ class ConnectionHandler implements MessageWriteTarget {
             return;
         }
         this.parser = parser;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        // A heap buffer lets the parser read messages straight out of its backing array instead of copying each payload
+        // out again. The channel still copies into it from a temporary direct buffer, so this saves one copy, not all.
+        readBuff = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
@@ -111,14 +115,24 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing it several
+            // queued messages per system call.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buff : bytesToWrite) {
+                    gatherBuffers[count++] = buff;
+                    if (count == gatherBuffers.length)
+                        break;
+                }
+                bytesToWriteRemaining -= channel.write(gatherBuffers, 0, count);
+                Arrays.fill(gatherBuffers, 0, count, null);
+                int written = 0;
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining()) {
+                    bytesToWrite.poll();
+                    written++;
+                }
+                // If not everything we offered was taken the OS' buffer is full, so wait until it has room again.
+                if (written < count) {
                     setWriteOps();
                     break;
                 }
@@ -143,9 +157,10 @@ class ConnectionHandler implements MessageWriteTarget {
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            // Just dump the message onto the write buffer and call tryWriteBytes. The array is not copied: callers may
+            // not modify it after handing it to us, and it may be shared with other connections, each of which wraps
+            // it in its own ByteBuffer.
+            bytesToWrite.offer(ByteBuffer.wrap(message));
             bytesToWriteRemaining += message.length;
             setWriteOps();
         } catch (IOException e) {
@@ -162,6 +177,25 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public void setReadPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                // Don't bother waking up the selector here, since we're just removing an op, not adding
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // Refresh the selector to make sure it gets the new interestOps
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is being closed, so there is nothing left to pause or resume
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -23,7 +23,9 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array may be queued rather than copied, so the caller must not
+     * modify it after this call. Implementations must never modify it either, as the same array may be shared between
+     * several connections.
      */
     void writeBytes(byte[] message) throws IOException;
     /**
@@ -31,4 +33,10 @@ public interface MessageWriteTarget {
      * event on the network-handling thread where all callbacks occur.
      */
     void closeConnection();
+    /**
+     * Stops or resumes reading from the connection. While reading is paused no more bytes are passed to
+     * {@link StreamParser#receiveBytes(java.nio.ByteBuffer)}, so once the OS' receive buffer fills up TCP flow control
+     * makes the remote end stop sending. May be called from any thread.
+     */
+    void setReadPaused(boolean paused);
 }
@@ -27,7 +27,7 @@ import static com.google.common.base.Preconditions.checkState;
  */
 public class NioClient implements MessageWriteTarget {
     private final Handler handler;
-    private final NioClientManager manager = new NioClientManager();
+    private final NioClientManager manager = new NioClientManager(1);
 
     class Handler extends AbstractTimeoutHandler implements StreamParser {
         private final StreamParser upstreamParser;
@@ -104,4 +104,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public void setReadPaused(boolean paused) {
+        handler.writeTarget.setReadPaused(paused);
+    }
 }
@@ -18,6 +18,7 @@ package com.google.bitcoin.net;
 
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
@@ -26,123 +27,206 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in one
+ * or more network processing threads, each with its own selector. New connections are spread over the selectors
+ * round-robin and stay on the selector they were assigned to until they close, so events for any one connection are
+ * still handled by a single thread, in order.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
-
     // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
     class SocketChannelAndParser {
         SocketChannel sc; StreamParser parser;
         SocketChannelAndParser(SocketChannel sc, StreamParser parser) { this.sc = sc; this.parser = parser; }
     }
-    final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            StreamParser parser = (StreamParser) key.attachment();
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+    // selectors[0] is run by the service thread itself, the others each get a thread of their own which lives exactly
+    // as long as the service thread does.
+    private final ConnectionSelector[] selectors;
+    private final AtomicInteger nextSelector = new AtomicInteger();
+    // Set once the service thread starts shutting down, so the other selector threads stop even if the service thread
+    // exited because of an error rather than a call to stop(). A selector thread which dies sets it too, which takes the
+    // whole manager down rather than leaving new connections to be assigned to a selector nobody runs.
+    private volatile boolean shuttingDown = false;
+
+    // A selector and the network thread loop which drives it.
+    class ConnectionSelector implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
+
+        ConnectionSelector() {
             try {
-                if (sc.finishConnect()) {
-                    log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps(SelectionKey.OP_READ).attach(handler);
-                    handler.parser.connectionOpened();
-                } else {
-                    log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                }
-            } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                log.error("Failed to connect with exception: {}", Throwables.getRootCause(e).getMessage());
-                handler.closeConnection();
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
             }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
-    }
-
-    /**
-     * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
-     * calls.
-     */
-    public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
         }
-    }
 
-    @Override
-    public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
+        // Handle a SelectionKey which was selected
+        private void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                StreamParser parser = (StreamParser) key.attachment();
+                SocketChannel sc = (SocketChannel) key.channel();
+                ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps(SelectionKey.OP_READ).attach(handler);
+                        handler.parser.connectionOpened();
+                    } else {
+                        log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
                     }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    log.error("Failed to connect with exception: {}", Throwables.getRootCause(e).getMessage());
+                    handler.closeConnection();
                 }
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                while (isRunning() && !shuttingDown) {
+                    SocketChannelAndParser conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn.parser);
+                        } catch (ClosedChannelException e) {
+                            log.info("SocketChannel was closed before it could be registered");
+                        }
+                    }
 
-                selector.select();
+                    selector.select();
 
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error trying to open/read from connection: ", e);
+            } finally {
+                if (!shuttingDown) {
+                    shuttingDown = true;
+                    for (ConnectionSelector s : selectors)
+                        s.selector.wakeup();
+                }
+                closePendingConnections();
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.error("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.error("Error closing client manager selector", e);
                 }
             }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
+        }
+
+        // Closes connections which were handed to this selector but never registered with it
+        void closePendingConnections() {
+            SocketChannelAndParser conn;
+            while ((conn = newConnectionChannels.poll()) != null) {
                 try {
-                    key.channel().close();
+                    conn.sc.close();
                 } catch (IOException e) {
                     log.error("Error closing channel", e);
                 }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
+                conn.parser.connectionClosed();
             }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
+        }
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, with one selector thread per available
+     * processor.
+     */
+    public NioClientManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, spreading connections over the given
+     * number of selector threads. A single selector thread is plenty for a handful of connections, but with hundreds of
+     * peers reading, checksumming and dispatching messages on one thread becomes the bottleneck.
+     */
+    public NioClientManager(int selectorCount) {
+        checkArgument(selectorCount > 0, "selectorCount must be positive");
+        selectors = new ConnectionSelector[selectorCount];
+        for (int i = 0; i < selectorCount; i++)
+            selectors[i] = new ConnectionSelector();
+    }
+
+    @Override
+    public void run() {
+        List<Thread> threads = new ArrayList<Thread>(selectors.length - 1);
+        try {
+            for (int i = 1; i < selectors.length; i++) {
+                Thread thread = new Thread(selectors[i], "NioClientManager selector " + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
             }
+            selectors[0].run();
+        } finally {
+            shuttingDown = true;
+            for (ConnectionSelector s : selectors)
+                s.selector.wakeup();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
         }
     }
 
+    /**
+     * Returns the number of selector threads connections are spread over.
+     */
+    public int getSelectorCount() {
+        return selectors.length;
+    }
+
     @Override
     public void openConnection(SocketAddress serverAddress, StreamParser parser) {
-        if (!isRunning())
+        if (!isRunning() || shuttingDown)
             throw new IllegalStateException();
         // Create a new connection, give it a parser as an attachment
         try {
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            ConnectionSelector s = selectors[(nextSelector.getAndIncrement() & Integer.MAX_VALUE) % selectors.length];
+            s.newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
+            s.selector.wakeup();
+            // The selector may have died after the check above, in which case nobody will pick the connection up.
+            if (shuttingDown)
+                s.closePendingConnections();
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
@@ -151,7 +235,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (ConnectionSelector s : selectors)
+            s.selector.wakeup();
     }
 
     @Override
@@ -20,18 +20,25 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
- * process data.
+ * process data. Accepted connections are spread round-robin over one or more selector threads, the first of which also
+ * accepts new connections.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -41,16 +48,100 @@ public class NioServer extends AbstractExecutionThreadService {
     private final ServerSocketChannel sc;
     @VisibleForTesting final Selector selector;
 
+    // Selectors for connections which are not handled by the accepting selector above, each run in its own thread
+    // which lives exactly as long as the service thread does.
+    private final ConnectionSelector[] connectionSelectors;
+    private int nextSelector = 0; // Only touched by the service thread
+    // Set once the service thread or any connection selector thread starts shutting down, so the others stop too even
+    // if that thread exited because of an error rather than a call to stop(). Otherwise connections would keep being
+    // handed to a selector which is no longer there to register them.
+    private volatile boolean shuttingDown = false;
+
+    // A selector for accepted connections and the network thread loop which drives it.
+    private class ConnectionSelector implements Runnable {
+        final Selector selector;
+        // Newly-accepted connections which should be registered with OP_READ
+        final Queue<SocketChannel> newChannels = new LinkedBlockingQueue<SocketChannel>();
+
+        ConnectionSelector() throws IOException {
+            selector = SelectorProvider.provider().openSelector();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning() && !shuttingDown) {
+                    SocketChannel newChannel;
+                    while ((newChannel = newChannels.poll()) != null) {
+                        try {
+                            registerConnection(selector, newChannel);
+                        } catch (IOException e) {
+                            log.error("Error registering new connection", e);
+                            newChannel.close();
+                        }
+                    }
+
+                    selector.select();
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+
+                        ConnectionHandler.handleKey(key);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error trying to open/read from connection: {}", e);
+            } finally {
+                shuttingDown = true;
+                NioServer.this.selector.wakeup();
+                closeAll(selector);
+                closeNewChannels();
+            }
+        }
+
+        // Closes connections that were handed to this selector but never registered with it.
+        void closeNewChannels() {
+            SocketChannel newChannel;
+            while ((newChannel = newChannels.poll()) != null) {
+                try {
+                    newChannel.close();
+                } catch (IOException e) {
+                    log.error("Error closing channel", e);
+                }
+            }
+        }
+    }
+
+    // Registers a newly-accepted connection with the given selector, which must belong to the calling thread
+    private void registerConnection(Selector selector, SocketChannel newChannel) throws IOException {
+        SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+        ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
+        newKey.attach(handler);
+        handler.parser.connectionOpened();
+    }
+
     // Handle a SelectionKey which was selected
     private void handleKey(Selector selector, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
             // Accept a new connection, give it a parser as an attachment
             SocketChannel newChannel = sc.accept();
+            if (shuttingDown) {
+                newChannel.close();
+                return;
+            }
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
-            newKey.attach(handler);
-            handler.parser.connectionOpened();
+            // Slot 0 is the accepting selector itself, the rest hand the connection over to another selector thread.
+            int slot = nextSelector;
+            nextSelector = (nextSelector + 1) % (connectionSelectors.length + 1);
+            if (slot == 0) {
+                registerConnection(selector, newChannel);
+            } else {
+                ConnectionSelector s = connectionSelectors[slot - 1];
+                s.newChannels.offer(newChannel);
+                s.selector.wakeup();
+            }
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
@@ -58,13 +149,30 @@ public class NioServer extends AbstractExecutionThreadService {
 
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
-     * using {@link StreamParser}s created by the given {@link StreamParserFactory}
+     * using {@link StreamParser}s created by the given {@link StreamParserFactory}. Connections are spread over one
+     * selector thread per available processor.
      *
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamParser}s created by the given {@link StreamParserFactory}, spreading connections over the
+     * given number of selector threads.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress,
+                     int selectorCount) throws IOException {
+        checkArgument(selectorCount > 0, "selectorCount must be positive");
         this.parserFactory = parserFactory;
 
+        connectionSelectors = new ConnectionSelector[selectorCount - 1];
+        for (int i = 0; i < connectionSelectors.length; i++)
+            connectionSelectors[i] = new ConnectionSelector();
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
@@ -74,8 +182,15 @@ public class NioServer extends AbstractExecutionThreadService {
 
     @Override
     protected void run() throws Exception {
+        List<Thread> threads = new ArrayList<Thread>(connectionSelectors.length);
         try {
-            while (isRunning()) {
+            for (int i = 0; i < connectionSelectors.length; i++) {
+                Thread thread = new Thread(connectionSelectors[i], "NioServer selector " + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            while (isRunning() && !shuttingDown) {
                 selector.select();
 
                 Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
@@ -89,30 +204,38 @@ public class NioServer extends AbstractExecutionThreadService {
         } catch (Exception e) {
             log.error("Error trying to open/read from connection: {}", e);
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
+            shuttingDown = true;
+            for (ConnectionSelector s : connectionSelectors)
+                s.selector.wakeup();
+            closeAll(selector);
             try {
-                selector.close();
+                sc.close();
             } catch (IOException e) {
-                log.error("Error closing server selector", e);
+                log.error("Error closing server channel", e);
             }
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
+            // Connections handed over after a selector thread had already stopped.
+            for (ConnectionSelector s : connectionSelectors)
+                s.closeNewChannels();
+        }
+    }
+
+    // Go through and close everything registered with the given selector, without letting IOExceptions get in our way
+    private static void closeAll(Selector selector) {
+        for (SelectionKey key : selector.keys()) {
             try {
-                sc.close();
+                key.channel().close();
             } catch (IOException e) {
-                log.error("Error closing server channel", e);
+                log.error("Error closing channel", e);
             }
+            key.cancel();
+            ConnectionHandler.handleKey(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Error closing server selector", e);
         }
     }
 
@@ -123,7 +246,9 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
+        // Wake up the selectors and let the selection threads break their loops as the ExecutionService !isRunning()
         selector.wakeup();
+        for (ConnectionSelector s : connectionSelectors)
+            s.selector.wakeup();
     }
 }
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, together with how well connecting to them went, so that a
+ * {@link com.google.bitcoin.core.PeerGroup} can connect to known good peers straight away instead of waiting for DNS
+ * or other discovery sources.</p>
+ *
+ * <p>Addresses are learnt from the addr messages peers send and from the connections the PeerGroup makes, see
+ * {@link com.google.bitcoin.core.PeerGroup#setPeerDatabase(PeerDatabase)}. For each one the time it was last
+ * announced, the time we last connected to it, how many attempts in a row failed and its ping time are kept.
+ * {@link #getPeers(long, java.util.concurrent.TimeUnit)} returns the addresses most likely to work first: those we
+ * connected to successfully, fastest first, then ones we never tried, and last those that failed recently.</p>
+ *
+ * <p>So that a flood of addresses from one network can't push out everything else, addresses are kept in buckets by
+ * network (the /16 for IPv4, /32 for IPv6) with a limited number in each bucket, and results are spread over the
+ * buckets.</p>
+ *
+ * <p>The database is stored in a small binary file, written by {@link #save()}.</p>
+ */
+public class PeerDatabase implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(PeerDatabase.class);
+
+    private static final int FILE_MAGIC = 0x50454552;  // "PEER"
+    private static final int FILE_VERSION = 1;
+
+    /** How many addresses are kept for each network. */
+    public static final int MAX_PER_BUCKET = 64;
+    /** How many networks addresses are kept for. */
+    public static final int MAX_BUCKETS = 1024;
+    /** How many addresses {@link #getPeers(long, java.util.concurrent.TimeUnit)} returns at most. */
+    public static final int MAX_RESULTS = 32;
+    // Addresses that failed this many times in a row are forgotten.
+    private static final int MAX_FAILURES = 10;
+    // Addresses we never connected to are forgotten if nobody announced them for this long.
+    private static final long MAX_UNSEEN_SECS = 30L * 24 * 60 * 60;
+
+    private static class Entry {
+        final InetSocketAddress address;
+        long lastSeenSecs;
+        long lastSuccessMillis;
+        long lastAttemptMillis;
+        int failures;
+        // Measured ping time, or -1 if unknown.
+        int latencyMillis = -1;
+
+        Entry(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        // Whether there is any point trying this address at all.
+        boolean isTerrible(long nowSecs) {
+            if (failures >= MAX_FAILURES)
+                return true;
+            return lastSuccessMillis == 0 && nowSecs - lastSeenSecs > MAX_UNSEEN_SECS;
+        }
+    }
+
+    // Best addresses first: good ones by latency and then how recently they worked, untried ones by how recently they
+    // were announced, failed ones by how often they failed.
+    private static final Comparator<Entry> BEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = rank(a) - rank(b);
+            if (result != 0)
+                return result;
+            switch (rank(a)) {
+                case 0:
+                    long la = a.latencyMillis < 0 ? Long.MAX_VALUE : a.latencyMillis;
+                    long lb = b.latencyMillis < 0 ? Long.MAX_VALUE : b.latencyMillis;
+                    if (la != lb)
+                        return la < lb ? -1 : 1;
+                    return compareDescending(a.lastSuccessMillis, b.lastSuccessMillis);
+                case 2:
+                    if (a.failures != b.failures)
+                        return a.failures - b.failures;
+                    // Fall through.
+                default:
+                    return compareDescending(a.lastSeenSecs, b.lastSeenSecs);
+            }
+        }
+
+        private int rank(Entry e) {
+            if (e.failures == 0 && e.lastSuccessMillis > 0)
+                return 0;
+            return e.failures == 0 ? 1 : 2;
+        }
+
+        private int compareDescending(long a, long b) {
+            return a == b ? 0 : (a > b ? -1 : 1);
+        }
+    };
+
+    private final ReentrantLock lock = Threading.lock("peerdatabase");
+    @Nullable private final File file;
+    @GuardedBy("lock") private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+    @GuardedBy("lock") private final Map<Long, List<Entry>> buckets = new HashMap<Long, List<Entry>>();
+    @GuardedBy("lock") private boolean dirty;
+
+    /** Creates an empty database which isn't saved anywhere. */
+    public PeerDatabase() {
+        this.file = null;
+    }
+
+    /**
+     * Creates a database which is saved to the given file, reading what is already in the file if it exists. A file
+     * that can't be read is logged and ignored, as losing the addresses only costs some time.
+     */
+    public PeerDatabase(File file) {
+        this.file = file;
+        if (!file.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            load(in);
+            log.info("Loaded {} peer addresses from {}", entries.size(), file);
+        } catch (IOException e) {
+            log.warn("Failed to read peer database " + file + ", starting with an empty one", e);
+            entries.clear();
+            buckets.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /** Records that the given address was announced, at the given time in seconds. */
+    public void addAddress(InetSocketAddress address, long seenTimeSecs) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreateLocked(address);
+            if (entry != null && seenTimeSecs > entry.lastSeenSecs) {
+                entry.lastSeenSecs = seenTimeSecs;
+                dirty = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that we connected to the given address. */
+    public void markSuccess(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreateLocked(address);
+            if (entry == null)
+                return;
+            long now = Utils.currentTimeMillis();
+            entry.lastAttemptMillis = now;
+            entry.lastSuccessMillis = now;
+            entry.lastSeenSecs = Math.max(entry.lastSeenSecs, now / 1000);
+            entry.failures = 0;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that connecting to the given address failed. */
+    public void markFailure(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            if (entry == null)
+                return;
+            entry.lastAttemptMillis = Utils.currentTimeMillis();
+            entry.failures++;
+            dirty = true;
+            if (entry.isTerrible(entry.lastAttemptMillis / 1000))
+                removeLocked(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records the ping time measured for a peer we are or were connected to. */
+    public void setLatency(InetSocketAddress address, long latencyMillis) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            if (entry == null)
+                return;
+            entry.latencyMillis = (int) Math.min(Integer.MAX_VALUE, Math.max(0, latencyMillis));
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many addresses are known. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@link #MAX_RESULTS} known addresses, those most likely to accept a connection first. At most two
+     * addresses are taken from each network until every network had its turn. Never blocks.
+     */
+    @Override
+    public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+        lock.lock();
+        try {
+            evictTerribleLocked(Utils.currentTimeMillis() / 1000);
+            List<Entry> candidates = new ArrayList<Entry>(entries.values());
+            Collections.sort(candidates, BEST_FIRST);
+            List<InetSocketAddress> results = new ArrayList<InetSocketAddress>();
+            List<Entry> deferred = new ArrayList<Entry>();
+            Map<Long, Integer> perBucket = new HashMap<Long, Integer>();
+            for (Entry entry : candidates) {
+                long key = bucketKey(entry.address);
+                Integer count = perBucket.get(key);
+                count = count == null ? 1 : count + 1;
+                perBucket.put(key, count);
+                if (count <= 2)
+                    results.add(entry.address);
+                else
+                    deferred.add(entry);
+                if (results.size() >= MAX_RESULTS)
+                    break;
+            }
+            for (Iterator<Entry> it = deferred.iterator(); it.hasNext() && results.size() < MAX_RESULTS; )
+                results.add(it.next().address);
+            return results.toArray(new InetSocketAddress[results.size()]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    /** Writes the database to its file if anything changed since it was last written. */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+            File temp = File.createTempFile("peers", null, file.getAbsoluteFile().getParentFile());
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                writeLocked(out);
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                canonical.delete();
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writeLocked(DataOutputStream out) throws IOException {
+        evictTerribleLocked(Utils.currentTimeMillis() / 1000);
+        List<Entry> toWrite = new ArrayList<Entry>(entries.values());
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(toWrite.size());
+        for (Entry entry : toWrite) {
+            byte[] addr = entry.address.getAddress().getAddress();
+            out.writeByte(addr.length);
+            out.write(addr);
+            out.writeShort(entry.address.getPort());
+            out.writeLong(entry.lastSeenSecs);
+            out.writeLong(entry.lastSuccessMillis);
+            out.writeLong(entry.lastAttemptMillis);
+            out.writeInt(entry.failures);
+            out.writeInt(entry.latencyMillis);
+        }
+    }
+
+    private void load(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC)
+            throw new IOException("Not a peer database");
+        int version = in.readInt();
+        if (version != FILE_VERSION)
+            throw new IOException("Unknown peer database version " + version);
+        int count = in.readInt();
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] addr = new byte[in.readUnsignedByte()];
+                if (addr.length != 4 && addr.length != 16)
+                    throw new IOException("Bad address length " + addr.length);
+                in.readFully(addr);
+                int port = in.readUnsignedShort();
+                Entry entry = getOrCreateLocked(new InetSocketAddress(InetAddress.getByAddress(addr), port));
+                long lastSeenSecs = in.readLong();
+                long lastSuccessMillis = in.readLong();
+                long lastAttemptMillis = in.readLong();
+                int failures = in.readInt();
+                int latencyMillis = in.readInt();
+                if (entry != null) {
+                    entry.lastSeenSecs = lastSeenSecs;
+                    entry.lastSuccessMillis = lastSuccessMillis;
+                    entry.lastAttemptMillis = lastAttemptMillis;
+                    entry.failures = failures;
+                    entry.latencyMillis = latencyMillis;
+                }
+            }
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the entry for the address, adding it if there is room. Returns null if its bucket is full of better
+    // addresses or there are too many buckets.
+    @GuardedBy("lock")
+    @Nullable
+    private Entry getOrCreateLocked(InetSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (entry != null)
+            return entry;
+        if (address.getAddress() == null)
+            return null;  // Unresolved.
+        long key = bucketKey(address);
+        List<Entry> bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_BUCKETS)
+                return null;
+            bucket = new ArrayList<Entry>();
+            buckets.put(key, bucket);
+        }
+        if (bucket.size() >= MAX_PER_BUCKET) {
+            long nowSecs = Utils.currentTimeMillis() / 1000;
+            for (Iterator<Entry> it = bucket.iterator(); it.hasNext(); ) {
+                Entry old = it.next();
+                if (old.isTerrible(nowSecs)) {
+                    it.remove();
+                    entries.remove(old.address);
+                }
+            }
+        }
+        if (bucket.size() >= MAX_PER_BUCKET) {
+            // Make room by dropping the worst address of the network, unless that is one that worked.
+            Entry worst = Collections.max(bucket, BEST_FIRST);
+            if (worst.lastSuccessMillis > 0 && worst.failures == 0)
+                return null;
+            bucket.remove(worst);
+            entries.remove(worst.address);
+        }
+        entry = new Entry(address);
+        bucket.add(entry);
+        entries.put(address, entry);
+        dirty = true;
+        return entry;
+    }
+
+    // Forgets the addresses there is no point trying any more, so they don't keep the room in their buckets.
+    @GuardedBy("lock")
+    private void evictTerribleLocked(long nowSecs) {
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (entry.isTerrible(nowSecs))
+                removeLocked(entry);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void removeLocked(Entry entry) {
+        entries.remove(entry.address);
+        long key = bucketKey(entry.address);
+        List<Entry> bucket = buckets.get(key);
+        bucket.remove(entry);
+        if (bucket.isEmpty())
+            buckets.remove(key);
+        dirty = true;
+    }
+
+    // Identifies the network an address belongs to: its /16 for IPv4 and /32 for IPv6.
+    private static long bucketKey(InetSocketAddress address) {
+        byte[] addr = address.getAddress().getAddress();
+        if (addr.length == 4)
+            return ((addr[0] & 0xFFL) << 8) | (addr[1] & 0xFFL);
+        return (1L << 32) | ((addr[0] & 0xFFL) << 24) | ((addr[1] & 0xFFL) << 16) | ((addr[2] & 0xFFL) << 8) |
+                (addr[3] & 0xFFL);
+    }
+}
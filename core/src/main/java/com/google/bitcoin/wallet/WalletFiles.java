@@ -18,12 +18,14 @@
 package com.google.bitcoin.wallet;
 
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletJournal;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.*;
@@ -36,6 +38,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
  * and disk IO on a background thread performance can be improved.
+ *
+ * When journaled, only the changes since the last save are appended to a {@link WalletJournal} next to the file, and
+ * the whole wallet is written on the background thread only once the journal asks for it.
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -47,6 +52,8 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    @Nullable private final WalletJournal journal;
+    private final Runnable compactor;
 
     private volatile Listener vListener;
 
@@ -67,6 +74,14 @@ public class WalletFiles {
     }
 
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
+        this(wallet, file, delay, delayTimeUnit, false);
+    }
+
+    /**
+     * Creates a WalletFiles that, if journaled is true, saves changes to a {@link WalletJournal} instead of rewriting
+     * the whole file each time. Such files must be read with {@link Wallet#loadFromFile(java.io.File)}.
+     */
+    public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit, boolean journaled) {
         final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
                 .setDaemon(true)
                 .setNameFormat("Wallet autosave thread")
@@ -85,6 +100,7 @@ public class WalletFiles {
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
+        this.journal = journaled ? new WalletJournal(wallet, file) : null;
 
         this.saver = new Callable<Void>() {
             @Override public Void call() throws Exception {
@@ -98,6 +114,25 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactor = new Runnable() {
+            @Override public void run() {
+                // Runs in an auto save thread.
+                try {
+                    checkNotNull(journal).compact();
+                    final Listener listener = vListener;
+                    if (listener != null)
+                        listener.onAfterAutoSave(WalletFiles.this.file);
+                } catch (IOException e) {
+                    log.error("Failed to compact wallet journal", e);
+                }
+            }
+        };
+    }
+
+    /** Returns the journal changes are saved to, or null if the whole wallet is written each time. */
+    @Nullable
+    public WalletJournal getJournal() {
+        return journal;
     }
 
     /**
@@ -117,6 +152,13 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         long now = System.currentTimeMillis();
+        if (journal != null) {
+            // The snapshot, if the journal wants one, is taken in the background so the caller isn't held up.
+            if (journal.append())
+                executor.execute(compactor);
+            log.info("Journal append completed in {}msec", System.currentTimeMillis() - now);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
@@ -143,5 +185,12 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Failed to close wallet journal", e);
+            }
+        }
     }
 }
@@ -20,6 +20,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
 
 
 /**
@@ -30,22 +33,54 @@ import com.google.common.base.Preconditions;
  * <p>To build secp256k1 for use with bitcoinj, run `./configure` and `make libjavasecp256k1.so` then copy
  * libjavasecp256k1.so to your system library path or point the JVM to the folder containing it with -Djava.library.path
  * </p>
+ *
+ * <p>The library is loaded and checked against a handful of known answers when this class is first used. Only if
+ * it gives the expected results is {@link #enabled} set, so a broken build of the library is ignored rather than
+ * trusted. Native code can be switched off entirely by running
+ * with <tt>-Dbitcoinj.secp256k1.disable=true</tt>, in which case {@link com.google.bitcoin.core.ECKey} falls back
+ * to its pure Java implementation.</p>
  */
 public class NativeSecp256k1 {
+    private static final Logger log = LoggerFactory.getLogger(NativeSecp256k1.class);
+
+    /** True if the native library was loaded and passed its self test. */
     public static boolean enabled = false;
+
+    // Big enough for a 32 byte hash, two length fields and a signature and pubkey of maximum size.
+    private static final int BUFFER_SIZE = 32 + 8 + 520 + 520;
+
+    private static ThreadLocal<ByteBuffer> nativeECDSABuffer = new ThreadLocal<ByteBuffer>();
+
     static {
-        try {
-            System.loadLibrary("javasecp256k1");
-        } catch (UnsatisfiedLinkError e) {
-            enabled = false;
+        if (!Boolean.getBoolean("bitcoinj.secp256k1.disable")) {
+            try {
+                System.loadLibrary("javasecp256k1");
+                enabled = selfTest();
+                if (enabled)
+                    log.info("Using native secp256k1 for ECDSA");
+                else
+                    log.warn("Native secp256k1 library failed its self test, using pure Java ECDSA");
+            } catch (UnsatisfiedLinkError e) {
+                enabled = false;
+            }
         }
     }
-    
-    private static ThreadLocal<ByteBuffer> nativeECDSABuffer = new ThreadLocal<ByteBuffer>();
+
+    private static ByteBuffer getBuffer(int size) {
+        ByteBuffer byteBuff = nativeECDSABuffer.get();
+        if (byteBuff == null || byteBuff.capacity() < size) {
+            byteBuff = ByteBuffer.allocateDirect(Math.max(size, BUFFER_SIZE));
+            byteBuff.order(ByteOrder.nativeOrder());
+            nativeECDSABuffer.set(byteBuff);
+        }
+        byteBuff.clear();
+        return byteBuff;
+    }
+
     /**
      * Verifies the given secp256k1 signature in native code.
      * Calling when enabled == false is undefined (probably library not loaded)
-     * 
+     *
      * @param data The data which was signed, must be exactly 32 bytes
      * @param signature The signature
      * @param pub The public key which did the signing
@@ -53,13 +88,7 @@ public class NativeSecp256k1 {
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
         Preconditions.checkArgument(data.length == 32 && signature.length <= 520 && pub.length <= 520);
 
-        ByteBuffer byteBuff = nativeECDSABuffer.get();
-        if (byteBuff == null) {
-            byteBuff = ByteBuffer.allocateDirect(32 + 8 + 520 + 520);
-            byteBuff.order(ByteOrder.nativeOrder());
-            nativeECDSABuffer.set(byteBuff);
-        }
-        byteBuff.rewind();
+        ByteBuffer byteBuff = getBuffer(BUFFER_SIZE);
         byteBuff.put(data);
         byteBuff.putInt(signature.length);
         byteBuff.putInt(pub.length);
@@ -68,6 +97,28 @@ public class NativeSecp256k1 {
         return secp256k1_ecdsa_verify(byteBuff) == 1;
     }
 
+    /**
+     * Checks the library against known answers. Returns false if it accepts a signature it must reject or the other
+     * way round.
+     */
+    private static boolean selfTest() {
+        try {
+            // Private key 1, so the public key is the generator point.
+            byte[] pub = Hex.decode("0479be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798" +
+                    "483ada7726a3c4655da4fbfc0e1108a8fd17b448a68554199c47d08ffb10d4b8");
+            byte[] sig = Hex.decode("3045022100bb50e2d89a4ed70663d080659fe0ad4b9bc3e06c17a227433966cb59ceee020d" +
+                    "02203ed2c5b4624945a598d91b2b4564b76c39073ae3ef9c2244cfd62d836ecbfe38");
+            byte[] hash = new byte[32];
+            hash[0] = 1;
+            byte[] otherHash = new byte[32];
+            otherHash[0] = 2;
+            return verify(hash, sig, pub) && !verify(otherHash, sig, pub);
+        } catch (UnsatisfiedLinkError e) {
+            log.warn("Native secp256k1 library is missing entry points: {}", e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * @param byteBuff signature format is byte[32] data,
      *        native-endian int signatureLength, native-endian int pubkeyLength,
@@ -27,6 +27,7 @@ import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.wallet.WalletTransaction;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -39,10 +40,7 @@ import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Date;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Map;
+import java.util.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -75,10 +73,23 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
 
     public static final String ORG_MULTIBIT_WALLET_PROTECT_2 = "org.multibit.walletProtect.2";
 
+    private boolean lazyHistory;
+
     public MultiBitWalletProtobufSerializer() {
         super();
     }
 
+    /**
+     * If this property is set to true, spent and dead transactions are not decoded when a wallet is read, but handed to
+     * it serialized and decoded when first used. The keys, the unspent and pending transactions and the transactions
+     * they spend from are read as usual, so the balance and spending work straight away. This makes large
+     * wallets with a long history much quicker to open and smaller in memory. See
+     * {@link Wallet#setUndecodedTransactions(java.util.Map, com.google.bitcoin.core.Wallet.TransactionDecoder)}.
+     */
+    public void setLazyHistory(boolean value) {
+        lazyHistory = value;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *     
@@ -112,44 +123,36 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : wallet.getDecodedWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
 
-        for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                                                         // .setLabel() TODO
-                                                            .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
-
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
-
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
-                }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        // History the wallet was read without and didn't need since is written back as it was, plus the blocks seen.
+        int depthChange = wallet.getUndecodedDepthChange();
+        BigInteger workChange = wallet.getUndecodedWorkChange();
+        for (byte[] record : wallet.getUndecodedTransactions()) {
+            Protos.Transaction.Builder txBuilder;
+            try {
+                txBuilder = Protos.Transaction.newBuilder().mergeFrom(record);
+            } catch (InvalidProtocolBufferException e) {
+                throw new RuntimeException(e);  // Cannot happen, it was read before.
+            }
+            if (depthChange != 0 && txBuilder.hasConfidence() &&
+                    txBuilder.getConfidence().getType() == Protos.TransactionConfidence.Type.BUILDING &&
+                    txBuilder.getConfidence().hasDepth()) {
+                Protos.TransactionConfidence.Builder confidence = txBuilder.getConfidenceBuilder();
+                confidence.setDepth(confidence.getDepth() + depthChange);
+                // Added up as a BigInteger and narrowed like writeConfidence() does for a decoded transaction,
+                // so the record ends up as it would have if the transaction had been decoded and written.
+                if (confidence.hasWorkDone())
+                    confidence.setWorkDone(BigInteger.valueOf(confidence.getWorkDone()).add(workChange).longValue());
             }
+            walletBuilder.addTransaction(txBuilder);
+        }
 
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
+        for (ECKey key : wallet.getKeys()) {
+            walletBuilder.addKey(makeKeyProto(key));
         }
 
         for (Script script : wallet.getWatchedScripts()) {
@@ -203,6 +206,42 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
+    /** Converts a key to its protocol buffer form, as stored in the wallet. */
+    public static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                                                     // .setLabel() TODO
+                                                        .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (WalletExtension extension : wallet.getExtensions().values()) {
             Protos.Extension.Builder proto = Protos.Extension.newBuilder();
@@ -213,7 +252,8 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
         }
     }
 
-    protected static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    /** Converts a wallet transaction to its protocol buffer form, as stored in the wallet. */
+    public static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
         
@@ -359,41 +399,49 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            return readWallet(parseToProto(input));
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        }
+    }
+
+    /**
+     * <p>Creates a wallet from the given protocol buffer. See {@link #readWallet(java.io.InputStream)} for details.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+
+        // Read the scrypt parameters that specify how encryption and
+        // decryption is performed.
+        EncryptionType walletEncryptionType = EncryptionType.UNENCRYPTED;
+
+        if (walletProto.hasEncryptionType()) {
+            walletEncryptionType = walletProto.getEncryptionType();
+        }
+        KeyCrypter keyCrypter = null;
 
+        if (walletEncryptionType == EncryptionType.ENCRYPTED_SCRYPT_AES) {
             // Read the scrypt parameters that specify how encryption and
             // decryption is performed.
-            EncryptionType walletEncryptionType = EncryptionType.UNENCRYPTED;
-
-            if (walletProto.hasEncryptionType()) {
-                walletEncryptionType = walletProto.getEncryptionType();
-            }
-            KeyCrypter keyCrypter = null;
-
-            if (walletEncryptionType == EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                // Read the scrypt parameters that specify how encryption and
-                // decryption is performed.
-                if (walletProto.hasEncryptionParameters()) {
-                    Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
-                    keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-                }
+            if (walletProto.hasEncryptionParameters()) {
+                Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
+                keyCrypter = new KeyCrypterScrypt(encryptionParameters);
             }
+        }
 
-            Wallet wallet;
-            if (keyCrypter != null) {
-              wallet = new Wallet(params, keyCrypter);
-            } else {
-              wallet = new Wallet(params);
-            }
-            readWallet(walletProto, wallet);
-            return wallet;
-        } catch (IOException e) {
-            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        Wallet wallet;
+        if (keyCrypter != null) {
+          wallet = new Wallet(params, keyCrypter);
+        } else {
+          wallet = new Wallet(params);
         }
+        readWallet(walletProto, wallet);
+        return wallet;
     }
 
     /**
@@ -455,13 +503,34 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
 
         wallet.addWatchedScripts(scripts);
 
+        List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+        Map<Sha256Hash, Wallet.UndecodedTransaction> undecoded = new HashMap<Sha256Hash, Wallet.UndecodedTransaction>();
+        if (lazyHistory) {
+            // Set aside the history, except what unspent and pending transactions spend from.
+            Set<ByteString> spentByActive = new HashSet<ByteString>();
+            for (Protos.Transaction txProto : txProtos) {
+                if (!isHistory(txProto)) {
+                    for (Protos.TransactionInput input : txProto.getTransactionInputList())
+                        spentByActive.add(input.getTransactionOutPointHash());
+                }
+            }
+            List<Protos.Transaction> eager = new ArrayList<Protos.Transaction>();
+            for (Protos.Transaction txProto : txProtos) {
+                if (isHistory(txProto) && !spentByActive.contains(txProto.getHash()))
+                    undecoded.put(byteStringToHash(txProto.getHash()), makeUndecoded(txProto));
+                else
+                    eager.add(txProto);
+            }
+            txProtos = eager;
+        }
+
         // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+        for (Protos.Transaction txProto : txProtos) {
             readTransaction(txProto, wallet.getParams());
         }
 
         // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+        for (Protos.Transaction txProto : txProtos) {
             WalletTransaction wtx = connectTransactionOutputs(txProto);
             wallet.addWalletTransaction(wtx);
         }
@@ -480,6 +549,11 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
         // Will default to zero if not present.
         wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
 
+        if (!undecoded.isEmpty()) {
+            wallet.setUndecodedTransactions(undecoded, new HistoryDecoder(wallet.getParams()));
+            log.info("Left {} transactions of the wallet history undecoded", undecoded.size());
+        }
+
         if (walletProto.hasKeyRotationTime()) {
             wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
         }
@@ -638,6 +712,55 @@ public class MultiBitWalletProtobufSerializer extends WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
+    // Pending transactions may still get dead, so only spent and dead transactions are history.
+    private static boolean isHistory(Protos.Transaction txProto) {
+        return txProto.getPool() == Protos.Transaction.Pool.SPENT || txProto.getPool() == Protos.Transaction.Pool.DEAD;
+    }
+
+    private static Wallet.UndecodedTransaction makeUndecoded(Protos.Transaction txProto) {
+        Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+        int height = confidenceProto.getType() == Protos.TransactionConfidence.Type.BUILDING &&
+                confidenceProto.hasAppearedAtHeight() ? confidenceProto.getAppearedAtHeight() : -1;
+        return new Wallet.UndecodedTransaction(txProto.toByteArray(), txProto.getUpdatedAt(), height,
+                txProto.getPool() == Protos.Transaction.Pool.DEAD);
+    }
+
+    // Decodes the transactions a wallet was read without, see setLazyHistory. Only used with the wallet locked.
+    private static class HistoryDecoder implements Wallet.TransactionDecoder {
+        private final NetworkParameters params;
+        private final MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+
+        HistoryDecoder(NetworkParameters params) {
+            this.params = params;
+        }
+
+        @Override
+        public WalletTransaction decode(byte[] record, Map<Sha256Hash, Transaction> decoded) throws UnreadableWalletException {
+            try {
+                Protos.Transaction txProto = Protos.Transaction.parseFrom(record);
+                // Put the spenders and the overriding transaction where connectTransactionOutputs looks for them.
+                for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+                    if (output.hasSpentByTransactionHash())
+                        putDecoded(output.getSpentByTransactionHash(), decoded);
+                }
+                if (txProto.hasConfidence() && txProto.getConfidence().hasOverridingTransaction())
+                    putDecoded(txProto.getConfidence().getOverridingTransaction(), decoded);
+                serializer.readTransaction(txProto, params);
+                return serializer.connectTransactionOutputs(txProto);
+            } catch (InvalidProtocolBufferException e) {
+                throw new UnreadableWalletException("Could not parse transaction record", e);
+            } finally {
+                serializer.txMap.clear();
+            }
+        }
+
+        private void putDecoded(ByteString hash, Map<Sha256Hash, Transaction> decoded) {
+            Transaction tx = decoded.get(byteStringToHash(hash));
+            if (tx != null)
+                serializer.txMap.put(hash, tx);
+        }
+    }
+
     private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
@@ -249,6 +249,26 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testFrame() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Transaction tx = MainNetParams.get().getGenesisBlock().getTransactions().get(0);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        FramedMessage framed = bs.frame(tx);
+        assertSame(tx, framed.getMessage());
+        assertEquals(MainNetParams.get().getPacketMagic(), framed.getPacketMagic());
+        assertEquals(bos.size(), framed.length());
+        assertArrayEquals(bos.toByteArray(), framed.getBytes());
+
+        // The bytes handed out can't be used to change the framed message.
+        ByteBuffer buffer = framed.asByteBuffer();
+        assertTrue(buffer.isReadOnly());
+        Transaction parsed = (Transaction) bs.deserialize(buffer);
+        assertEquals(tx.getHash(), parsed.getHash());
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockLocatorTest {
+    private NetworkParameters params;
+    private MemoryBlockStore store;
+    private BlockLocator blockLocator;
+    private StoredBlock genesis;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        store = new MemoryBlockStore(params);
+        blockLocator = new BlockLocator(params, store);
+        genesis = store.getChainHead();
+    }
+
+    // Adds count headers on top of prev and returns them, without solving or verifying them.
+    private List<StoredBlock> extend(StoredBlock prev, int count, long nonce) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < count; i++) {
+            Block header = params.getGenesisBlock().cloneAsHeader();
+            header.setPrevBlockHash(prev.getHeader().getHash());
+            header.setNonce(nonce);
+            prev = new StoredBlock(header, BigInteger.ONE, prev.getHeight() + 1);
+            store.put(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void shortChain() throws Exception {
+        List<StoredBlock> chain = extend(genesis, 3, 1);
+        List<Sha256Hash> locator = blockLocator.getLocator(chain.get(2));
+        assertEquals(4, locator.size());
+        assertEquals(chain.get(2).getHeader().getHash(), locator.get(0));
+        assertEquals(chain.get(1).getHeader().getHash(), locator.get(1));
+        assertEquals(chain.get(0).getHeader().getHash(), locator.get(2));
+        assertEquals(params.getGenesisBlock().getHash(), locator.get(3));
+    }
+
+    @Test
+    public void exponential() throws Exception {
+        List<StoredBlock> chain = extend(genesis, 5000, 1);
+        StoredBlock head = chain.get(chain.size() - 1);
+        List<Sha256Hash> locator = blockLocator.getLocator(head);
+        // Ten dense entries, then the steps double, so the locator stays short.
+        assertTrue(locator.size() < 40);
+        assertEquals(head.getHeader().getHash(), locator.get(0));
+        for (int i = 0; i < 10; i++)
+            assertEquals(chain.get(chain.size() - 1 - i).getHeader().getHash(), locator.get(i));
+        assertEquals(params.getGenesisBlock().getHash(), locator.get(locator.size() - 1));
+        // Every entry is on the chain, in descending order of height.
+        int lastIndex = Integer.MAX_VALUE;
+        for (Sha256Hash hash : locator.subList(0, locator.size() - 1)) {
+            int index = indexOf(chain, hash);
+            assertTrue(index >= 0 && index < lastIndex);
+            lastIndex = index;
+        }
+        // Extending the chain keeps using the index.
+        List<StoredBlock> more = extend(head, 5, 1);
+        locator = blockLocator.getLocator(more.get(4));
+        assertEquals(more.get(4).getHeader().getHash(), locator.get(0));
+        assertEquals(head.getHeader().getHash(), locator.get(5));
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        List<StoredBlock> chain = extend(genesis, 3000, 1);
+        blockLocator.getLocator(chain.get(chain.size() - 1));
+        // A different chain splits off at height 2000 and becomes the best one.
+        StoredBlock split = chain.get(1999);
+        List<StoredBlock> fork = extend(split, 1100, 2);
+        List<Sha256Hash> locator = blockLocator.getLocator(fork.get(fork.size() - 1));
+        boolean sawSplit = false;
+        for (Sha256Hash hash : locator) {
+            int index = indexOf(chain, hash);
+            // Blocks of the old chain above the split must not appear.
+            assertTrue(index < 2000);
+            sawSplit |= index >= 0;
+        }
+        assertTrue(sawSplit);
+        assertEquals(fork.get(fork.size() - 1).getHeader().getHash(), locator.get(0));
+    }
+
+    private static int indexOf(List<StoredBlock> chain, Sha256Hash hash) {
+        for (int i = 0; i < chain.size(); i++) {
+            if (chain.get(i).getHeader().getHash().equals(hash))
+                return i;
+        }
+        return -1;
+    }
+}
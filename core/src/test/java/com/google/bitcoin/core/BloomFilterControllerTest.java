@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterControllerTest {
+    private static final double TARGET = 0.0005;
+
+    private BlockChain chain;
+    private BloomFilterController controller;
+    private final List<BloomFilterController.Reason> reasons = new ArrayList<BloomFilterController.Reason>();
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        controller = new BloomFilterController();
+        controller.addListener(new BloomFilterController.Listener() {
+            @Override
+            public void onFilterUpdate(BloomFilterController controller, BloomFilterController.Action action,
+                                       BloomFilterController.Reason reason, double falsePositiveRate,
+                                       double falsePositiveBytesPerSec) {
+                reasons.add(reason);
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    // Makes the estimated false positive rate jump well above the threshold.
+    private void degrade() {
+        chain.resetFalsePositiveEstimate();
+        chain.trackFalsePositives(20);
+        assertTrue(chain.getFalsePositiveRate() > TARGET * PeerGroup.MAX_FP_RATE_INCREASE);
+    }
+
+    @Test
+    public void resendThenRetweak() throws Exception {
+        assertNull(controller.onBlock(chain, TARGET));
+        degrade();
+        assertEquals(BloomFilterController.Action.RESEND, controller.onBlock(chain, TARGET));
+        assertEquals(BloomFilterController.Reason.FALSE_POSITIVE_RATE, reasons.get(0));
+        // The new filter goes bad straight away. It's given some blocks to prove itself, then the tweak is changed.
+        degrade();
+        for (int i = 1; i < BloomFilterController.MIN_BLOCKS_BETWEEN_UPDATES; i++)
+            assertNull(controller.onBlock(chain, TARGET));
+        assertEquals(BloomFilterController.Action.RETWEAK, controller.onBlock(chain, TARGET));
+        assertEquals(1, controller.getResendCount());
+        assertEquals(1, controller.getRetweakCount());
+        assertEquals(2, reasons.size());
+    }
+
+    @Test
+    public void slowDegradation() throws Exception {
+        degrade();
+        assertEquals(BloomFilterController.Action.RESEND, controller.onBlock(chain, TARGET));
+        chain.resetFalsePositiveEstimate();
+        for (int i = 0; i < BloomFilterController.RETWEAK_BLOCKS; i++)
+            assertNull(controller.onBlock(chain, TARGET));
+        // A filter that lasted a long time is just resent.
+        degrade();
+        assertEquals(BloomFilterController.Action.RESEND, controller.onBlock(chain, TARGET));
+        // As is one that degrades after a filter was sent for other reasons, eg new keys.
+        controller.onFilterSent();
+        degrade();
+        for (int i = 1; i < BloomFilterController.MIN_BLOCKS_BETWEEN_UPDATES; i++)
+            assertNull(controller.onBlock(chain, TARGET));
+        assertEquals(BloomFilterController.Action.RESEND, controller.onBlock(chain, TARGET));
+        assertEquals(3, controller.getResendCount());
+        assertEquals(0, controller.getRetweakCount());
+    }
+}
@@ -74,4 +74,29 @@ public class BloomFilterTest {
         // Value generated by the reference client
         assertTrue(Arrays.equals(Hex.decode("082ae5edc8e51d4a03080000000000000002"), filter.bitcoinSerialize()));
     }
+
+    @Test
+    public void outPointsAndRanges() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        // The allocation free entry points must set exactly the same bits as inserting the serialized data.
+        Sha256Hash txHash = Sha256Hash.create(new byte[] {1, 2, 3});
+        byte[] outPoint = new TransactionOutPoint(params, 0xfedcba98L, txHash).bitcoinSerialize();
+        BloomFilter f1 = new BloomFilter(10, 0.001, 5);
+        BloomFilter f2 = new BloomFilter(10, 0.001, 5);
+        f1.insert(outPoint);
+        f2.insertOutPoint(txHash, 0xfedcba98L);
+        assertEquals(f1, f2);
+        assertTrue(f1.containsOutPoint(txHash, 0xfedcba98L));
+        assertFalse(f1.containsOutPoint(txHash, 0));
+
+        byte[] element = Hex.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee");
+        byte[] padded = new byte[element.length + 7];
+        System.arraycopy(element, 0, padded, 3, element.length);
+        f1.insert(element);
+        f2.insert(padded, 3, element.length);
+        assertEquals(f1, f2);
+        assertTrue(f2.contains(element));
+        assertTrue(f1.contains(padded, 3, element.length));
+        assertFalse(f1.contains(padded, 2, element.length));
+    }
 }
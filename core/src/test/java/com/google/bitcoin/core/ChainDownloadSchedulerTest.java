@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
+import static com.google.bitcoin.utils.TestUtils.makeSolvedTestBlock;
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class ChainDownloadSchedulerTest extends TestWithNetworkConnections {
+    private Block b2, b3, b4, b5;
+    private final SettableFuture<Boolean> finished = SettableFuture.create();
+    private final ChainDownloadScheduler.Listener listener = new ChainDownloadScheduler.Listener() {
+        @Override
+        public void onChainDownloadFinished(ChainDownloadScheduler scheduler, boolean completed) {
+            finished.set(completed);
+        }
+    };
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.NIO_CLIENT},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT});
+    }
+
+    public ChainDownloadSchedulerTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock();
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        b2 = makeSolvedTestBlock(b1);
+        b3 = makeSolvedTestBlock(b2);
+        b4 = makeSolvedTestBlock(b3);
+        b5 = makeSolvedTestBlock(b4);
+    }
+
+    private InboundMessageQueuer connectPeer(int bestHeight) throws Exception {
+        VersionMessage ver = new VersionMessage(unitTestParams, 1);
+        Peer peer = new Peer(unitTestParams, ver, new PeerAddress(new InetSocketAddress("127.0.0.1", 4000)),
+                blockChain, new MemoryPool());
+        VersionMessage peerVersion = new VersionMessage(unitTestParams, bestHeight);
+        peerVersion.clientVersion = 70001;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK;
+        return connect(peer, peerVersion);
+    }
+
+    private void sendHeaders(InboundMessageQueuer p) throws Exception {
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p);
+        assertEquals(blockChain.getChainHead().getHeader().getHash(), getheaders.getLocator().get(0));
+        inbound(p, new HeadersMessage(unitTestParams, b2.cloneAsHeader(), b3.cloneAsHeader(), b4.cloneAsHeader(),
+                b5.cloneAsHeader()));
+        pingAndWait(p);
+    }
+
+    private static void assertRequested(Message m, Block... blocks) {
+        List<InventoryItem> items = ((GetDataMessage) m).getItems();
+        assertEquals(blocks.length, items.size());
+        for (int i = 0; i < blocks.length; i++) {
+            assertEquals(InventoryItem.Type.Block, items.get(i).type);
+            assertEquals(blocks[i].getHash(), items.get(i).hash);
+        }
+    }
+
+    @Test
+    public void parallelDownload() throws Exception {
+        // The download peer only has blocks up to height 3, so the other peer is asked for the rest.
+        InboundMessageQueuer p1 = connectPeer(3);
+        InboundMessageQueuer p2 = connectPeer(5);
+        ChainDownloadScheduler scheduler = new ChainDownloadScheduler(unitTestParams, blockChain, 2, false, 0, listener);
+        scheduler.start(p1.peer, Arrays.asList(p1.peer, p2.peer));
+        sendHeaders(p1);
+        assertRequested(outbound(p1), b2, b3);
+        assertRequested(outbound(p2), b4, b5);
+        // Blocks that arrive early are held back until the ones before them are connected.
+        inbound(p2, b5);
+        inbound(p2, b4);
+        pingAndWait(p2);
+        assertEquals(1, blockChain.getBestChainHeight());
+        inbound(p1, b3);
+        inbound(p1, b2);
+        pingAndWait(p1);
+        assertTrue(finished.get());
+        assertEquals(b5.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNull(p1.peer.getChainDownload());
+        assertNull(p2.peer.getChainDownload());
+    }
+
+    @Test
+    public void stalledPeer() throws Exception {
+        // Work given to a peer which stops answering is moved to another peer.
+        InboundMessageQueuer p1 = connectPeer(5);
+        InboundMessageQueuer p2 = connectPeer(5);
+        ChainDownloadScheduler scheduler = new ChainDownloadScheduler(unitTestParams, blockChain, 2, false, 0, listener);
+        scheduler.start(p1.peer, Arrays.asList(p1.peer, p2.peer));
+        sendHeaders(p1);
+        assertRequested(outbound(p1), b2, b3, b4, b5);
+        assertNull(outbound(p2));
+        inbound(p1, b2);
+        pingAndWait(p1);
+        assertEquals(2, blockChain.getBestChainHeight());
+        Utils.rollMockClockMillis(ChainDownloadScheduler.STALL_TIMEOUT_MILLIS + 1000);
+        scheduler.checkForStalls();
+        assertRequested(outbound(p2), b3, b4, b5);
+        inbound(p2, b3);
+        inbound(p2, b4);
+        inbound(p2, b5);
+        pingAndWait(p2);
+        assertTrue(finished.get());
+        assertEquals(5, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void notConnecting() throws Exception {
+        // Headers that don't follow on from the chain make the scheduler give up.
+        InboundMessageQueuer p1 = connectPeer(5);
+        ChainDownloadScheduler scheduler = new ChainDownloadScheduler(unitTestParams, blockChain, 2, false, 0, listener);
+        scheduler.start(p1.peer, Arrays.asList(p1.peer));
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(unitTestParams, b3.cloneAsHeader()));
+        pingAndWait(p1);
+        assertFalse(finished.get());
+        assertTrue(scheduler.isFinished());
+    }
+}
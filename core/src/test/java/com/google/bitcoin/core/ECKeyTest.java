@@ -115,6 +115,39 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void testBatchVerify() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        Sha256Hash hash1 = Sha256Hash.create(new byte[]{1});
+        Sha256Hash hash2 = Sha256Hash.create(new byte[]{2});
+        byte[] sig1 = key1.sign(hash1).encodeToDER();
+        byte[] sig2 = key2.sign(hash2).encodeToDER();
+        byte[][] data = {hash1.getBytes(), hash2.getBytes(), hash2.getBytes(), hash1.getBytes()};
+        byte[][] sigs = {sig1, sig2, sig1, new byte[]{0x30, 0x00}};
+        byte[][] pubs = {key1.getPubKey(), key2.getPubKey(), key1.getPubKey(), key1.getPubKey()};
+        boolean[] results = ECKey.verifyBatch(data, sigs, pubs);
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+        // Wrong hash for the signature, and a malformed signature only fails its own entry.
+        assertFalse(results[2]);
+        assertFalse(results[3]);
+    }
+
+    @Test
+    public void testCrossCheckWithoutNative() throws Exception {
+        // Cross checking only has an effect when the native library is in use, otherwise results are unchanged.
+        ECKey.CROSS_CHECK_NATIVE = true;
+        try {
+            ECKey key = new ECKey(new BigInteger(1, Hex.decode("180cb41c7c600be951b5d3d0a7334acc7506173875834f7a6c4c786a28fcbb19")));
+            ECKey.ECDSASignature sig = key.sign(Sha256Hash.ZERO_HASH);
+            assertTrue(key.verify(Sha256Hash.ZERO_HASH, sig));
+            assertFalse(key.verify(Sha256Hash.create(new byte[]{1}), sig));
+        } finally {
+            ECKey.CROSS_CHECK_NATIVE = false;
+        }
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = Hex.decode(
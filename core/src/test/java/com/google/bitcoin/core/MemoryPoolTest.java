@@ -25,6 +25,7 @@ import org.junit.Test;
 import java.net.InetAddress;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class MemoryPoolTest {
@@ -75,4 +76,53 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void rememberedAfterEviction() throws Exception {
+        // A pool that only tracks one transaction still knows it saw the first hash after the second pushed it out.
+        MemoryPool pool = new MemoryPool(1);
+        pool.seen(tx1.getHash(), address1);
+        Sha256Hash other = Sha256Hash.create(new byte[] { 1 });
+        pool.seen(other, address1);
+        assertEquals(0, pool.numBroadcastPeers(tx1.getHash()));
+        assertEquals(1, pool.numBroadcastPeers(other));
+        assertTrue(pool.maybeWasSeen(tx1.getHash()));
+        assertFalse(pool.maybeWasSeen(Sha256Hash.create(new byte[] { 2 })));
+    }
+
+    @Test
+    public void seenFilterRollsOver() throws Exception {
+        MemoryPool.SeenFilter filter = new MemoryPool.SeenFilter(200);
+        Sha256Hash first = Sha256Hash.create(new byte[] { 0 });
+        filter.add(first);
+        // Still remembered after the current generation fills up once, forgotten after it fills up again.
+        for (int i = 1; i < 100; i++)
+            filter.add(Sha256Hash.create(new byte[] { 1, (byte) i }));
+        assertTrue(filter.mightContain(first));
+        for (int i = 0; i < 100; i++)
+            filter.add(Sha256Hash.create(new byte[] { 2, (byte) i }));
+        assertFalse(filter.mightContain(first));
+        assertTrue(filter.mightContain(Sha256Hash.create(new byte[] { 2, 99 })));
+    }
+
+    @Test
+    public void seenFilterFalsePositives() throws Exception {
+        // A false positive stops a transaction from ever being downloaded, so with both generations full it must be
+        // rare enough that a couple of hundred thousand lookups of unseen hashes hit at most a couple of times.
+        MemoryPool.SeenFilter filter = new MemoryPool.SeenFilter(20000);
+        for (int i = 0; i < 19999; i++)
+            filter.add(hashOf(i));
+        int falsePositives = 0;
+        for (int i = 0; i < 200000; i++) {
+            if (filter.mightContain(hashOf(0x10000000 + i)))
+                falsePositives++;
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives <= 2);
+    }
+
+    private static Sha256Hash hashOf(int i) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayBE(i, bytes, 0);
+        return Sha256Hash.create(bytes);
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.net.discovery.PeerDatabase;
 import com.google.bitcoin.net.discovery.PeerDiscovery;
 import com.google.bitcoin.net.discovery.PeerDiscoveryException;
 import com.google.bitcoin.params.UnitTestParams;
@@ -418,6 +419,25 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void stalledDownloadPeer() throws Exception {
+        // Once turned on, a download peer that doesn't send us anything is replaced when the stall period is over.
+        peerGroup.startAndWait();
+        peerGroup.setStallThreshold(1, 1000);
+        VersionMessage ver = new VersionMessage(params, 100);
+        ver.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        Peer a = connectPeer(1, ver).peer;
+        Peer b = connectPeer(2, ver).peer;
+        assertEquals(a, peerGroup.getDownloadPeer());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener());
+        for (int i = 0; i < 50 && peerGroup.getDownloadPeer() == a; i++)
+            Thread.sleep(100);
+        assertEquals(b, peerGroup.getDownloadPeer());
+        assertEquals(0.0, a.getDownloadBytesPerSec(), 0.0);
+        peerGroup.stopAndWait();
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         peerGroup.startAndWait();
@@ -507,6 +527,45 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(2001, disconnectedPeers.take().getAddress().getPort());
     }
 
+    @Test
+    public void peerDatabase() throws Exception {
+        long nowSecs = Utils.currentTimeMillis() / 1000;
+        PeerDatabase database = new PeerDatabase();
+        InetSocketAddress untried = new InetSocketAddress("127.0.0.1", 2000);
+        InetSocketAddress good = new InetSocketAddress("127.0.0.1", 2002);
+        database.addAddress(untried, nowSecs);
+        database.markSuccess(good);
+        peerGroup.addEventListener(listener);
+        peerGroup.setPeerDatabase(database);
+        peerGroup.setMaxConnections(1);
+        Utils.setMockSleep(true);
+        peerGroup.startAndWait();
+
+        // The address that worked before is tried first, although it sorts after the other one by port.
+        InboundMessageQueuer p1 = handleConnectToPeer(2);
+        assertEquals(2002, connectedPeers.take().getAddress().getPort());
+
+        // Addresses the peer announces are recorded.
+        InetSocketAddress announced = new InetSocketAddress("10.0.0.1", 8333);
+        PeerAddress announcedAddress = new PeerAddress(announced);
+        announcedAddress.setTime(nowSecs - 1000);
+        AddressMessage addr = new AddressMessage(params, new byte[] {0});
+        addr.addAddress(announcedAddress);
+        inbound(p1, addr);
+        pingAndWait(p1);
+        assertEquals(3, database.size());
+
+        // The next attempt goes to the untried address, which fails and so is recorded as a failure.
+        stopPeerServer(0);
+        stopPeerServer(2);
+        assertEquals(2002, disconnectedPeers.take().getAddress().getPort());
+        Utils.passMockSleep();
+        assertEquals(2000, disconnectedPeers.take().getAddress().getPort());
+        // Without that failure the untried address, announced more recently, would come before the announced one.
+        assertEquals(Arrays.asList(good, announced, untried),
+                Arrays.asList(database.getPeers(5, TimeUnit.SECONDS)));
+    }
+
     @Test
     public void testBloomOnP2Pubkey() throws Exception {
         // Cover bug 513. When a relevant transaction with a p2pubkey output is found, the Bloom filter should be
@@ -540,17 +599,44 @@ public class PeerGroupTest extends TestWithPeerGroup {
     }
 
     @Test
-    public void testBloomResendOnNewKey() throws Exception {
-        // Check that when we add a new key to the wallet, the Bloom filter is re-calculated and re-sent.
+    public void testBloomAddOnNewKey() throws Exception {
+        // Check that when we add a new key to the wallet, it is sent to peers with filteradd rather than a whole new
+        // Bloom filter, while new peers get a filter including it.
         peerGroup.startAndWait();
         // Create a couple of peers.
         InboundMessageQueuer p1 = connectPeer(1);
         InboundMessageQueuer p2 = connectPeer(2);
         BloomFilter f1 = p1.lastReceivedFilter;
-        BloomFilter f2 = p2.lastReceivedFilter;
         final ECKey key = new ECKey();
         wallet.addKey(key);
         peerGroup.waitForJobQueue();
+        for (InboundMessageQueuer p : new InboundMessageQueuer[] {p1, p2}) {
+            assertArrayEquals(key.getPubKey(), ((FilterAddMessage) outbound(p)).getData());
+            assertArrayEquals(key.getPubKeyHash(), ((FilterAddMessage) outbound(p)).getData());
+            assertTrue(outbound(p) instanceof MemoryPoolMessage);
+            assertNull(outbound(p));
+        }
+        assertFalse(f1.contains(key.getPubKey()));
+        assertTrue(p1.peer.getBloomFilter().contains(key.getPubKey()));
+        InboundMessageQueuer p3 = connectPeer(3);
+        assertTrue(p3.lastReceivedFilter.contains(key.getPubKey()));
+        assertTrue(p3.lastReceivedFilter.contains(key.getPubKeyHash()));
+    }
+
+    @Test
+    public void testBloomResendOnManyNewKeys() throws Exception {
+        // Check that when so many keys are added the filter would match too much, it is re-calculated and re-sent.
+        peerGroup.startAndWait();
+        // Create a couple of peers.
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        BloomFilter f1 = p1.lastReceivedFilter;
+        BloomFilter f2 = p2.lastReceivedFilter;
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 200; i++)
+            keys.add(new ECKey());
+        wallet.addKeys(keys);
+        peerGroup.waitForJobQueue();
         BloomFilter f3 = (BloomFilter) outbound(p1);
         BloomFilter f4 = (BloomFilter) outbound(p2);
         assertTrue(outbound(p1) instanceof MemoryPoolMessage);
@@ -558,9 +644,10 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNotEquals(f1, f3);
         assertNotEquals(f2, f4);
         assertEquals(f3, f4);
-        assertTrue(f3.contains(key.getPubKey()));
-        assertTrue(f3.contains(key.getPubKeyHash()));
-        assertFalse(f1.contains(key.getPubKey()));
-        assertFalse(f1.contains(key.getPubKeyHash()));
+        for (ECKey key : keys) {
+            assertTrue(f3.contains(key.getPubKey()));
+            assertTrue(f3.contains(key.getPubKeyHash()));
+        }
+        assertTrue(f3.getFalsePositiveRate(2 * keys.size()) < PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
     }
 }
@@ -491,6 +491,35 @@ public class PeerTest extends TestWithNetworkConnections {
         closePeer(peer);
     }
 
+    @Test
+    public void fastCatchupPipelined() throws Exception {
+        // A full batch of headers that predates the fast catchup time makes us ask for the next one before processing it.
+        VersionMessage peerVersion = new VersionMessage(unitTestParams, HeadersMessage.MAX_HEADERS * 2);
+        peerVersion.clientVersion = 70001;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK;
+        writeTarget = connect(peer, peerVersion);
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Block[] headers = new Block[HeadersMessage.MAX_HEADERS];
+        Block prev = b1;
+        for (int i = 0; i < headers.length; i++) {
+            prev = makeSolvedTestBlock(prev);
+            headers[i] = prev.cloneAsHeader();
+        }
+        peer.setDownloadParameters(Utils.currentTimeMillis() / 1000 + 60 * 60, false);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(unitTestParams, headers));
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(writeTarget);
+        assertEquals(prev.getHash(), getheaders.getLocator().get(0));
+        assertEquals(b1.getHash(), getheaders.getLocator().get(1));
+        pingAndWait(writeTarget);
+        assertEquals(HeadersMessage.MAX_HEADERS + 1, blockChain.getBestChainHeight());
+        // No second request once the batch has been processed.
+        assertNull(outbound(writeTarget));
+        closePeer(peer);
+    }
+
     @Test
     public void pingPong() throws Exception {
         connect();
@@ -522,6 +551,19 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(7250, peer.getPingTime());
     }
 
+    @Test
+    public void messageExecutor() throws Exception {
+        // Messages processed on a separate executor are still handled one at a time and in order, even when reading
+        // from the socket has to be paused after every message.
+        peer.setMessageExecutor(Threading.THREAD_POOL, 1);
+        connect();
+        for (int i = 0; i < 10; i++)
+            inbound(writeTarget, new Ping(i));
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, ((Pong) outbound(writeTarget)).getNonce());
+        closePeer(peer);
+    }
+
     @Test
     public void recursiveDownloadNew() throws Exception {
         recursiveDownload(true);
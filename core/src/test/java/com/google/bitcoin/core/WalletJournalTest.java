@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.TestWithWallet;
+import com.google.bitcoin.wallet.WalletTransaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+
+import static com.google.bitcoin.core.Utils.CENT;
+import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private WalletJournal journal;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("journal", ".wallet");
+        file.deleteOnExit();
+        WalletJournal.getJournalFile(file).deleteOnExit();
+        journal = new WalletJournal(wallet, file);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        journal.close();
+        super.tearDown();
+    }
+
+    private void addBlock() {
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+    }
+
+    @Test
+    public void replay() throws Exception {
+        assertFalse(journal.append());  // Takes the first snapshot.
+        long snapshotLength = file.length();
+
+        Transaction tx = sendMoneyToWallet(createFakeTx(params, CENT, myAddress), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        assertFalse(journal.append());
+        addBlock();
+        addBlock();
+        assertFalse(journal.append());
+        Transaction spend = wallet.sendCoinsOffline(Wallet.SendRequest.to(new ECKey().toAddress(params), CENT.divide(BigInteger.valueOf(2))));
+        addBlock();
+        assertFalse(journal.append());
+        // Only the journal grew.
+        assertEquals(snapshotLength, file.length());
+        assertTrue(journal.getJournalLength() > 0);
+
+        Wallet wallet2 = Wallet.loadFromFile(file);
+        assertEquals(wallet.getLastBlockSeenHash(), wallet2.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), wallet2.getLastBlockSeenHeight());
+        assertTrue(wallet2.isPubKeyMine(key.getPubKey()));
+        assertEquals(2, wallet2.getKeychainSize());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet2.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet2.getPoolSize(WalletTransaction.Pool.SPENT));
+        assertEquals(1, wallet2.getPoolSize(WalletTransaction.Pool.PENDING));
+        Transaction tx2 = wallet2.getTransaction(tx.getHash());
+        assertEquals(4, tx.getConfidence().getDepthInBlocks());
+        assertEquals(4, tx2.getConfidence().getDepthInBlocks());
+        assertNotNull(wallet2.getTransaction(spend.getHash()));
+
+        // Compacting folds the journal into the snapshot.
+        journal.compact();
+        assertEquals(0, journal.getJournalLength());
+        addBlock();
+        assertFalse(journal.append());
+        Wallet wallet3 = Wallet.loadFromFile(file);
+        assertEquals(5, wallet3.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getLastBlockSeenHeight(), wallet3.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void snapshotNeeded() throws Exception {
+        journal.append();
+        wallet.addKey(new ECKey());
+        assertFalse(journal.append());
+        // Removing a key can't be journaled.
+        wallet.removeKey(wallet.getKeys().get(1));
+        assertTrue(journal.append());
+        journal.compact();
+        assertEquals(1, Wallet.loadFromFile(file).getKeychainSize());
+
+        journal.setCompactionThreshold(1);
+        wallet.addKey(new ECKey());
+        assertTrue(journal.append());
+    }
+
+    @Test
+    public void damagedJournal() throws Exception {
+        journal.append();
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        wallet.addKey(key1);
+        journal.append();
+        wallet.addKey(key2);
+        journal.append();
+        // A crash in the middle of writing the last record.
+        RandomAccessFile raf = new RandomAccessFile(WalletJournal.getJournalFile(file), "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        Wallet wallet2 = Wallet.loadFromFile(file);
+        assertTrue(wallet2.isPubKeyMine(key1.getPubKey()));
+        assertFalse(wallet2.isPubKeyMine(key2.getPubKey()));
+
+        // A journal belonging to another snapshot is ignored.
+        wallet.saveToFile(file);
+        assertEquals(3, Wallet.loadFromFile(file).getKeychainSize());
+    }
+
+    @Test
+    public void failedAppend() throws Exception {
+        journal.append();
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        wallet.addKey(key1);
+        // Writing to the journal fails, so the changes go into a new snapshot instead of being lost.
+        journal.out.close();
+        assertFalse(journal.append());
+        assertEquals(0, journal.getJournalLength());
+        assertTrue(Wallet.loadFromFile(file).isPubKeyMine(key1.getPubKey()));
+        // And the journal of the new snapshot is used from then on.
+        wallet.addKey(key2);
+        assertFalse(journal.append());
+        assertTrue(journal.getJournalLength() > 0);
+        Wallet wallet2 = Wallet.loadFromFile(file);
+        assertTrue(wallet2.isPubKeyMine(key1.getPubKey()));
+        assertTrue(wallet2.isPubKeyMine(key2.getPubKey()));
+    }
+}
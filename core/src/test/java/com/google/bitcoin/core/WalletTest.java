@@ -28,6 +28,7 @@ import com.google.bitcoin.utils.MockTransactionBroadcaster;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.TestWithWallet;
 import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.AllowUnconfirmedCoinSelector;
 import com.google.bitcoin.wallet.DefaultCoinSelector;
 import com.google.bitcoin.wallet.KeyTimeCoinSelector;
 import com.google.bitcoin.wallet.RiskAnalysis;
@@ -51,6 +52,10 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.bitcoin.core.Utils.*;
@@ -114,6 +119,31 @@ public class WalletTest extends TestWithWallet {
         basicSpendingCommon(encryptedWallet, myEncryptedAddress, new ECKey().toAddress(params), true);
     }
 
+    @Test
+    public void signManyInputsInParallel() throws Exception {
+        // Coins sent to two encrypted keys, to both addresses and raw pubkeys, all spent by one transaction.
+        ECKey[] keys = { encryptedWallet.getKeys().get(0), encryptedWallet.addNewEncryptedKey(keyCrypter, aesKey) };
+        for (int i = 0; i < 12; i++) {
+            ECKey key = keys[(i / 2) % 2];
+            if (i % 2 == 0)
+                sendMoneyToWallet(encryptedWallet, Utils.CENT, key.toAddress(params), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+            else
+                sendMoneyToWallet(encryptedWallet, Utils.CENT, key, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        }
+        Wallet.SendRequest req = Wallet.SendRequest.emptyWallet(new ECKey().toAddress(params));
+        req.aesKey = aesKey;
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        req.signingExecutor = executor;
+        try {
+            encryptedWallet.completeTx(req);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(12, req.tx.getInputs().size());
+        for (TransactionInput input : req.tx.getInputs())
+            input.verify();
+    }
+
     static class TestRiskAnalysis implements RiskAnalysis {
         private final boolean risky;
 
@@ -956,6 +986,145 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void pagedTransactions() throws Exception {
+        // Transactions received in the same second are all returned once when reading history page by page.
+        Utils.setMockClock();
+        List<Transaction> received = new ArrayList<Transaction>();
+        for (int i = 0; i < 5; i++)
+            received.add(sendMoneyToWallet(Utils.toNanoCoins(0, i + 1), AbstractBlockChain.NewBlockType.BEST_CHAIN));
+        List<Transaction> all = wallet.getTransactions(null, 10, false);
+        assertEquals(5, all.size());
+        assertEquals(new HashSet<Transaction>(received), new HashSet<Transaction>(all));
+        List<Transaction> paged = new ArrayList<Transaction>(wallet.getTransactions(null, 2, false));
+        while (true) {
+            List<Transaction> page = wallet.getTransactionsAfter(paged.get(paged.size() - 1), 2, false);
+            if (page.isEmpty())
+                break;
+            paged.addAll(page);
+        }
+        assertEquals(all, paged);
+        // Newer transactions come first.
+        Utils.rollMockClock(60);
+        Transaction newest = sendMoneyToWallet(Utils.toNanoCoins(0, 10), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(newest, wallet.getTransactions(null, 1, false).get(0));
+        assertEquals(all.subList(0, 2), wallet.getTransactions(newest.getUpdateTime(), 2, false));
+
+        // By height, highest block first.
+        List<Transaction> byHeight = wallet.getTransactionsByHeight(Integer.MAX_VALUE, 3);
+        assertEquals(Arrays.asList(newest, received.get(4), received.get(3)), byHeight);
+        int height = received.get(3).getConfidence().getAppearedAtChainHeight();
+        assertEquals(Arrays.asList(received.get(2), received.get(1), received.get(0)),
+                wallet.getTransactionsByHeight(height, 10));
+
+        // Per address history, including spends.
+        ECKey key2 = new ECKey();
+        wallet.addKey(key2);
+        Transaction toKey2 = sendMoneyToWallet(wallet, Utils.CENT, key2.toAddress(params), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Arrays.asList(toKey2), wallet.getTransactions(key2.toAddress(params), null, 10, false));
+        Utils.rollMockClock(60);
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(0, 10));
+        wallet.commitTx(spend);
+        List<Transaction> mine = wallet.getTransactions(myAddress, null, 10, false);
+        assertEquals(spend, mine.get(0));
+        assertEquals(7, mine.size());
+        assertTrue(wallet.getTransactions(new ECKey().toAddress(params), null, 10, false).isEmpty());
+    }
+
+    @Test
+    public void addressHistoryFollowsKeys() throws Exception {
+        // A transaction pays to us and to a key the wallet doesn't have yet.
+        Utils.setMockClock();
+        ECKey key2 = new ECKey();
+        Address address2 = key2.toAddress(params);
+        Transaction tx = createFakeTx(params, Utils.CENT, myAddress);
+        tx.addOutput(Utils.CENT, address2);
+        tx = sendMoneyToWallet(tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.getTransactions(address2, null, 10, true).isEmpty());
+        // Adding the key finds the transaction by its address.
+        wallet.addKey(key2);
+        assertEquals(Arrays.asList(tx), wallet.getTransactions(address2, null, 10, true));
+        // Spend both outputs.
+        Utils.rollMockClock(60);
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins("0.015"));
+        wallet.commitTx(spend);
+        assertEquals(Arrays.asList(spend, tx), wallet.getTransactions(address2, null, 10, true));
+        // Removing the key drops it from the history of both, and adding it back finds the spend again too.
+        wallet.removeKey(key2);
+        assertTrue(wallet.getTransactions(address2, null, 10, true).isEmpty());
+        assertEquals(Arrays.asList(spend, tx), wallet.getTransactions(myAddress, null, 10, true));
+        wallet.addKey(key2);
+        assertEquals(Arrays.asList(spend, tx), wallet.getTransactions(address2, null, 10, true));
+    }
+
+    @Test
+    public void queriesDontWaitForWriters() throws Exception {
+        BigInteger value = Utils.toNanoCoins(1, 0);
+        sendMoneyToWallet(value, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(value, wallet.getBalance());
+        assertEquals(1, wallet.getTransactions(false).size());
+        // Another thread holds the wallet lock, as the block chain does while it delivers a block.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        assertEquals(value, wallet.getBalance());
+        assertEquals(value, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertTrue(wallet.isPubKeyMine(myKey.getPubKey()));
+        assertEquals(1, wallet.getKeys().size());
+        // The queries above returned while the lock was still taken.
+        assertTrue(writer.isAlive());
+        release.countDown();
+        writer.join();
+        // Once the change is complete, queries see it.
+        sendMoneyToWallet(value, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(value.shiftLeft(1), wallet.getBalance());
+        assertEquals(2, wallet.getTransactions(false).size());
+    }
+
+    @Test
+    public void listenerSeesItsOwnChange() throws Exception {
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(0, wallet.getTransactions(false).size());
+        final BigInteger[] balance = new BigInteger[1];
+        final int[] size = new int[1];
+        final CountDownLatch received = new CountDownLatch(1);
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                // Runs on the user thread while the test thread still holds the wallet lock.
+                balance[0] = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+                size[0] = wallet.getTransactions(false).size();
+                received.countDown();
+            }
+        });
+        BigInteger value = Utils.toNanoCoins(1, 0);
+        wallet.lock.lock();
+        try {
+            wallet.receivePending(createFakeTx(params, value, myAddress), null);
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+        } finally {
+            wallet.lock.unlock();
+        }
+        assertEquals(value, balance[0]);
+        assertEquals(1, size[0]);
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         wallet = new Wallet(params);
@@ -1320,6 +1489,104 @@ public class WalletTest extends TestWithWallet {
         assertTrue("Wallet is not an encrypted wallet", encryptedWallet.getEncryptionType() == EncryptionType.ENCRYPTED_SCRYPT_AES);
     }
 
+    @Test
+    public void keyLookupFollowsKeychain() throws Exception {
+        // The key indexes must hand back the key objects currently in the keychain, which encryption replaces.
+        ECKey key = encryptedWallet.getKeys().get(0);
+        assertSame(key, encryptedWallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertSame(key, encryptedWallet.findKeyFromPubKey(key.getPubKey()));
+        encryptedWallet.decrypt(aesKey);
+        ECKey decrypted = encryptedWallet.findKeyFromPubHash(key.getPubKeyHash());
+        assertFalse(decrypted.isEncrypted());
+        assertSame(decrypted, encryptedWallet.findKeyFromPubKey(key.getPubKey()));
+        encryptedWallet.encrypt(keyCrypter, aesKey);
+        ECKey encrypted = encryptedWallet.findKeyFromPubKey(key.getPubKey());
+        assertTrue(encrypted.isEncrypted());
+        assertSame(encrypted, encryptedWallet.getKeys().get(0));
+
+        ECKey other = new ECKey();
+        assertFalse(wallet.hasKey(other));
+        assertTrue(wallet.addKey(other));
+        assertFalse(wallet.addKey(other));
+        assertTrue(wallet.isPubKeyHashMine(other.getPubKeyHash()));
+        assertTrue(wallet.removeKey(other));
+        assertFalse(wallet.removeKey(other));
+        assertNull(wallet.findKeyFromPubHash(other.getPubKeyHash()));
+        assertFalse(wallet.isPubKeyMine(other.getPubKey()));
+    }
+
+    @Test
+    public void cachedBalancesFollowChanges() throws Exception {
+        // Balances are kept between calls, so check that each kind of change is still seen.
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Utils.COIN, wallet.getBalance());
+        assertEquals(Utils.COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // Unconfirmed money from someone else is estimated but not available, unless the coin selector allows it.
+        sendMoneyToWallet(Utils.CENT, null);
+        assertEquals(Utils.COIN, wallet.getBalance());
+        assertEquals(Utils.COIN.add(Utils.CENT), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet.setCoinSelector(AllowUnconfirmedCoinSelector.get());
+        assertEquals(Utils.COIN.add(Utils.CENT), wallet.getBalance());
+        wallet.setCoinSelector(new DefaultCoinSelector());
+        assertEquals(Utils.COIN, wallet.getBalance());
+        // Spending takes the coins out, and gives the change back once the spend confirms.
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), Utils.CENT);
+        wallet.commitTx(spend);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+        // Our own change becomes available once the network has seen the spend.
+        BigInteger change = spend.getValueSentToMe(wallet);
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        spend.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        assertEquals(change, wallet.getBalance());
+        sendMoneyToWallet(spend, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(change, wallet.getBalance());
+        assertEquals(change.add(Utils.CENT), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // Removing every transaction leaves nothing.
+        wallet.clearTransactions(0);
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(0, wallet.calculateAllSpendCandidates(false).size());
+    }
+
+    @Test
+    public void depthNotificationLimit() throws Exception {
+        // Deep transactions are no longer told about each block, but still know their depth and work done.
+        wallet.setDepthNotificationLimit(3);
+        Address notMyAddr = new ECKey().toAddress(params);
+        Transaction tx = createFakeTx(params, CENT, myAddress);
+        StoredBlock block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        BigInteger work = tx.getConfidence().getWorkDone();
+        final AtomicInteger depthChanges = new AtomicInteger();
+        tx.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                if (reason == ChangeReason.DEPTH)
+                    depthChanges.incrementAndGet();
+            }
+        }, Threading.SAME_THREAD);
+        for (int i = 0; i < 5; i++) {
+            block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+            wallet.notifyNewBestBlock(block);
+            work = work.add(block.getHeader().getWork());
+        }
+        assertEquals(6, tx.getConfidence().getDepthInBlocks());
+        assertEquals(work, tx.getConfidence().getWorkDone());
+        // Only told about depths two and three.
+        assertEquals(2, depthChanges.get());
+
+        // A depth future is still told about the blocks it waits for.
+        ListenableFuture<Transaction> future = tx.getConfidence().getDepthFuture(8, Threading.SAME_THREAD);
+        wallet.notifyNewBestBlock(new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1));
+        assertFalse(future.isDone());
+        wallet.notifyNewBestBlock(new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1));
+        assertTrue(future.isDone());
+        assertEquals(8, tx.getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void encryptionDecryptionBadPassword() throws Exception {
         // Check the wallet is currently encrypted
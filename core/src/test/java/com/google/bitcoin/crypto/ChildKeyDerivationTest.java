@@ -16,9 +16,16 @@
 
 package com.google.bitcoin.crypto;
 
+import com.google.bitcoin.core.Utils;
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -121,6 +128,75 @@ public class ChildKeyDerivationTest {
         }
     }
 
+    @Test
+    public void bulkDerivation() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("bulk derivation test seed".getBytes());
+        DeterministicKey account = HDKeyDerivation.deriveChildKey(master, new ChildNumber(0, true));
+        DeterministicKey accountPub = account.getPubOnly();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<DeterministicKey> priv = HDKeyDerivation.deriveChildKeys(account, 5, 20, false, executor);
+            List<DeterministicKey> pub = HDKeyDerivation.deriveChildKeys(accountPub, 5, 20, false, executor);
+            List<DeterministicKey> privOnly = HDKeyDerivation.deriveChildKeys(account, 0, 7, true, executor);
+            assertEquals(20, priv.size());
+            assertEquals(20, pub.size());
+            for (int i = 0; i < 20; i++) {
+                DeterministicKey expected = HDKeyDerivation.deriveChildKey(account, 5 + i);
+                assertEquals(expected.getChildNumberPath(), priv.get(i).getChildNumberPath());
+                assertEquals(expected.getPrivAsFieldElement(), priv.get(i).getPrivAsFieldElement());
+                assertArrayEquals(expected.getChainCode(), priv.get(i).getChainCode());
+                assertEquals(hexEncodePub(expected), hexEncodePub(pub.get(i)));
+                assertArrayEquals(expected.getChainCode(), pub.get(i).getChainCode());
+                assertArrayEquals(Utils.sha256hash160(expected.getPubKeyBytes()), pub.get(i).getIdentifier());
+            }
+            for (int i = 0; i < 7; i++) {
+                DeterministicKey expected = HDKeyDerivation.deriveChildKey(account, new ChildNumber(i, true));
+                assertEquals(expected.getPrivAsFieldElement(), privOnly.get(i).getPrivAsFieldElement());
+            }
+            assertEquals(0, HDKeyDerivation.deriveChildKeys(account, 0, 0, false, executor).size());
+
+            DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+            ImmutableList<ChildNumber> accountPath = account.getChildNumberPath();
+            List<DeterministicKey> children = hierarchy.deriveChildren(accountPath, false, true, false, 0, 10, executor);
+            assertEquals(10, children.size());
+            assertEquals(children.get(9), hierarchy.get(HDUtils.append(accountPath, new ChildNumber(9, false)), false, false));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void bulkAndNextChildDerivation() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("bulk derivation test seed".getBytes());
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+        ImmutableList<ChildNumber> path = master.getChildNumberPath();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Next child after a bulk derivation comes after the whole run.
+            assertEquals(0, hierarchy.deriveNextChild(path, false, false, false).getChildNumber().getChildNumber());
+            hierarchy.deriveChildren(path, false, false, false, 0, 5, executor);
+            assertEquals(5, hierarchy.deriveNextChild(path, false, false, false).getChildNumber().getChildNumber());
+            // A run below what was handed out already doesn't move it back.
+            hierarchy.deriveChildren(path, false, false, false, 2, 2, executor);
+            assertEquals(6, hierarchy.deriveNextChild(path, false, false, false).getChildNumber().getChildNumber());
+            hierarchy.deriveChildren(path, false, false, false, 10, 3, executor);
+            assertEquals(13, hierarchy.deriveNextChild(path, false, false, false).getChildNumber().getChildNumber());
+            // Private derivation keeps its own count.
+            hierarchy.deriveChildren(path, false, false, true, 0, 3, executor);
+            DeterministicKey priv = hierarchy.deriveNextChild(path, false, false, true);
+            assertEquals(new ChildNumber(3, true), priv.getChildNumber());
+            assertEquals(14, hierarchy.deriveNextChild(path, false, false, false).getChildNumber().getChildNumber());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bulkPrivateDerivationFromPublicKey() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("bulk derivation test seed".getBytes());
+        HDKeyDerivation.deriveChildKeys(master.getPubOnly(), 0, 5, true, Executors.newSingleThreadExecutor());
+    }
+
     private static String hexEncodePub(DeterministicKey pubKey) {
         return hexEncode(pubKey.getPubKeyBytes());
     }
@@ -286,6 +286,17 @@ public class MnemonicCodeTest {
         }
     }
 
+    @Test
+    public void testBatchToSeeds() throws Exception {
+        List<List<String>> mnemonics = new ArrayList<List<String>>();
+        for (int ii = 0; ii < vectors_v0_6.length; ii += 3)
+            mnemonics.add(split(vectors_v0_6[ii+1]));
+        List<byte[]> seeds = MnemonicCode.toSeeds(mnemonics, "TREZOR");
+        assertEquals(mnemonics.size(), seeds.size());
+        for (int ii = 0; ii < vectors_v0_6.length; ii += 3)
+            assertEquals(vectors_v0_6[ii+2], new String(Hex.encode(seeds.get(ii / 3))));
+    }
+
     @Test(expected = MnemonicException.MnemonicLengthException.class)
     public void testBadEntropyLength() throws Exception {
         byte[] entropy = Hex.decode("7f7f7f7f7f7f7f7f7f7f7f7f7f7f");
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import org.junit.Test;
+import org.spongycastle.crypto.digests.SHA512Digest;
+import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PBKDF2SHA512Test {
+    private static byte[] reference(String password, String salt, int c, int dkLen) throws Exception {
+        PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA512Digest());
+        generator.init(password.getBytes("UTF-8"), salt.getBytes("UTF-8"), c);
+        return ((KeyParameter) generator.generateDerivedParameters(dkLen * 8)).getKey();
+    }
+
+    @Test
+    public void knownAnswer() throws Exception {
+        assertEquals("867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252",
+                new String(Hex.encode(PBKDF2SHA512.derive("password", "salt", 1, 32))));
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'x');
+        String longPassword = new String(chars);
+        // Short and long (hashed first) passwords, a salt spanning two blocks, and keys longer than one hash.
+        String[][] inputs = {
+                { "password", "salt" },
+                { longPassword.substring(0, 128), "mnemonic" },
+                { longPassword.substring(0, 129), "mnemonic\u00e9" },
+                { "pass", longPassword.substring(0, 200) },
+        };
+        for (String[] input : inputs) {
+            assertArrayEquals(reference(input[0], input[1], 3, 64), PBKDF2SHA512.derive(input[0], input[1], 3, 64));
+            assertArrayEquals(reference(input[0], input[1], 2, 150), PBKDF2SHA512.derive(input[0], input[1], 2, 150));
+        }
+    }
+}
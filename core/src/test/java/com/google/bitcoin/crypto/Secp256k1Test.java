@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECAlgorithms;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the specialised secp256k1 code against the generic Bouncy Castle implementation.
+ */
+public class Secp256k1Test {
+    private static final BigInteger N = ECKey.CURVE.getN();
+    private static final BigInteger LAMBDA =
+            new BigInteger("5363ad4cc05c30e0a5261c028812645a122e22ea20816678df02967c1b23bd72", 16);
+
+    private final Random random = new Random(1234);
+
+    private BigInteger randomScalar() {
+        return new BigInteger(256, random).mod(N);
+    }
+
+    private static byte[] encode(ECPoint point, boolean compressed) {
+        return new ECPoint.Fp(ECKey.CURVE.getCurve(), point.getX(), point.getY(), compressed).getEncoded();
+    }
+
+    @Test
+    public void publicKeyFromPrivate() throws Exception {
+        BigInteger[] keys = { BigInteger.ONE, BigInteger.valueOf(16), N.subtract(BigInteger.ONE), randomScalar(),
+                randomScalar(), randomScalar() };
+        for (BigInteger key : keys) {
+            ECPoint expected = ECKey.CURVE.getG().multiply(key);
+            assertArrayEquals(encode(expected, true), Secp256k1.publicKeyFromPrivate(key, true));
+            assertArrayEquals(encode(expected, false), Secp256k1.publicKeyFromPrivate(key, false));
+        }
+        assertArrayEquals(Hex.decode("0279be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798"),
+                Secp256k1.publicKeyFromPrivate(BigInteger.ONE, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void privateKeyOutOfRange() throws Exception {
+        Secp256k1.publicKeyFromPrivate(N, true);
+    }
+
+    @Test
+    public void signAndVerify() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            BigInteger key = randomScalar();
+            byte[] pub = Secp256k1.publicKeyFromPrivate(key, i % 2 == 0);
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            BigInteger[] sig = Secp256k1.sign(hash, key);
+            // Bouncy Castle agrees the signature is good.
+            ECDSASigner signer = new ECDSASigner();
+            signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pub), ECKey.CURVE));
+            assertTrue(signer.verifySignature(hash, sig[0], sig[1]));
+            assertTrue(Secp256k1.verify(hash, sig[0], sig[1], pub));
+            // A different message, or the negated s of a different message, must fail.
+            hash[0] ^= 1;
+            assertFalse(Secp256k1.verify(hash, sig[0], sig[1], pub));
+            assertFalse(Secp256k1.verify(hash, sig[0], N.subtract(sig[1]), pub));
+        }
+    }
+
+    @Test
+    public void deterministicSignatures() throws Exception {
+        // Widely used RFC 6979 vectors for secp256k1 with SHA-256: key, message, nonce, r and the low s.
+        String[][] vectors = {
+            { "1", "Satoshi Nakamoto",
+              "8f8a276c19f4149656b280621e358cce24f5f52542772691ee69063b74f15d15",
+              "934b1ea10a4b3c1757e2b0c017d0b6143ce3c9a7e6a4a49860d7a6ab210ee3d8",
+              "2442ce9d2b916064108014783e923ec36b49743e2ffa1c4496f01a512aafd9e5" },
+            { "1", "All those moments will be lost in time, like tears in rain. Time to die...",
+              "38aa22d72376b4dbc472e06c3ba403ee0a394da63fc58d88686c611aba98d6b3",
+              "8600dbd41e348fe5c9465ab92d23e3db8b98b873beecd930736488696438cb6b",
+              "547fe64427496db33bf66019dacbf0039c04199abb0122918601db38a72cfc21" },
+            { "fffffffffffffffffffffffffffffffebaaedce6af48a03bbfd25e8cd0364140", "Satoshi Nakamoto",
+              "33a19b60e25fb6f4435af53a3d42d493644827367e6453928554f43e49aa6f90",
+              "fd567d121db66e382991534ada77a6bd3106f0a1098c231e47993447cd6af2d0",
+              "6b39cd0eb1bc8603e159ef5c20a5c8ad685a45b06ce9bebed3f153d10d93bed5" },
+            { "f8b8af8ce3c7cca5e300d33939540c10d45ce001b8f252bfbc57ba0342904181", "Alan Turing",
+              "525a82b70e67874398067543fd84c83d30c175fdc45fdeee082fe13b1d7cfdf1",
+              "7063ae83e7f62bbb171798131b4a0564b956930092b33b07b395615d9ec7e15c",
+              "58dfcc1e00a35e1572f366ffe34ba0fc47db1e7189759b9fb233c5b05ab388ea" },
+        };
+        for (String[] vector : vectors) {
+            BigInteger key = new BigInteger(vector[0], 16);
+            byte[] hash = Sha256Hash.create(vector[1].getBytes("UTF-8")).getBytes();
+            Secp256k1.DeterministicNonces nonces = new Secp256k1.DeterministicNonces(key,
+                    new BigInteger(1, hash).mod(N));
+            assertEquals(new BigInteger(vector[2], 16), nonces.next());
+            BigInteger[] sig = Secp256k1.sign(hash, key);
+            assertEquals(new BigInteger(vector[3], 16), sig[0]);
+            BigInteger s = sig[1].compareTo(N.shiftRight(1)) > 0 ? N.subtract(sig[1]) : sig[1];
+            assertEquals(new BigInteger(vector[4], 16), s);
+            // Signing again gives the same signature.
+            assertArrayEquals(sig, Secp256k1.sign(hash, key));
+        }
+    }
+
+    @Test
+    public void verifyRejectsBadInputs() throws Exception {
+        BigInteger key = randomScalar();
+        byte[] pub = Secp256k1.publicKeyFromPrivate(key, false);
+        byte[] hash = new byte[32];
+        BigInteger[] sig = Secp256k1.sign(hash, key);
+        assertFalse(Secp256k1.verify(hash, BigInteger.ZERO, sig[1], pub));
+        assertFalse(Secp256k1.verify(hash, sig[0], N, pub));
+        // A point that is not on the curve.
+        byte[] offCurve = pub.clone();
+        offCurve[64] ^= 1;
+        assertFalse(Secp256k1.verify(hash, sig[0], sig[1], offCurve));
+        assertNull(Secp256k1.decompress(offCurve));
+        // Hybrid encoding with the wrong parity byte.
+        byte[] hybrid = pub.clone();
+        hybrid[0] = (byte) ((pub[64] & 1) == 1 ? 0x06 : 0x07);
+        assertFalse(Secp256k1.verify(hash, sig[0], sig[1], hybrid));
+        hybrid[0] = (byte) ((pub[64] & 1) == 1 ? 0x07 : 0x06);
+        assertTrue(Secp256k1.verify(hash, sig[0], sig[1], hybrid));
+    }
+
+    @Test
+    public void sumOfMultiplies() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            BigInteger key = randomScalar();
+            ECPoint point = ECKey.CURVE.getG().multiply(key);
+            BigInteger a = randomScalar(), b = randomScalar();
+            ECPoint expected = ECAlgorithms.sumOfTwoMultiplies(ECKey.CURVE.getG(), a, point, b);
+            assertArrayEquals(encode(expected, true), Secp256k1.sumOfMultiplies(a, b, encode(point, true), true));
+            assertArrayEquals(encode(ECKey.CURVE.getG().multiply(a).add(point), false),
+                    Secp256k1.publicKeyTweakAdd(encode(point, false), a, false));
+        }
+        // key * G + (n - 1) * (key * G) is the point at infinity.
+        BigInteger key = randomScalar();
+        byte[] pub = Secp256k1.publicKeyFromPrivate(key, true);
+        assertNull(Secp256k1.sumOfMultiplies(key, N.subtract(BigInteger.ONE), pub, true));
+        assertNull(Secp256k1.publicKeyTweakAdd(pub, N.subtract(key), true));
+    }
+
+    @Test
+    public void decompress() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            ECPoint point = ECKey.CURVE.getG().multiply(randomScalar());
+            assertArrayEquals(encode(point, false), Secp256k1.decompress(encode(point, true)));
+        }
+    }
+
+    @Test
+    public void splitScalar() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            BigInteger k = randomScalar();
+            BigInteger[] split = Secp256k1.splitScalar(k);
+            assertEquals(k, split[0].add(split[1].multiply(LAMBDA)).mod(N));
+            assertTrue(split[0].abs().bitLength() <= 129);
+            assertTrue(split[1].abs().bitLength() <= 129);
+        }
+    }
+
+    @Test
+    public void wnaf() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            BigInteger k = new BigInteger(130, random);
+            int[] digits = Secp256k1.wnaf(k);
+            BigInteger sum = BigInteger.ZERO;
+            for (int j = digits.length - 1; j >= 0; j--) {
+                sum = sum.shiftLeft(1).add(BigInteger.valueOf(digits[j]));
+                assertTrue(digits[j] == 0 || (digits[j] & 1) == 1);
+            }
+            assertEquals(k, sum);
+        }
+    }
+}
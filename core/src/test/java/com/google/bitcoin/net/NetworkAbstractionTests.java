@@ -30,8 +30,11 @@ import javax.net.SocketFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -46,7 +49,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -57,12 +61,16 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.start();
+        } else if (clientType == 4) {
+            // Several selector threads, so connections opened one after another land on different selectors
+            channels = new NioClientManager(3);
+            channels.start();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -550,4 +558,76 @@ public class NetworkAbstractionTests {
 
         server.stopAndWait();
     }
+
+    @Test
+    public void serverSelectorDeath() throws Exception {
+        // A server with three selector threads: the first connection goes to the accepting selector, the second and
+        // third to the other two. Opening the third connection kills its selector thread.
+        final AtomicBoolean failOpen = new AtomicBoolean(false);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        if (failOpen.get())
+                            throw new RuntimeException("Selector thread dies");
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243), 3);
+        server.startAndWait();
+
+        Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder().setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+        List<SettableFuture<Void>> clientsClosed = new ArrayList<SettableFuture<Void>>();
+        for (int i = 0; i < 3; i++) {
+            final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+            final SettableFuture<Void> clientConnectionClosed = SettableFuture.create();
+            final SettableFuture<Protos.TwoWayChannelMessage> clientMessageReceived = SettableFuture.create();
+            ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                            clientMessageReceived.set(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser handler) {
+                            clientConnectionOpen.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser handler) {
+                            clientConnectionClosed.set(null);
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            clientsClosed.add(clientConnectionClosed);
+            if (i == 2)
+                failOpen.set(true);
+            openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+            clientConnectionOpen.get();
+            if (i < 2) {
+                // Both working selectors serve their connection.
+                clientHandler.write(msg);
+                assertEquals(msg, clientMessageReceived.get());
+            }
+        }
+
+        // The whole server stops rather than keep handing every third connection to a selector that is gone, and all
+        // connections are closed, including those of the selectors that still worked.
+        for (SettableFuture<Void> clientConnectionClosed : clientsClosed)
+            clientConnectionClosed.get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 50 && server.isRunning(); i++)
+            Thread.sleep(100);
+        assertFalse(server.isRunning());
+    }
 }
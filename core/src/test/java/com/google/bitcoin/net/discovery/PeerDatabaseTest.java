@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.core.Utils;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerDatabaseTest {
+    private static InetSocketAddress addr(int a, int b, int c, int d) throws Exception {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d}), 9401);
+    }
+
+    @Test
+    public void bestFirst() throws Exception {
+        PeerDatabase db = new PeerDatabase();
+        long now = Utils.currentTimeMillis() / 1000;
+        InetSocketAddress untried = addr(10, 0, 0, 1), failed = addr(10, 1, 0, 1);
+        InetSocketAddress slow = addr(10, 2, 0, 1), fast = addr(10, 3, 0, 1);
+        for (InetSocketAddress a : Arrays.asList(untried, failed, slow, fast))
+            db.addAddress(a, now);
+        db.markFailure(failed);
+        db.markSuccess(slow);
+        db.setLatency(slow, 500);
+        db.markSuccess(fast);
+        db.setLatency(fast, 50);
+        List<InetSocketAddress> peers = Arrays.asList(db.getPeers(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(fast, slow, untried, failed), peers);
+        // Addresses that keep failing are forgotten.
+        for (int i = 0; i < 10; i++)
+            db.markFailure(failed);
+        peers = Arrays.asList(db.getPeers(5, TimeUnit.SECONDS));
+        assertFalse(peers.contains(failed));
+        assertEquals(3, db.size());
+    }
+
+    @Test
+    public void buckets() throws Exception {
+        PeerDatabase db = new PeerDatabase();
+        long now = Utils.currentTimeMillis() / 1000;
+        // One network announces lots of addresses, another only one.
+        for (int i = 0; i < PeerDatabase.MAX_PER_BUCKET + 10; i++)
+            db.addAddress(addr(10, 0, i / 256, i % 256), now);
+        InetSocketAddress other = addr(10, 1, 0, 1);
+        db.addAddress(other, now - 1000);
+        assertEquals(PeerDatabase.MAX_PER_BUCKET + 1, db.size());
+        // The lone address is returned early despite being older, as each network gets a turn.
+        List<InetSocketAddress> peers = Arrays.asList(db.getPeers(5, TimeUnit.SECONDS));
+        assertEquals(PeerDatabase.MAX_RESULTS, peers.size());
+        assertTrue(peers.indexOf(other) < 3);
+    }
+
+    @Test
+    public void terribleAddressesFreeTheirRoom() throws Exception {
+        PeerDatabase db = new PeerDatabase();
+        long now = Utils.currentTimeMillis() / 1000;
+        // A full network whose addresses were all announced long ago and never worked.
+        for (int i = 0; i < PeerDatabase.MAX_PER_BUCKET; i++)
+            db.addAddress(addr(10, 0, 0, i), now - 60 * 24 * 60 * 60);
+        assertEquals(PeerDatabase.MAX_PER_BUCKET, db.size());
+        InetSocketAddress fresh = addr(10, 0, 1, 1);
+        db.addAddress(fresh, now);
+        assertEquals(1, db.size());
+        assertArrayEquals(new InetSocketAddress[] {fresh}, db.getPeers(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = File.createTempFile("peers", null);
+        file.delete();
+        file.deleteOnExit();
+        PeerDatabase db = new PeerDatabase(file);
+        assertEquals(0, db.size());
+        long now = Utils.currentTimeMillis() / 1000;
+        InetSocketAddress a = addr(192, 168, 0, 1), b = addr(192, 169, 0, 1);
+        InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 9401);
+        db.addAddress(a, now);
+        db.addAddress(b, now);
+        db.addAddress(v6, now);
+        db.markSuccess(b);
+        db.setLatency(b, 20);
+        db.save();
+
+        PeerDatabase db2 = new PeerDatabase(file);
+        assertEquals(3, db2.size());
+        InetSocketAddress[] peers = db2.getPeers(5, TimeUnit.SECONDS);
+        assertEquals(b, peers[0]);
+        assertTrue(Arrays.asList(peers).containsAll(Arrays.asList(a, v6)));
+    }
+}
@@ -26,8 +26,10 @@ import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos;
+import org.multibit.store.MultiBitWalletProtobufSerializer;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -36,8 +38,10 @@ import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
@@ -260,6 +264,141 @@ public class WalletProtobufSerializerTest {
         assertEquals(work2, rebornConfidence1.getWorkDone());
     }
 
+    @Test
+    public void lazyHistory() throws Exception {
+        MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        Address other = new ECKey().toAddress(params);
+        // t1 is spent by t2, which sends change back to us. t3 is spent in full by t4.
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        addInBlock(blockStore, t1);
+        Transaction t2 = myWallet.createSend(other, Utils.CENT);
+        addInBlock(blockStore, t2);
+        Transaction t3 = createFakeTx(params, Utils.CENT, myAddress);
+        addInBlock(blockStore, t3);
+        Transaction t4 = new Transaction(params);
+        t4.addInput(t3.getOutput(0));
+        t4.addOutput(Utils.CENT, other);
+        addInBlock(blockStore, t4);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new MultiBitWalletProtobufSerializer().writeWallet(myWallet, output);
+        MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+        serializer.setLazyHistory(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        // Only the history nothing else spends from is left undecoded.
+        assertEquals(2, wallet1.getUndecodedTransactionCount());
+        assertEquals(myWallet.getBalance(), wallet1.getBalance());
+        assertEquals(Utils.toNanoCoins(1, 0), wallet1.getTransaction(t2.getHash()).getValueSentFromMe(wallet1));
+
+        // A block arrives before the history is looked at.
+        wallet1.notifyNewBestBlock(TestUtils.createFakeBlock(blockStore).storedBlock);
+        // Saving leaves it undecoded but keeps depths up to date.
+        output = new ByteArrayOutputStream();
+        new MultiBitWalletProtobufSerializer().writeWallet(wallet1, output);
+        Wallet wallet2 = new MultiBitWalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(2, wallet1.getUndecodedTransactionCount());
+        assertEquals(3, wallet2.getTransaction(t3.getHash()).getConfidence().getDepthInBlocks());
+
+        // Transactions are decoded one by one, and connected as they come.
+        Transaction t3copy = wallet1.getTransaction(t3.getHash());
+        assertEquals(1, wallet1.getUndecodedTransactionCount());
+        assertEquals(3, t3copy.getConfidence().getDepthInBlocks());
+        assertNull(t3copy.getOutput(0).getSpentBy());
+        Transaction t4copy = wallet1.getTransaction(t4.getHash());
+        assertEquals(0, wallet1.getUndecodedTransactionCount());
+        assertEquals(t4copy, t3copy.getOutput(0).getSpentBy().getParentTransaction());
+        assertEquals(2, t4copy.getConfidence().getDepthInBlocks());
+        assertEquals(4, wallet1.getTransactions(true).size());
+    }
+
+    @Test
+    public void lazyHistoryStaysUndecoded() throws Exception {
+        MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        Address other = new ECKey().toAddress(params);
+        // Ten coins that were received and spent in full, then one that is still unspent, a minute apart each.
+        Utils.setMockClock();
+        for (int i = 0; i < 10; i++) {
+            Transaction received = createFakeTx(params, Utils.CENT, myAddress);
+            Utils.rollMockClock(60);
+            addInBlock(blockStore, received);
+            Transaction sent = new Transaction(params);
+            sent.addInput(received.getOutput(0));
+            sent.addOutput(Utils.CENT, other);
+            Utils.rollMockClock(60);
+            addInBlock(blockStore, sent);
+        }
+        Transaction unspent = createFakeTx(params, Utils.COIN, myAddress);
+        Utils.rollMockClock(60);
+        addInBlock(blockStore, unspent);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new MultiBitWalletProtobufSerializer().writeWallet(myWallet, output);
+        MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+        serializer.setLazyHistory(true);
+        Wallet wallet = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(20, wallet.getUndecodedTransactionCount());
+
+        // The balance, the newest page of history and a summary only decode what they show.
+        assertEquals(Utils.COIN, wallet.getBalance());
+        assertEquals(Utils.COIN, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        List<Transaction> recent = wallet.getRecentTransactions(3, false);
+        assertEquals(3, recent.size());
+        assertEquals(unspent, recent.get(0));
+        assertEquals(18, wallet.getUndecodedTransactionCount());
+        assertTrue(wallet.toString(false, false, false, null).contains("20 spent transactions"));
+        assertEquals(18, wallet.getUndecodedTransactionCount());
+
+        // Listing everything decodes the rest.
+        assertEquals(21, wallet.getTransactions(false).size());
+        assertEquals(0, wallet.getUndecodedTransactionCount());
+    }
+
+    @Test
+    public void addressHistoryAfterLoad() throws Exception {
+        MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        Address other = new ECKey().toAddress(params);
+        // t1 pays to us and t2 spends all of it.
+        Transaction t1 = createFakeTx(params, Utils.CENT, myAddress);
+        addInBlock(blockStore, t1);
+        Transaction t2 = new Transaction(params);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(Utils.CENT, other);
+        addInBlock(blockStore, t2);
+        List<Transaction> expected = myWallet.getTransactions(myAddress, null, 10, true);
+        assertEquals(2, expected.size());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new MultiBitWalletProtobufSerializer().writeWallet(myWallet, output);
+
+        // t2 is read before the input spending t1 is connected, but is still found by the address it spends from.
+        Wallet wallet1 = new MultiBitWalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(expected, wallet1.getTransactions(myAddress, null, 10, true));
+
+        // The same when the history is decoded spender first.
+        MultiBitWalletProtobufSerializer serializer = new MultiBitWalletProtobufSerializer();
+        serializer.setLazyHistory(true);
+        Wallet wallet2 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(2, wallet2.getUndecodedTransactionCount());
+        assertTrue(wallet2.getTransactionsByHeight(Integer.MAX_VALUE, 0).isEmpty());
+        wallet2.getTransaction(t2.getHash());
+        wallet2.getTransaction(t1.getHash());
+        assertEquals(0, wallet2.getUndecodedTransactionCount());
+        assertEquals(expected, wallet2.getTransactions(myAddress, null, 10, true));
+
+        // Transactions paying to a watched address added after them are found by it too.
+        Address watched = new ECKey().toAddress(params);
+        Transaction t3 = createFakeTx(params, Utils.CENT, watched);
+        wallet2.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, t3));
+        assertTrue(wallet2.getTransactions(watched, null, 10, true).isEmpty());
+        wallet2.addWatchedAddress(watched);
+        assertEquals(Arrays.asList(t3), wallet2.getTransactions(watched, null, 10, true));
+    }
+
+    private void addInBlock(BlockStore blockStore, Transaction tx) throws Exception {
+        TestUtils.BlockPair bp = TestUtils.createFakeBlock(blockStore, tx);
+        myWallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        myWallet.notifyNewBestBlock(bp.storedBlock);
+    }
+
     private static Wallet roundTrip(Wallet wallet) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         //System.out.println(WalletProtobufSerializer.walletToText(wallet));